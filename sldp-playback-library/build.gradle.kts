@@ -25,8 +25,15 @@ android {
     buildFeatures {
         buildConfig = true
     }
+
+    testOptions {
+        // android.util.Log and friends return defaults instead of throwing in local tests
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
     implementation(libs.androidx.annotations)
+
+    testImplementation(libs.junit)
 }
@@ -1,20 +1,106 @@
 package com.softvelum.sldp;
 
+import java.nio.ByteBuffer;
+
 public class BufferItem {
     private final byte[] data;
+    private final ByteBuffer buffer;
+    private final long slabPosition;
     private final Timestamp timestamp;
     private final boolean isKeyFrame;
-    private long messageIndex;
+    private final boolean isLengthPrefixed;
+    // payload as returned by getData(), when that is not the stored array
+    private volatile byte[] converted;
+    private volatile long messageIndex;
+    // buffer holding the frame, which shares one converted copy among all of its views
+    private StreamBuffer owner;
+    private FrameTable table;
+    // optimistic read stamp of the buffer the view was created under, 0 if none
+    private long stamp;
 
     public BufferItem(byte[] data, long timestamp, int offset, int timescale, boolean keyFrame) {
+        this(data, null, C.NO_VALUE, timestamp, offset, timescale, keyFrame, false);
+    }
+
+    /**
+     * View of a frame held by a {@link StreamBuffer}, with the payload either in {@code data}
+     * or in the off-heap slab of the buffer.
+     */
+    BufferItem(byte[] data, ByteBuffer buffer, long slabPosition, long timestamp, int offset,
+               int timescale, boolean keyFrame, boolean lengthPrefixed) {
         this.data = data;
+        this.buffer = buffer;
+        this.slabPosition = slabPosition;
         this.timestamp = new Timestamp(timestamp, offset, timescale);
         this.isKeyFrame = keyFrame;
+        this.isLengthPrefixed = lengthPrefixed;
         this.messageIndex = -1;
     }
 
+    /**
+     * @return The payload, with H.264/H.265 NAL units behind start codes. Unless the payload
+     * is a heap array stored in that layout, it is converted on the first call and the same
+     * copy is returned from then on, for every view of the frame its buffer hands out while
+     * it holds the frame. To avoid the copy altogether, use {@link #getBuffer()} or
+     * {@link StreamBuffer#readFrame(long, ByteBuffer, NalUnits.Format)}.
+     */
     public byte[] getData() {
-        return data;
+        if (data != null && !isLengthPrefixed) {
+            return data;
+        }
+        byte[] res = converted;
+        if (res == null) {
+            res = owner != null ? owner.getData(this, table) : null;
+            if (res == null) {
+                res = new byte[getSize()];
+                NalUnits.copy(getBuffer(), ByteBuffer.wrap(res),
+                        isLengthPrefixed ? NalUnits.Format.ANNEX_B : NalUnits.Format.AVCC);
+            }
+            converted = res;
+        }
+        return res;
+    }
+
+    /**
+     * @return Read-only view of the payload as stored; H.264/H.265 frames keep the length before
+     * each NAL unit, see {@link #isLengthPrefixed()}. An off-heap payload is only valid while
+     * the view is intact, see {@link StreamBuffer#isHeld(BufferItem)}.
+     */
+    public ByteBuffer getBuffer() {
+        return data != null ? ByteBuffer.wrap(data).asReadOnlyBuffer() : buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The payload in the given NAL unit layout: a view if it is stored that way,
+     * otherwise a converted copy. Payloads of other codecs are returned as they are.
+     */
+    public ByteBuffer getBuffer(NalUnits.Format format) {
+        if (!isLengthPrefixed || format == NalUnits.Format.AVCC) {
+            return getBuffer();
+        }
+        ByteBuffer res = ByteBuffer.allocate(getSize());
+        NalUnits.copy(getBuffer(), res, format);
+        res.flip();
+        return res;
+    }
+
+    /**
+     * @return true for an H.264/H.265 frame stored with a length before each NAL unit.
+     */
+    public boolean isLengthPrefixed() {
+        return isLengthPrefixed;
+    }
+
+    public int getSize() {
+        return data != null ? data.length : buffer.remaining();
+    }
+
+    public boolean isOffHeap() {
+        return data == null;
+    }
+
+    long getSlabPosition() {
+        return slabPosition;
     }
 
     public Timestamp getTimestamp() {
@@ -32,4 +118,17 @@ public class BufferItem {
     public long getMessageIndex() {
         return messageIndex;
     }
+
+    void setOwner(StreamBuffer owner, FrameTable table) {
+        this.owner = owner;
+        this.table = table;
+    }
+
+    void setStamp(long stamp) {
+        this.stamp = stamp;
+    }
+
+    long getStamp() {
+        return stamp;
+    }
 }
@@ -0,0 +1,147 @@
+package com.softvelum.sldp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Shared pool of direct byte buffers in power-of-four size classes.
+ * Every buffer handed out is charged to an owner until it is released,
+ * which gives per-connection memory accounting.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 16 * 1024;
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final int[] SIZE_CLASSES = {
+            MIN_BUFFER_SIZE,
+            64 * 1024,
+            256 * 1024,
+            1024 * 1024,
+            MAX_BUFFER_SIZE
+    };
+
+    private static final BufferPool DEFAULT = new BufferPool(32 * 1024 * 1024);
+
+    @NonNull
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+    private final Map<Object, long[]> owners = new IdentityHashMap<>();
+    private final long maxPooledBytes;
+    private long pooledBytes;
+    private long allocatedBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        freeLists = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns the capacity of the smallest size class that can hold {@code size} bytes,
+     * or {@code size} itself when it exceeds the largest class.
+     */
+    public static int sizeClassFor(int size) {
+        for (int sizeClass : SIZE_CLASSES) {
+            if (size <= sizeClass) {
+                return sizeClass;
+            }
+        }
+        return size;
+    }
+
+    private static int indexOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == capacity) {
+                return i;
+            }
+        }
+        return C.NO_VALUE;
+    }
+
+    /**
+     * Hands out a cleared buffer of at least {@code minCapacity} bytes charged to {@code owner}.
+     */
+    @NonNull
+    public synchronized ByteBuffer acquire(@NonNull Object owner, int minCapacity) {
+        int capacity = sizeClassFor(Math.max(minCapacity, MIN_BUFFER_SIZE));
+        int index = indexOf(capacity);
+
+        ByteBuffer buffer = index == C.NO_VALUE ? null : freeLists[index].pollLast();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            pooledBytes -= capacity;
+            buffer.clear();
+        }
+
+        charge(owner, capacity);
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. Buffers outside the size classes, or beyond the
+     * pool's retention limit, are left to the garbage collector.
+     */
+    public synchronized void release(@NonNull Object owner, @NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        charge(owner, -capacity);
+
+        int index = indexOf(capacity);
+        if (index == C.NO_VALUE || !buffer.isDirect() || pooledBytes + capacity > maxPooledBytes) {
+            return;
+        }
+        buffer.clear();
+        freeLists[index].addLast(buffer);
+        pooledBytes += capacity;
+    }
+
+    private void charge(Object owner, long bytes) {
+        long[] account = owners.get(owner);
+        if (account == null) {
+            account = new long[1];
+            owners.put(owner, account);
+        }
+        account[0] += bytes;
+        allocatedBytes += bytes;
+        if (account[0] <= 0) {
+            owners.remove(owner);
+        }
+    }
+
+    /**
+     * @return Bytes currently held by the given owner.
+     */
+    public synchronized long getAllocatedBytes(@NonNull Object owner) {
+        long[] account = owners.get(owner);
+        return account == null ? 0 : account[0];
+    }
+
+    /**
+     * @return Bytes currently held by all owners.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return Bytes kept in the free lists for reuse.
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized int getOwnerCount() {
+        return owners.size();
+    }
+}
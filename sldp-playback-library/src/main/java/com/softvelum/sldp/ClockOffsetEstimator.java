@@ -0,0 +1,108 @@
+package com.softvelum.sldp;
+
+/**
+ * NTP-style estimate of the offset between the local monotonic clock and the server steady
+ * clock. A sample is a request sent at a local time, answered with a server time received at
+ * another local time; the server time is taken to be halfway through the round trip. Of the
+ * recent samples the one with the shortest round trip is used, as in the NTP clock filter,
+ * since queuing only ever adds delay.
+ * <p>
+ * SLDP has a single such exchange, the upgrade request answered by the status message, so a
+ * connection yields one sample and the filter only has a choice across reconnects to the same
+ * server. Within a connection, round trips measured by pings narrow the path delay instead,
+ * as the sample round trip also includes the time the server took to answer.
+ * <p>
+ * Times are in microseconds. Not thread-safe, used from the connection thread.
+ */
+final class ClockOffsetEstimator {
+    private static final int SAMPLES = 8;
+    private static final int RTT_SAMPLES = 32;
+    // samples further apart than their round trips allow come from a different server clock
+    private static final long MAX_DISAGREEMENT_US = 100_000;
+
+    private final long[] sentUs = new long[SAMPLES];
+    private final long[] remoteUs = new long[SAMPLES];
+    private final long[] receivedUs = new long[SAMPLES];
+    private int count;
+    private int next;
+
+    private final long[] rtts = new long[RTT_SAMPLES];
+    private int rttCount;
+    private int nextRtt;
+
+    private int best = -1;
+
+    void addExchange(long sent, long remote, long received) {
+        if (received < sent) {
+            return;
+        }
+        if (best >= 0) {
+            long rtt = received - sent;
+            long bestRtt = receivedUs[best] - sentUs[best];
+            long disagreement = Math.abs(midpointOffset(sent, remote, received) - midpointOffset(best));
+            if (disagreement > (rtt + bestRtt) / 2 + MAX_DISAGREEMENT_US) {
+                // reconnected to another server, or its clock was reset, and the path
+                // round trips may be those of another route
+                count = 0;
+                next = 0;
+                rttCount = 0;
+                nextRtt = 0;
+            }
+        }
+        sentUs[next] = sent;
+        remoteUs[next] = remote;
+        receivedUs[next] = received;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+
+        best = -1;
+        for (int i = 0; i < count; i++) {
+            if (best < 0 || receivedUs[i] - sentUs[i] < receivedUs[best] - sentUs[best]) {
+                best = i;
+            }
+        }
+    }
+
+    /**
+     * Adds a round trip of the network path, measured without the server clock.
+     */
+    void addRtt(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        rtts[nextRtt] = rtt;
+        nextRtt = (nextRtt + 1) % RTT_SAMPLES;
+        rttCount = Math.min(rttCount + 1, RTT_SAMPLES);
+    }
+
+    private static long midpointOffset(long sent, long remote, long received) {
+        return sent + (received - sent) / 2 - remote;
+    }
+
+    private long midpointOffset(int i) {
+        return midpointOffset(sentUs[i], remoteUs[i], receivedUs[i]);
+    }
+
+    boolean hasOffset() {
+        return best >= 0;
+    }
+
+    /**
+     * @return Local time minus server time of the best sample, valid if {@link #hasOffset()}.
+     */
+    long getOffsetUs() {
+        long rtt = receivedUs[best] - sentUs[best];
+        for (int i = 0; i < rttCount; i++) {
+            rtt = Math.min(rtt, rtts[i]);
+        }
+        // the server time left it half a path round trip before it arrived
+        return receivedUs[best] - rtt / 2 - remoteUs[best];
+    }
+
+    /**
+     * @return Round trip of the best sample, bounding the error of the offset.
+     */
+    long getRoundTripUs() {
+        return best >= 0 ? receivedUs[best] - sentUs[best] : C.NO_VALUE;
+    }
+}
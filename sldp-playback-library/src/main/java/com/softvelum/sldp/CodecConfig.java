@@ -0,0 +1,329 @@
+package com.softvelum.sldp;
+
+import android.media.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Decoder configuration parsed once from a sequence header: avcC for H.264, hvcC for H.265
+ * and AudioSpecificConfig for AAC. Parameter sets are given in Annex B layout, as MediaCodec
+ * expects them in csd-0 and csd-1.
+ * <p>
+ * Servers re-send the same header after a reconnect or a rendition switch. Compare configs
+ * with {@link #isSameAs(CodecConfig)} to keep the decoder running when nothing changed.
+ */
+public final class CodecConfig {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050,
+            16000, 12000, 11025, 8000, 7350};
+
+    private static final int HEVC_NAL_VPS = 32;
+    private static final int HEVC_NAL_SPS = 33;
+    private static final int HEVC_NAL_PPS = 34;
+
+    private final String mimeType;
+    private final byte[] header;
+    private final long hash;
+    private final byte[] csd0;
+    private final byte[] csd1;
+    private final int nalLengthSize;
+    private final int sampleRate;
+    private final int channelCount;
+
+    private CodecConfig(String mimeType, byte[] header, long hash, byte[] csd0, byte[] csd1,
+                        int nalLengthSize, int sampleRate, int channelCount) {
+        this.mimeType = mimeType;
+        this.header = header;
+        this.hash = hash;
+        this.csd0 = csd0;
+        this.csd1 = csd1;
+        this.nalLengthSize = nalLengthSize;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * 64-bit FNV-1a of the bytes between position and limit.
+     */
+    static long hash(ByteBuffer buffer) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            h ^= buffer.get(i) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Parses a sequence header given between position and limit of {@code header},
+     * leaving the buffer as it is.
+     *
+     * @return The configuration, or null if the codec has none or the header is malformed.
+     */
+    @Nullable
+    public static CodecConfig parse(String mimeType, ByteBuffer header) {
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            return parseAvcC(header);
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)) {
+            return parseHvcC(header);
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mimeType)) {
+            return parseAudioSpecificConfig(header);
+        }
+        return null;
+    }
+
+    private static byte[] copyOf(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    private static int u8(ByteBuffer buffer, int pos) {
+        return buffer.get(pos) & 0xFF;
+    }
+
+    private static int u16(ByteBuffer buffer, int pos) {
+        return (u8(buffer, pos) << 8) | u8(buffer, pos + 1);
+    }
+
+    /**
+     * Appends {@code count} NAL units, each with a 16-bit length, behind start codes.
+     *
+     * @return Position after the last unit, or -1 if the buffer ends early.
+     */
+    private static int readParameterSets(ByteBuffer buffer, int pos, int count, ByteArrayOutputStream out) {
+        int end = buffer.limit();
+        for (int i = 0; i < count; i++) {
+            if (end - pos < 2) {
+                return -1;
+            }
+            int size = u16(buffer, pos);
+            pos += 2;
+            if (end - pos < size) {
+                return -1;
+            }
+            out.write(START_CODE, 0, START_CODE.length);
+            for (int j = 0; j < size; j++) {
+                out.write(buffer.get(pos + j));
+            }
+            pos += size;
+        }
+        return pos;
+    }
+
+    // ISO/IEC 14496-15 5.3.3.1 AVCDecoderConfigurationRecord
+    private static CodecConfig parseAvcC(ByteBuffer buffer) {
+        int pos = buffer.position();
+        if (buffer.limit() - pos < 7 || u8(buffer, pos) != 1) {
+            return null;
+        }
+        int nalLengthSize = (u8(buffer, pos + 4) & 0x3) + 1;
+
+        ByteArrayOutputStream sps = new ByteArrayOutputStream();
+        pos = readParameterSets(buffer, pos + 6, u8(buffer, pos + 5) & 0x1F, sps);
+        if (pos < 0 || pos >= buffer.limit()) {
+            return null;
+        }
+        ByteArrayOutputStream pps = new ByteArrayOutputStream();
+        pos = readParameterSets(buffer, pos + 1, u8(buffer, pos), pps);
+        if (pos < 0 || sps.size() == 0 || pps.size() == 0) {
+            return null;
+        }
+        return new CodecConfig(MediaFormat.MIMETYPE_VIDEO_AVC, copyOf(buffer), hash(buffer),
+                sps.toByteArray(), pps.toByteArray(), nalLengthSize, C.NO_VALUE, C.NO_VALUE);
+    }
+
+    // ISO/IEC 14496-15 8.3.3.1 HEVCDecoderConfigurationRecord
+    private static CodecConfig parseHvcC(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int end = buffer.limit();
+        if (end - pos < 23 || u8(buffer, pos) != 1) {
+            return null;
+        }
+        int nalLengthSize = (u8(buffer, pos + 21) & 0x3) + 1;
+        int arrays = u8(buffer, pos + 22);
+        pos += 23;
+
+        // MediaCodec takes VPS, SPS and PPS together in csd-0, in that order
+        ByteArrayOutputStream[] sets = {
+                new ByteArrayOutputStream(), new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+        ByteArrayOutputStream skipped = new ByteArrayOutputStream();
+        for (int i = 0; i < arrays; i++) {
+            if (end - pos < 3) {
+                return null;
+            }
+            int nalType = u8(buffer, pos) & 0x3F;
+            int count = u16(buffer, pos + 1);
+            ByteArrayOutputStream out = nalType >= HEVC_NAL_VPS && nalType <= HEVC_NAL_PPS
+                    ? sets[nalType - HEVC_NAL_VPS] : skipped;
+            pos = readParameterSets(buffer, pos + 3, count, out);
+            if (pos < 0) {
+                return null;
+            }
+        }
+        if (sets[0].size() == 0 || sets[1].size() == 0 || sets[2].size() == 0) {
+            return null;
+        }
+
+        ByteArrayOutputStream csd = new ByteArrayOutputStream();
+        for (ByteArrayOutputStream set : sets) {
+            csd.write(set.toByteArray(), 0, set.size());
+        }
+        return new CodecConfig(MediaFormat.MIMETYPE_VIDEO_HEVC, copyOf(buffer), hash(buffer),
+                csd.toByteArray(), null, nalLengthSize, C.NO_VALUE, C.NO_VALUE);
+    }
+
+    // ISO/IEC 14496-3 1.6.2.1 AudioSpecificConfig, up to the channel configuration
+    private static CodecConfig parseAudioSpecificConfig(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int bits = (buffer.limit() - pos) * 8;
+        if (bits < 16) {
+            return null;
+        }
+
+        int bit = 0;
+        int objectType = readBits(buffer, pos, bit, 5);
+        bit += 5;
+        if (objectType == 31) {
+            bit += 6;
+        }
+        if (bit + 4 > bits) {
+            return null;
+        }
+        int frequencyIndex = readBits(buffer, pos, bit, 4);
+        bit += 4;
+        int sampleRate;
+        if (frequencyIndex == 0xF) {
+            if (bit + 24 > bits) {
+                return null;
+            }
+            sampleRate = readBits(buffer, pos, bit, 24);
+            bit += 24;
+        } else if (frequencyIndex < AAC_SAMPLE_RATES.length) {
+            sampleRate = AAC_SAMPLE_RATES[frequencyIndex];
+        } else {
+            return null;
+        }
+        if (bit + 4 > bits) {
+            return null;
+        }
+        int channelConfig = readBits(buffer, pos, bit, 4);
+        // 7 stands for 7.1, 0 leaves the layout to a program config element
+        int channelCount = channelConfig == 7 ? 8 : channelConfig;
+
+        byte[] asc = copyOf(buffer);
+        return new CodecConfig(MediaFormat.MIMETYPE_AUDIO_AAC, asc, hash(buffer),
+                asc, null, C.NO_VALUE, sampleRate, channelCount);
+    }
+
+    private static int readBits(ByteBuffer buffer, int pos, int bit, int count) {
+        int value = 0;
+        for (int i = bit; i < bit + count; i++) {
+            int b = buffer.get(pos + (i >> 3)) >> (7 - (i & 7));
+            value = (value << 1) | (b & 1);
+        }
+        return value;
+    }
+
+    /**
+     * @return true if {@code header} holds the same bytes this config was parsed from.
+     */
+    boolean matches(ByteBuffer header) {
+        if (header.remaining() != this.header.length || hash(header) != hash) {
+            return false;
+        }
+        for (int i = 0; i < this.header.length; i++) {
+            if (header.get(header.position() + i) != this.header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if both configs come from identical headers, so a decoder set up for one
+     * can go on with the other.
+     */
+    public boolean isSameAs(@Nullable CodecConfig other) {
+        return other != null
+                && (other == this || (other.hash == hash && Arrays.equals(other.header, header)));
+    }
+
+    /**
+     * Sets csd-0, csd-1 and, for audio, sample rate and channel count.
+     */
+    public void applyTo(@NonNull MediaFormat format) {
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(csd0));
+        if (csd1 != null) {
+            format.setByteBuffer("csd-1", ByteBuffer.wrap(csd1));
+        }
+        if (sampleRate > 0) {
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        }
+        if (channelCount > 0) {
+            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+        }
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return Content hash of the sequence header.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The sequence header as received. Shared by the config, so it must not be modified.
+     */
+    public byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return SPS for H.264, VPS, SPS and PPS for H.265, the AudioSpecificConfig for AAC.
+     */
+    public byte[] getCsd0() {
+        return csd0;
+    }
+
+    /**
+     * @return PPS for H.264, null otherwise.
+     */
+    @Nullable
+    public byte[] getCsd1() {
+        return csd1;
+    }
+
+    /**
+     * @return Size of the NAL unit length prefix in frames, or {@link C#NO_VALUE} for audio.
+     */
+    public int getNalLengthSize() {
+        return nalLengthSize;
+    }
+
+    /**
+     * @return Sample rate in Hz, or {@link C#NO_VALUE} for video.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return Channel count, 0 if given by a program config element, or {@link C#NO_VALUE} for video.
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+}
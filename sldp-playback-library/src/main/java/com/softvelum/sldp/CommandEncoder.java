@@ -0,0 +1,207 @@
+package com.softvelum.sldp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds SLDP commands and writes them as masked WebSocket frames straight into the
+ * outbound buffer. The JSON payload is assembled in a reusable array, so encoding a
+ * command does not allocate once the array has grown to the largest command sent.
+ */
+final class CommandEncoder {
+
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private byte[] payload = new byte[256];
+    private int length;
+    private int elements;
+    private long seed;
+
+    /**
+     * @param seed Seed of the masking key generator, must not be 0.
+     */
+    CommandEncoder(long seed) {
+        this.seed = seed != 0 ? seed : 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Masking keys from a xorshift64* generator. RFC 6455 only asks that the proxy in
+     * between cannot predict them, which rules out a fixed key but not a fast generator.
+     */
+    int nextMask() {
+        long x = seed;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        seed = x;
+        return (int) ((x * 0x2545F4914F6CDD1DL) >>> 32);
+    }
+
+    void beginCommand(String command) {
+        length = 0;
+        elements = 0;
+        writeAscii("{\"command\":\"");
+        writeAscii(command);
+        writeAscii("\", \"streams\":[");
+    }
+
+    void addPlay(String stream, boolean video, int sn, int offsetMs, int duration, boolean steady) {
+        beginElement();
+        writeAscii("{\"stream\":");
+        writeString(stream);
+        writeAscii(video ? ",\"type\":\"video\",\"sn\":\"" : ",\"type\":\"audio\",\"sn\":\"");
+        writeInt(sn);
+        writeAscii("\",\"offsetMs\":\"");
+        writeInt(offsetMs);
+        writeAscii("\",\"duration\":\"");
+        writeInt(duration);
+        writeAscii(steady ? "\",\"steady\":true}" : "\"}");
+    }
+
+    void addCancel(int sn) {
+        beginElement();
+        write('"');
+        writeInt(sn);
+        write('"');
+    }
+
+    void endCommand() {
+        writeAscii("]}");
+    }
+
+    int getElementCount() {
+        return elements;
+    }
+
+    /**
+     * @return Size of the frame carrying the current command.
+     */
+    int getFrameLength() {
+        return getFrameLength(length);
+    }
+
+    static int getFrameLength(int payloadLength) {
+        int header = payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+        return header + 4 + payloadLength;
+    }
+
+    /**
+     * Writes the current command as a masked text frame.
+     */
+    void encode(ByteBuffer dst) {
+        int mask = writeHeader(dst, 0x1, length);
+        for (int i = 0; i < length; i++) {
+            dst.put((byte) (payload[i] ^ (mask >>> (24 - 8 * (i & 3)))));
+        }
+    }
+
+    /**
+     * Writes a masked control frame echoing {@code data} between its position and limit.
+     */
+    void encodeControl(ByteBuffer dst, int opcode, ByteBuffer data) {
+        int count = data.remaining();
+        int mask = writeHeader(dst, opcode, count);
+        for (int i = 0; i < count; i++) {
+            dst.put((byte) (data.get(data.position() + i) ^ (mask >>> (24 - 8 * (i & 3)))));
+        }
+    }
+
+    private int writeHeader(ByteBuffer dst, int opcode, int payloadLength) {
+        dst.put((byte) (0x80 | opcode));
+        if (payloadLength < 126) {
+            dst.put((byte) (0x80 | payloadLength));
+        } else if (payloadLength <= 0xFFFF) {
+            dst.put((byte) (0x80 | 126));
+            dst.putShort((short) payloadLength);
+        } else {
+            dst.put((byte) (0x80 | 127));
+            dst.putLong(payloadLength);
+        }
+        int mask = nextMask();
+        dst.putInt(mask);
+        return mask;
+    }
+
+    private void beginElement() {
+        if (elements++ > 0) {
+            write(',');
+        }
+    }
+
+    private void ensure(int count) {
+        if (length + count > payload.length) {
+            byte[] res = new byte[Math.max(payload.length * 2, length + count)];
+            System.arraycopy(payload, 0, res, 0, length);
+            payload = res;
+        }
+    }
+
+    private void write(int b) {
+        ensure(1);
+        payload[length++] = (byte) b;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            payload[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeInt(int value) {
+        ensure(11);
+        if (value < 0) {
+            payload[length++] = '-';
+            if (value == Integer.MIN_VALUE) {
+                writeAscii("2147483648");
+                return;
+            }
+            value = -value;
+        }
+        int start = length;
+        do {
+            payload[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = payload[i];
+            payload[i] = payload[j];
+            payload[j] = b;
+        }
+    }
+
+    /**
+     * Writes a quoted JSON string in UTF-8.
+     */
+    private void writeString(String s) {
+        write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c < 0x20) {
+                writeAscii("\\u00");
+                write(HEX[c >> 4]);
+                write(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xC0 | (c >> 6));
+                write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                write(0xF0 | (cp >> 18));
+                write(0x80 | ((cp >> 12) & 0x3F));
+                write(0x80 | ((cp >> 6) & 0x3F));
+                write(0x80 | (cp & 0x3F));
+            } else {
+                write(0xE0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3F));
+                write(0x80 | (c & 0x3F));
+            }
+        }
+        write('"');
+    }
+}
@@ -19,7 +19,8 @@ public abstract class Connection {
         SETUP,
         PLAY,
         DISCONNECTED,
-        STEADY_SUPPORT_CHECK
+        STEADY_SUPPORT_CHECK,
+        RECONNECTING
     }
 
     public enum Status {
@@ -0,0 +1,79 @@
+package com.softvelum.sldp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Metadata of the frames held by a {@link StreamBuffer}, one entry per ring slot in parallel
+ * primitive arrays, so storing a frame allocates nothing but its payload and scans such as
+ * GOP eviction touch only the columns they need. Written by the buffer's writer thread only,
+ * under its write lock; readers validate what they read, so they may see a slot being set.
+ */
+final class FrameTable {
+    static final int FLAG_KEY_FRAME = 1;
+    // H.264/H.265 frame stored as received, with a length before each NAL unit
+    static final int FLAG_LENGTH_PREFIXED = 2;
+
+    final long[] dts;
+    final int[] offsets;
+    // conversion of the stream timescale to microseconds, shared by the frames of a stream
+    final Timestamp.Rescaler[] clocks;
+    final int[] sizes;
+    final byte[] flags;
+    // heap payload, or null if the payload is at slabPositions in the slab
+    final byte[][] payloads;
+    final long[] slabPositions;
+    // payloads copied out by BufferItem.getData(), shared by the views of a frame; filled by
+    // readers, so each copy names its frame and is ignored once the slot holds another
+    final AtomicReferenceArray<Copy> copies;
+
+    static final class Copy {
+        final long index;
+        final byte[] data;
+
+        Copy(long index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    FrameTable(int capacity) {
+        dts = new long[capacity];
+        offsets = new int[capacity];
+        clocks = new Timestamp.Rescaler[capacity];
+        sizes = new int[capacity];
+        flags = new byte[capacity];
+        payloads = new byte[capacity][];
+        slabPositions = new long[capacity];
+        copies = new AtomicReferenceArray<>(capacity);
+    }
+
+    void set(int slot, long dts, int offset, Timestamp.Rescaler clock, int flags,
+             byte[] payload, long slabPosition, int size) {
+        this.dts[slot] = dts;
+        this.offsets[slot] = offset;
+        this.clocks[slot] = clock;
+        this.flags[slot] = (byte) flags;
+        this.payloads[slot] = payload;
+        this.slabPositions[slot] = slabPosition;
+        this.sizes[slot] = size;
+        copies.set(slot, null);
+    }
+
+    boolean isKeyFrame(int slot) {
+        return (flags[slot] & FLAG_KEY_FRAME) != 0;
+    }
+
+    boolean isLengthPrefixed(int slot) {
+        return (flags[slot] & FLAG_LENGTH_PREFIXED) != 0;
+    }
+
+    long getDtsUs(int slot) {
+        Timestamp.Rescaler clock = clocks[slot];
+        return clock != null ? clock.rescale(dts[slot]) : C.NO_VALUE;
+    }
+
+    long getPtsUs(int slot) {
+        Timestamp.Rescaler clock = clocks[slot];
+        return clock != null ? clock.rescale(dts[slot] + offsets[slot]) : C.NO_VALUE;
+    }
+}
@@ -0,0 +1,214 @@
+package com.softvelum.sldp;
+
+import android.util.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Resolves host names off the selector thread and keeps the answers for a bounded time.
+ * Concurrent lookups of the same host share a single query.
+ */
+public class HostResolver {
+    private static final String TAG = "HostResolver";
+
+    private static final long DEFAULT_TTL_MS = 60_000;
+    private static final int MAX_LOOKUP_THREADS = 4;
+    private static final int MAX_QUEUED_LOOKUPS = 256;
+
+    /**
+     * Blocking name lookup, replaceable so tests can answer from a local table.
+     */
+    public interface Resolver {
+        @NonNull
+        InetAddress[] resolve(@NonNull String host) throws UnknownHostException;
+    }
+
+    public interface Callback {
+        void onResolved(@NonNull InetAddress[] addresses);
+
+        void onFailed(@NonNull Exception e);
+    }
+
+    private static final HostResolver DEFAULT = new HostResolver(InetAddress::getAllByName, DEFAULT_TTL_MS);
+
+    @NonNull
+    public static HostResolver getDefault() {
+        return DEFAULT;
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Resolver resolver;
+    private final long ttlMs;
+    private final Map<String, Entry> cache = new HashMap<>();
+    private final Map<String, List<Callback>> pending = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    public HostResolver(@NonNull Resolver resolver, long ttlMs) {
+        this.resolver = resolver;
+        this.ttlMs = ttlMs;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_LOOKUPS),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "SldpResolver-" + threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Nullable
+    public synchronized InetAddress[] getCached(@NonNull String host) {
+        Entry entry = cache.get(host);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            cache.remove(host);
+            return null;
+        }
+        return entry.addresses;
+    }
+
+    /**
+     * Resolves synchronously on the calling thread, going through the cache.
+     */
+    @NonNull
+    public InetAddress[] resolveNow(@NonNull String host) throws UnknownHostException {
+        InetAddress[] addresses = getCached(host);
+        if (addresses != null) {
+            return addresses;
+        }
+        addresses = resolver.resolve(host);
+        put(host, addresses);
+        return addresses;
+    }
+
+    /**
+     * Resolves asynchronously. A cached answer is delivered on the calling thread,
+     * otherwise the callback runs on a resolver thread.
+     */
+    public void resolve(@NonNull final String host, @NonNull Callback callback) {
+        InetAddress[] cached = getCached(host);
+        if (cached != null) {
+            callback.onResolved(cached);
+            return;
+        }
+
+        synchronized (this) {
+            List<Callback> waiting = pending.get(host);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            pending.put(host, waiting);
+        }
+
+        try {
+            executor.execute(() -> lookup(host));
+        } catch (RejectedExecutionException e) {
+            complete(host, null, e);
+        }
+    }
+
+    private void lookup(String host) {
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            if (addresses.length == 0) {
+                throw new UnknownHostException(host);
+            }
+            put(host, addresses);
+            complete(host, addresses, null);
+        } catch (Exception e) {
+            Log.w(TAG, "failed to resolve " + host);
+            complete(host, null, e);
+        }
+    }
+
+    private synchronized void put(String host, InetAddress[] addresses) {
+        cache.put(host, new Entry(addresses, System.currentTimeMillis() + ttlMs));
+    }
+
+    private void complete(String host, InetAddress[] addresses, Exception error) {
+        List<Callback> waiting;
+        synchronized (this) {
+            waiting = pending.remove(host);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (Callback callback : waiting) {
+            if (addresses != null) {
+                callback.onResolved(addresses);
+            } else {
+                callback.onFailed(error);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Orders addresses for connection racing: families alternate, starting with
+     * the family the resolver returned first (RFC 8305, section 4).
+     */
+    @NonNull
+    public static InetAddress[] interleave(@NonNull InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                v6.add(address);
+            } else {
+                v4.add(address);
+            }
+        }
+
+        List<InetAddress> first = addresses[0] instanceof Inet6Address ? v6 : v4;
+        List<InetAddress> second = first == v6 ? v4 : v6;
+
+        InetAddress[] res = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                res[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                res[n++] = second.get(i);
+            }
+        }
+        return res;
+    }
+}
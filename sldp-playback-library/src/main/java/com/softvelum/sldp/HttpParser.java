@@ -1,9 +1,13 @@
 package com.softvelum.sldp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Incremental parser of an HTTP response head. Input may arrive in arbitrary pieces,
+ * complete lines are consumed and a partial line is left in place and not scanned again.
+ */
 public class HttpParser {
 
     enum HttpParserState {
@@ -13,8 +17,7 @@ public class HttpParser {
         BODY
     }
 
-    private static final Pattern STATUS_LINE_PATTERN = Pattern.compile("HTTP\\/1.\\d\\s+(\\d\\d\\d)\\s+(.+)");
-    private static final Pattern HDR_LINE_PATTERN = Pattern.compile("(\\S+):\\s?+(.*)");
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
 
     private int mStatusCode;
     private String mStatusText;
@@ -25,6 +28,10 @@ public class HttpParser {
     private String mContentType;
     private int mIcyMetaInt;
 
+    // bytes of the current line already searched for CRLF
+    private int mScanned;
+    private byte[] mLine = new byte[256];
+
     public boolean getComplete() {
         return mComplete;
     }
@@ -37,6 +44,10 @@ public class HttpParser {
         return mStatusText;
     }
 
+    /**
+     * @return Parameter of a WWW-Authenticate challenge, e.g. "WWW-Authenticate-Digest-Realm",
+     * the only headers the parser keeps.
+     */
     String getHeader(String name) {
         return mHdr.get(name.toUpperCase());
     }
@@ -49,34 +60,145 @@ public class HttpParser {
         return mContentType;
     }
 
-    private boolean parseStatusLine(String s) {
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
 
-        Matcher m = STATUS_LINE_PATTERN.matcher(s);
-        if (!m.find()) {
+    private static boolean startsWith(byte[] line, int len, String prefix) {
+        if (len < prefix.length()) {
             return false;
         }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        mStatusCode = Integer.parseInt(m.group(1));
-        mStatusText = m.group(2);
-
+    private static boolean equalsIgnoreCase(byte[] line, int offset, int len, String s) {
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            int c = line[offset + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != s.charAt(i)) {
+                return false;
+            }
+        }
         return true;
     }
 
-    private boolean parseHdrLine(String s) {
+    /**
+     * @return Value of the decimal number, or -1 if it is empty, malformed or does not fit an int.
+     */
+    private static int parseInt(byte[] line, int offset, int len) {
+        if (len == 0 || len > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = offset; i < offset + len; i++) {
+            if (!isDigit(line[i])) {
+                return -1;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    private static String ascii(byte[] line, int offset, int len) {
+        return new String(line, offset, len, StandardCharsets.US_ASCII);
+    }
+
+    // HTTP/1.x <code> <text> or ICY <code> <text>
+    private boolean parseStatusLine(byte[] line, int len) {
+        int pos;
+        if (startsWith(line, len, "HTTP/1.") && len > 7 && isDigit(line[7])) {
+            pos = 8;
+        } else if (startsWith(line, len, "ICY")) {
+            pos = 3;
+        } else {
+            return false;
+        }
+
+        if (pos >= len || !isSpace(line[pos])) {
+            return false;
+        }
+        while (pos < len && isSpace(line[pos])) {
+            pos++;
+        }
+
+        if (pos + 3 > len) {
+            return false;
+        }
+        int code = parseInt(line, pos, 3);
+        if (code < 0) {
+            return false;
+        }
+        pos += 3;
+        if (pos < len && !isSpace(line[pos])) {
+            return false;
+        }
+        while (pos < len && isSpace(line[pos])) {
+            pos++;
+        }
+
+        mStatusCode = code;
+        mStatusText = ascii(line, pos, len - pos);
+        return true;
+    }
 
-        Matcher m = HDR_LINE_PATTERN.matcher(s);
-        if (!m.find()) {
+    private boolean parseHdrLine(byte[] line, int len) {
+        int colon = -1;
+        for (int i = 0; i < len; i++) {
+            if (line[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= 0) {
             return false;
         }
 
-        String name = m.group(1).trim();
-        String value = m.group(2).trim();
+        int nameEnd = colon;
+        while (nameEnd > 0 && isSpace(line[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        int valueEnd = len;
+        while (valueStart < valueEnd && isSpace(line[valueStart])) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isSpace(line[valueEnd - 1])) {
+            valueEnd--;
+        }
+        int valueLen = valueEnd - valueStart;
+
+        if (equalsIgnoreCase(line, 0, nameEnd, "content-length")) {
+            mContentLength = parseInt(line, valueStart, valueLen);
+            if (mContentLength < 0) {
+                return false;
+            }
+
+        } else if (equalsIgnoreCase(line, 0, nameEnd, "icy-metaint")) {
+            mIcyMetaInt = parseInt(line, valueStart, valueLen);
+            if (mIcyMetaInt < 0) {
+                return false;
+            }
 
-        if (name.equalsIgnoreCase("Content-length")) {
-            mContentLength = Integer.parseInt(value);
+        } else if (equalsIgnoreCase(line, 0, nameEnd, "content-type")) {
+            mContentType = ascii(line, valueStart, valueLen);
 
-        } else if (name.equalsIgnoreCase("WWW-Authenticate")) {
+        } else if (equalsIgnoreCase(line, 0, nameEnd, "www-authenticate")) {
             // <scheme> <key>="<value>",<key>="<value>",...,<key>="<value>"
+            String value = ascii(line, valueStart, valueLen);
             int pos = value.indexOf(" ");
             if (pos != -1) {
                 String authScheme = value.substring(0, pos);
@@ -85,23 +207,10 @@ public class HttpParser {
                     parseAuth("WWW-Authenticate-Digest", authParams);
                 } else if (authScheme.equalsIgnoreCase("Basic")) {
                     parseAuth("WWW-Authenticate-Basic", authParams);
-                } else {
-                    return true;
                 }
             }
-
-        } else if (name.equalsIgnoreCase("content-type")) {
-            mContentType = value;
-
-        } else if (name.equalsIgnoreCase("icy-metaint")) {
-            try {
-                mIcyMetaInt = Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                return false;
-            }
         }
-
-        mHdr.put(name.toUpperCase(), value);
+        // other headers are not used by the handshake and are skipped without copying
 
         return true;
     }
@@ -126,44 +235,68 @@ public class HttpParser {
         }
     }
 
-    private int getLine(byte[] buffer, int offset, int len, StringBuilder line) {
-        boolean cr = false;
-
-        for (int i = offset; i < len; i++) {
-
-            if (cr && buffer[i] == '\n') {
-                return line.length() + 2;
+    /**
+     * Looks for the end of the line starting at {@code offset}, resuming where the previous call stopped.
+     *
+     * @return Length of the line including CRLF, 0 if it is incomplete or -1 if it is too long.
+     */
+    private int getLine(ByteBuffer buffer, int offset) {
+        int limit = buffer.limit();
+        for (int i = offset + mScanned; i < limit; i++) {
+            if (buffer.get(i) == '\n' && i > offset && buffer.get(i - 1) == '\r') {
+                mScanned = 0;
+                return i + 1 - offset;
             }
+        }
+        mScanned = limit - offset;
+        return mScanned > MAX_LINE_LENGTH ? -1 : 0;
+    }
 
-            cr = false;
-            if (buffer[i] == '\r') {
-                cr = true;
-            } else {
-                line.append((char) buffer[i]);
-            }
+    /**
+     * Copies a line without its CRLF into the reusable line buffer.
+     */
+    private int copyLine(ByteBuffer buffer, int offset, int length) {
+        int len = length - 2;
+        if (mLine.length < len) {
+            mLine = new byte[Math.max(len, mLine.length * 2)];
+        }
+        for (int i = 0; i < len; i++) {
+            mLine[i] = buffer.get(offset + i);
         }
-        return -1;
+        return len;
     }
 
-    private boolean isHttp(byte[] buffer, int offset) {
-        return buffer[offset] == 'H'
-                && buffer[offset + 1] == 'T'
-                && buffer[offset + 2] == 'T'
-                && buffer[offset + 3] == 'P';
+    private boolean isHttp(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) == 'H'
+                && buffer.get(offset + 1) == 'T'
+                && buffer.get(offset + 2) == 'T'
+                && buffer.get(offset + 3) == 'P';
     }
 
-    private boolean isShoutCast(byte[] buffer, int offset) {
-        return buffer[offset] == 'I'
-                && buffer[offset + 1] == 'C'
-                && buffer[offset + 2] == 'Y';
+    private boolean isShoutCast(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) == 'I'
+                && buffer.get(offset + 1) == 'C'
+                && buffer.get(offset + 2) == 'Y';
     }
 
     public int parse(byte[] buffer, int len) {
-        int offset = 0;
+        return parse(ByteBuffer.wrap(buffer, 0, len));
+    }
+
+    /**
+     * Parses the bytes between position and limit of the buffer without moving its position.
+     * The caller drops the consumed bytes and passes the rest again along with newly received data.
+     *
+     * @return Number of bytes consumed, or -1 if the response is malformed.
+     */
+    public int parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        int offset = start;
 
-        while (len > 0) {
+        while (offset < buffer.limit()) {
 
             int parsed;
+            int len;
 
             switch (mState) {
                 case INTERLEAVED:
@@ -171,26 +304,27 @@ public class HttpParser {
                     mStatusText = "";
                     mHdr.clear();
                     mContentLength = 0;
+                    mScanned = 0;
 
-                    if (len < 4) {
-                        return 0;
+                    if (buffer.limit() - offset < 4) {
+                        return offset - start;
                     } else if (isHttp(buffer, offset) || isShoutCast(buffer, offset)) {
                         mState = HttpParserState.STATUS_LINE;
                     } else {
-                        return offset;
+                        return offset - start;
                     }
                     break;
 
                 case STATUS_LINE:
-                    StringBuilder status_line = new StringBuilder();
-                    parsed = getLine(buffer, offset, len, status_line);
-                    if (-1 == parsed) {
+                    parsed = getLine(buffer, offset);
+                    if (parsed <= 0) {
                         // no crlf found
-                        return offset;
+                        return parsed < 0 ? -1 : offset - start;
                     }
+                    len = copyLine(buffer, offset, parsed);
                     offset += parsed;
 
-                    if (!parseStatusLine(status_line.toString())) {
+                    if (!parseStatusLine(mLine, len)) {
                         mState = HttpParserState.INTERLEAVED;
                         return -1;
                     }
@@ -198,16 +332,16 @@ public class HttpParser {
                     break;
 
                 case HDR_LINE:
-                    StringBuilder hdrLine = new StringBuilder();
-                    parsed = getLine(buffer, offset, len, hdrLine);
-                    if (parsed == -1) {
+                    parsed = getLine(buffer, offset);
+                    if (parsed <= 0) {
                         // no crlf found
-                        return offset;
+                        return parsed < 0 ? -1 : offset - start;
                     }
+                    len = copyLine(buffer, offset, parsed);
                     offset += parsed;
 
-                    if (hdrLine.length() > 0) {
-                        if (!parseHdrLine(hdrLine.toString())) {
+                    if (len > 0) {
+                        if (!parseHdrLine(mLine, len)) {
                             mState = HttpParserState.INTERLEAVED;
                             return -1;
                         }
@@ -218,15 +352,15 @@ public class HttpParser {
                         } else {
                             mComplete = true;
                             mState = HttpParserState.INTERLEAVED;
-                            return offset;
+                            return offset - start;
                         }
                     }
                     break;
 
                 case BODY:
-                    if (len < mContentLength) {
+                    if (buffer.limit() - offset < mContentLength) {
                         // wait for the whole body
-                        return offset;
+                        return offset - start;
                     }
 
                     // TBD process body
@@ -234,14 +368,14 @@ public class HttpParser {
                     offset += mContentLength;
                     mComplete = true;
                     mState = HttpParserState.INTERLEAVED;
-                    return offset;
+                    return offset - start;
 
                 default:
                     break;
             }
 
         }
-        return 0;
+        return offset - start;
     }
 
 }
@@ -0,0 +1,443 @@
+package com.softvelum.sldp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal pull reader for the JSON control messages of SLDP. It reads straight from the
+ * frame payload, between its position and limit, and builds no object tree. Names are
+ * matched against known keys without creating strings, only values asked for as strings
+ * are materialized.
+ */
+final class JsonReader {
+
+    enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private static final int MAX_DEPTH = 32;
+    private static final String[] NO_NAMES = new String[0];
+
+    private ByteBuffer buffer;
+    private int pos;
+    private int limit;
+
+    // per nesting level: whether it is an object and whether it already has a member
+    private final boolean[] objects = new boolean[MAX_DEPTH];
+    private final boolean[] nonEmpty = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean expectValue;
+    private boolean separated;
+
+    private byte[] scratch = new byte[64];
+
+    /**
+     * Starts reading a new document, so one reader can serve every message of a connection.
+     */
+    JsonReader reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pos = buffer.position();
+        this.limit = buffer.limit();
+        depth = 0;
+        expectValue = false;
+        separated = false;
+        return this;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at " + (pos - buffer.position()));
+    }
+
+    private int skipWhitespace() {
+        while (pos < limit) {
+            int c = buffer.get(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return c;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves past the separator in front of the next member or element.
+     */
+    private int beforeNext() throws IOException {
+        int c = skipWhitespace();
+        if (expectValue || depth == 0) {
+            return c;
+        }
+        if (c == '}' || c == ']') {
+            return c;
+        }
+        if (nonEmpty[depth - 1] && !separated) {
+            if (c != ',') {
+                throw syntaxError("expected ','");
+            }
+            pos++;
+            separated = true;
+            c = skipWhitespace();
+        }
+        return c;
+    }
+
+    Token peek() throws IOException {
+        int c = beforeNext();
+        switch (c) {
+            case -1:
+                return Token.END_DOCUMENT;
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '}':
+                return Token.END_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case ']':
+                return Token.END_ARRAY;
+            case '"':
+                return !expectValue && depth > 0 && objects[depth - 1] ? Token.NAME : Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw syntaxError("unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void open(boolean object) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw syntaxError("nesting too deep");
+        }
+        beforeValue();
+        pos++;
+        objects[depth] = object;
+        nonEmpty[depth] = false;
+        depth++;
+    }
+
+    private void close(char c) throws IOException {
+        if (skipWhitespace() != c || depth == 0 || expectValue) {
+            throw syntaxError("expected '" + c + "'");
+        }
+        pos++;
+        depth--;
+        separated = false;
+    }
+
+    /**
+     * Marks the start of a value, consuming the separator in front of an array element.
+     */
+    private void beforeValue() throws IOException {
+        if (expectValue) {
+            expectValue = false;
+            return;
+        }
+        beforeNext();
+        separated = false;
+        if (depth > 0) {
+            if (objects[depth - 1]) {
+                throw syntaxError("expected a name");
+            }
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    void beginObject() throws IOException {
+        if (peek() != Token.BEGIN_OBJECT) {
+            throw syntaxError("expected an object");
+        }
+        open(true);
+    }
+
+    void endObject() throws IOException {
+        close('}');
+    }
+
+    void beginArray() throws IOException {
+        if (peek() != Token.BEGIN_ARRAY) {
+            throw syntaxError("expected an array");
+        }
+        open(false);
+    }
+
+    void endArray() throws IOException {
+        close(']');
+    }
+
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the next member name.
+     *
+     * @return Index of the name in {@code names}, or -1 if it is none of them.
+     */
+    int selectName(String[] names) throws IOException {
+        if (peek() != Token.NAME) {
+            throw syntaxError("expected a name");
+        }
+        nonEmpty[depth - 1] = true;
+        separated = false;
+        int start = ++pos;
+        int end = skipString();
+
+        int res = -1;
+        for (int i = 0; i < names.length && res < 0; i++) {
+            if (matches(start, end, names[i])) {
+                res = i;
+            }
+        }
+
+        if (skipWhitespace() != ':') {
+            throw syntaxError("expected ':'");
+        }
+        pos++;
+        expectValue = true;
+        return res;
+    }
+
+    private boolean matches(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (buffer.get(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves past the closing quote of a string whose opening quote was consumed.
+     *
+     * @return Index of the closing quote.
+     */
+    private int skipString() throws IOException {
+        while (pos < limit) {
+            byte b = buffer.get(pos++);
+            if (b == '"') {
+                return pos - 1;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw syntaxError("unterminated string");
+    }
+
+    /**
+     * Reads a string value, or the literal of a number or boolean.
+     *
+     * @return The value, or null for a JSON null.
+     */
+    String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.NULL) {
+            beforeValue();
+            skipLiteral();
+            return null;
+        }
+        if (token == Token.NUMBER || token == Token.BOOLEAN) {
+            beforeValue();
+            int start = pos;
+            skipLiteral();
+            return decode(start, pos, false);
+        }
+        if (token != Token.STRING) {
+            throw syntaxError("expected a string");
+        }
+        beforeValue();
+        int start = ++pos;
+        boolean escaped = false;
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\') {
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= limit) {
+            throw syntaxError("unterminated string");
+        }
+        String res = decode(start, pos, escaped);
+        pos++;
+        return res;
+    }
+
+    private String decode(int start, int end, boolean escaped) throws IOException {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer src = buffer.duplicate();
+        src.limit(end);
+        src.position(start);
+        src.get(scratch, 0, length);
+        String res = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        return escaped ? unescape(res) : res;
+    }
+
+    private String unescape(String s) throws IOException {
+        StringBuilder res = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                res.append(c);
+                continue;
+            }
+            if (++i == s.length()) {
+                throw syntaxError("bad escape");
+            }
+            c = s.charAt(i);
+            switch (c) {
+                case 'b':
+                    res.append('\b');
+                    break;
+                case 'f':
+                    res.append('\f');
+                    break;
+                case 'n':
+                    res.append('\n');
+                    break;
+                case 'r':
+                    res.append('\r');
+                    break;
+                case 't':
+                    res.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= s.length()) {
+                        throw syntaxError("bad escape");
+                    }
+                    try {
+                        res.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("bad escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    res.append(c);
+                    break;
+            }
+        }
+        return res.toString();
+    }
+
+    /**
+     * Reads a number, or a string holding one.
+     */
+    long nextLong() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            try {
+                return Long.parseLong(nextString().trim());
+            } catch (NumberFormatException e) {
+                throw syntaxError("expected a number");
+            }
+        }
+        if (token != Token.NUMBER) {
+            throw syntaxError("expected a number");
+        }
+        beforeValue();
+        int start = pos;
+        skipLiteral();
+
+        boolean negative = buffer.get(start) == '-';
+        long res = 0;
+        for (int i = negative ? start + 1 : start; i < pos; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || res > (Long.MAX_VALUE - digit) / 10) {
+                // fraction, exponent or overflow
+                try {
+                    return (long) Double.parseDouble(decode(start, pos, false));
+                } catch (NumberFormatException e) {
+                    throw syntaxError("malformed number");
+                }
+            }
+            res = res * 10 + digit;
+        }
+        return negative ? -res : res;
+    }
+
+    int nextInt() throws IOException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw syntaxError("number out of range");
+        }
+        return (int) value;
+    }
+
+    private void skipLiteral() {
+        while (pos < limit) {
+            int c = buffer.get(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Skips the next value, including everything nested in it.
+     */
+    void skipValue() throws IOException {
+        Token token = peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    selectName(NO_NAMES);
+                    skipValue();
+                }
+                endObject();
+                break;
+
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+
+            case STRING:
+                beforeValue();
+                pos++;
+                skipString();
+                break;
+
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                beforeValue();
+                skipLiteral();
+                break;
+
+            default:
+                throw syntaxError("expected a value");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.softvelum.sldp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Message indices and presentation times of the keyframes held by a {@link StreamBuffer},
+ * oldest first, in primitive arrays. Written by the buffer's writer thread only; readers
+ * check after each lookup that the entries they used were not recycled meanwhile.
+ */
+final class KeyFrameIndex {
+    private static final int MAX_CAPACITY = 1024;
+
+    private final AtomicLongArray indices;
+    private final AtomicLongArray ptsUs;
+    private final int mask;
+
+    // sequence numbers of the oldest entry and of the next one to write
+    private volatile long head;
+    private volatile long tail;
+
+    KeyFrameIndex(int maxItems) {
+        int capacity = Integer.highestOneBit(Math.max(1, Math.min(maxItems, MAX_CAPACITY) - 1)) << 1;
+        indices = new AtomicLongArray(capacity);
+        ptsUs = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+    }
+
+    void add(long index, long pts) {
+        long t = tail;
+        if (t - head > mask) {
+            // full, forget the oldest keyframe before its entry is reused
+            head = t - mask;
+        }
+        indices.set((int) (t & mask), index);
+        ptsUs.set((int) (t & mask), pts);
+        tail = t + 1;
+    }
+
+    /**
+     * Drops the entries of keyframes evicted from the buffer.
+     */
+    void evictBefore(long firstIndex) {
+        long h = head;
+        long t = tail;
+        while (h < t && indices.get((int) (h & mask)) < firstIndex) {
+            h++;
+        }
+        head = h;
+    }
+
+    void clear() {
+        head = tail;
+    }
+
+    /**
+     * @return Message index of the newest keyframe, or {@link C#NO_VALUE}.
+     */
+    long latest() {
+        while (true) {
+            long t = tail;
+            if (t == head) {
+                return C.NO_VALUE;
+            }
+            long index = indices.get((int) ((t - 1) & mask));
+            if (head <= t - 1) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @return Message index of the newest keyframe with a presentation time not after
+     * {@code pts}, the oldest keyframe if all are later, or {@link C#NO_VALUE} if there is none.
+     */
+    long atOrBefore(long pts) {
+        while (true) {
+            long h = head;
+            long t = tail;
+            if (h == t) {
+                return C.NO_VALUE;
+            }
+
+            long lo = h;
+            long hi = t - 1;
+            while (lo < hi) {
+                long mid = (lo + hi + 1) >>> 1;
+                if (ptsUs.get((int) (mid & mask)) <= pts) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            long index = indices.get((int) (lo & mask));
+            if (head <= h) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @return Message index of the first keyframe after {@code index}, or {@link C#NO_VALUE}.
+     */
+    long after(long index) {
+        while (true) {
+            long h = head;
+            long t = tail;
+
+            long lo = h;
+            long hi = t;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (indices.get((int) (mid & mask)) <= index) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            long res = lo < t ? indices.get((int) (lo & mask)) : C.NO_VALUE;
+            if (head <= h) {
+                return res;
+            }
+        }
+    }
+}
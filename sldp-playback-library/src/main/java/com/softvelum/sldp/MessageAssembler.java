@@ -0,0 +1,81 @@
+package com.softvelum.sldp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles fragmented WebSocket messages into a pooled buffer that grows on demand
+ * up to a fixed cap and goes back to the pool as soon as the message is consumed.
+ */
+class MessageAssembler {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final BufferPool pool;
+    private final Object owner;
+    private final int maxSize;
+    private ByteBuffer buffer;
+
+    MessageAssembler(BufferPool pool, Object owner, int maxSize) {
+        this.pool = pool;
+        this.owner = owner;
+        this.maxSize = maxSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int size() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Appends the remaining bytes of {@code src}.
+     *
+     * @return false if the message would exceed the size cap.
+     */
+    boolean append(ByteBuffer src) {
+        long needed = (long) size() + src.remaining();
+        if (needed > maxSize) {
+            return false;
+        }
+        if (buffer == null) {
+            buffer = pool.acquire(owner, (int) needed);
+        } else if (buffer.remaining() < src.remaining()) {
+            grow((int) needed);
+        }
+        buffer.put(src);
+        return true;
+    }
+
+    private void grow(int needed) {
+        int capacity = (int) Math.max(needed, Math.min(2L * buffer.capacity(), maxSize));
+        ByteBuffer res = pool.acquire(owner, capacity);
+        buffer.flip();
+        res.put(buffer);
+        pool.release(owner, buffer);
+        buffer = res;
+    }
+
+    /**
+     * @return The assembled message, valid until {@link #reset()}.
+     */
+    ByteBuffer message() {
+        if (buffer == null) {
+            return EMPTY.duplicate();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Drops the current message and returns its memory to the pool, so a single
+     * outlier does not keep a large buffer attached to the connection.
+     */
+    void reset() {
+        if (buffer != null) {
+            pool.release(owner, buffer);
+            buffer = null;
+        }
+    }
+}
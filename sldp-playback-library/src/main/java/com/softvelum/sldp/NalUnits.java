@@ -0,0 +1,105 @@
+package com.softvelum.sldp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264/H.265 access units as received over SLDP: NAL units each prefixed with a 4-byte
+ * big-endian length (AVCC). Frames are stored that way, consumers pick the layout they need.
+ * All methods use absolute reads and writes and do not allocate.
+ */
+public final class NalUnits {
+
+    public enum Format {
+        /**
+         * 4-byte length before each NAL unit, as in MP4 and FLV.
+         */
+        AVCC,
+        /**
+         * 4-byte start code before each NAL unit, as MediaCodec and MPEG-TS expect.
+         */
+        ANNEX_B
+    }
+
+    private static final int PREFIX_SIZE = 4;
+
+    private NalUnits() {
+    }
+
+    /**
+     * Reads a length prefix, which is big-endian whatever the byte order of the buffer.
+     */
+    private static int getLength(ByteBuffer frame, int pos) {
+        return (frame.get(pos) & 0xFF) << 24
+                | (frame.get(pos + 1) & 0xFF) << 16
+                | (frame.get(pos + 2) & 0xFF) << 8
+                | (frame.get(pos + 3) & 0xFF);
+    }
+
+    private static void putStartCode(ByteBuffer frame, int pos) {
+        frame.put(pos, (byte) 0);
+        frame.put(pos + 1, (byte) 0);
+        frame.put(pos + 2, (byte) 0);
+        frame.put(pos + 3, (byte) 1);
+    }
+
+    /**
+     * Walks the NAL units of the frame between position and limit of {@code frame}.
+     *
+     * @param bounds Receives offset and size of each NAL unit, without its length prefix,
+     *               relative to the position; may be null or shorter than needed to only count.
+     * @return Number of NAL units, or -1 if a length points past the end of the frame.
+     */
+    public static int walk(ByteBuffer frame, int[] bounds) {
+        int start = frame.position();
+        int end = frame.limit();
+        int pos = start;
+        int count = 0;
+        while (end - pos >= PREFIX_SIZE) {
+            int size = getLength(frame, pos);
+            pos += PREFIX_SIZE;
+            if (size < 0 || size > end - pos) {
+                return -1;
+            }
+            if (bounds != null && 2 * count + 1 < bounds.length) {
+                bounds[2 * count] = pos - start;
+                bounds[2 * count + 1] = size;
+            }
+            pos += size;
+            count++;
+        }
+        return pos == end ? count : -1;
+    }
+
+    /**
+     * Replaces the length prefixes of the frame with start codes, in place. Both are 4 bytes,
+     * so the frame keeps its size. Stops at the first length that points past the end.
+     */
+    public static void toAnnexB(ByteBuffer frame) {
+        toAnnexB(frame, frame.position(), frame.limit());
+    }
+
+    static void toAnnexB(ByteBuffer frame, int pos, int end) {
+        while (end - pos > PREFIX_SIZE) {
+            int size = getLength(frame, pos);
+            putStartCode(frame, pos);
+            if (size < 0 || size > end - pos - PREFIX_SIZE) {
+                break;
+            }
+            pos += size + PREFIX_SIZE;
+        }
+    }
+
+    /**
+     * Copies a length-prefixed frame to the position of {@code dst} in the given format and
+     * moves the position of {@code dst} past it. The position of {@code frame} is left as is.
+     */
+    public static void copy(ByteBuffer frame, ByteBuffer dst, Format format) {
+        int position = frame.position();
+        int start = dst.position();
+        dst.put(frame);
+        frame.position(position);
+        if (format == Format.ANNEX_B) {
+            toAnnexB(dst, start, dst.position());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.softvelum.sldp;
+
+import java.util.Random;
+
+/**
+ * Controls how {@link SldpConnection} re-establishes a dropped connection.
+ * Delays grow exponentially from {@link #initialDelayMs} up to {@link #maxDelayMs},
+ * and each one is shortened by a random fraction of up to {@link #jitter}
+ * so that many clients cut off by the same edge do not reconnect in lockstep.
+ */
+public class ReconnectPolicy {
+    /**
+     * Attempts per outage before giving up, 0 for no limit.
+     */
+    public int maxAttempts = 10;
+    public long initialDelayMs = 250;
+    public long maxDelayMs = 10_000;
+    public double multiplier = 2.0;
+    public double jitter = 0.5;
+    /**
+     * Upper bound for the offset requested when resuming, i.e. how much of the
+     * outage the server is asked to replay.
+     */
+    public int maxResumeOffsetMs = 10_000;
+
+    public boolean canRetry(int attempt) {
+        return maxAttempts <= 0 || attempt <= maxAttempts;
+    }
+
+    public long getDelayMs(int attempt, Random random) {
+        double delay = initialDelayMs * Math.pow(multiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, maxDelayMs);
+        return (long) (delay * (1.0 - jitter * random.nextDouble()));
+    }
+}
@@ -5,22 +5,19 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Size;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static com.softvelum.sldp.SldpConnection.FrameType.BINARY;
 import static com.softvelum.sldp.SldpConnection.FrameType.TEXT;
@@ -28,8 +25,21 @@ import static com.softvelum.sldp.SldpConnection.FrameType.UNKNOWN;
 import static com.softvelum.sldp.SldpConnection.SldpConnectionState.STATUS;
 
 public class SldpConnection extends TcpConnection {
+    private static final String TAG = "SldpConnection";
 
-    private static final Pattern RESOLUTION_PATTERN = Pattern.compile("(\\d+)x(\\d+)");
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_BUFFERED_FRAME_SIZE = 256 * 1024;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final long DEFAULT_PONG_TIMEOUT_MS = 1_000;
+    private static final long MIN_PONG_TIMEOUT_MS = 250;
+    // busy connections never go idle, probe them now and then to keep the RTT current
+    private static final long RTT_PROBE_INTERVAL_MS = 10_000;
+
+    private static final String[] MESSAGE_NAMES = {"command", "steady", "system", "info"};
+    private static final String[] INFO_NAMES = {"stream", "stream_info"};
+    private static final String[] STREAM_INFO_NAMES = {
+            "vcodec", "vtimescale", "resolution", "acodec", "atimescale", "bandwidth"};
 
     private static final int WEB_AAC_SEQUENCE_HEADER = 0;
     private static final int WEB_AAC_FRAME = 1;
@@ -77,15 +87,49 @@ public class SldpConnection extends TcpConnection {
     private final Map<Integer, StreamBuffer> streamIdMap = new HashMap<>();
     private final Map<Integer, StreamBuffer> streamSnMap = new HashMap<>();
 
-    private final HttpParser parser = new HttpParser();
+    private HttpParser parser = new HttpParser();
 
-    private final ByteBuffer frameBuffer = ByteBuffer.allocate(1024 * 1024);
+    private final MessageAssembler assembler;
+    private final byte[] upgradeRequest;
     private FrameType frameType = UNKNOWN;
+    private long payloadRemaining;
+    private boolean payloadFin;
+
+    private final ReconnectPolicy reconnectPolicy;
+    private final Random random = new Random();
+    private final CommandEncoder encoder = new CommandEncoder(ThreadLocalRandom.current().nextLong());
+
+    // play and cancel requests made since the last flush, sent together on the next loop iteration
+    private final List<PlayRequest> pendingPlays = new ArrayList<>();
+    private final List<Integer> pendingCancels = new ArrayList<>();
+    private final List<PlayRequest> flushPlays = new ArrayList<>();
+    private final List<Integer> flushCancels = new ArrayList<>();
+    private boolean flushScheduled;
+    private volatile boolean released;
+    private boolean streamInfoReceived;
+    private boolean firstFrameReceived;
+    private boolean reconnecting;
+    private int reconnectAttempt;
+    private long disconnectTimeMs = C.NO_VALUE;
+    private long lastStallMs = C.NO_VALUE;
+
+    private TimerWheel.Timeout keepaliveTimeout;
+    private TimerWheel.Timeout pongTimeout;
+    private boolean pingOutstanding;
+    private long pingSentNanos;
+    private long pingSentMs;
+    private volatile long smoothedRttUs = C.NO_VALUE;
+    private volatile long rttVarianceUs = C.NO_VALUE;
 
     private long steadyTimestamp;
     private long systemTimestamp;
     private final long playbackDelay;
     private long zeroTime;
+    private final ClockOffsetEstimator clockOffset = new ClockOffsetEstimator();
+    // local time the upgrade request went out, paired with the status that answers it
+    private long upgradeSentUs = C.NO_VALUE;
+    private volatile long remoteClockOffsetUs;
+    private volatile boolean hasRemoteClockOffset;
 
     public SldpConnection(Config config,
                           Selector selector,
@@ -96,12 +140,35 @@ public class SldpConnection extends TcpConnection {
         app = config.app;
         stream = config.stream;
         playbackDelay = config.steadyDelayMs * 1000L;
+        assembler = createAssembler(config);
+        reconnectPolicy = config.reconnectPolicy;
+        upgradeRequest = createUpgradeRequest(config);
+    }
+
+    public SldpConnection(Config config,
+                          SldpEventLoop eventLoop,
+                          StreamBuffer.Factory bufferFactory,
+                          Connection.Listener listener) throws IOException {
+        super(config, eventLoop, bufferFactory, listener);
+
+        app = config.app;
+        stream = config.stream;
+        playbackDelay = config.steadyDelayMs * 1000L;
+        assembler = createAssembler(config);
+        reconnectPolicy = config.reconnectPolicy;
+        upgradeRequest = createUpgradeRequest(config);
+    }
+
+    private MessageAssembler createAssembler(Config config) {
+        int maxMessageSize = config.maxMessageSize > 0 ? config.maxMessageSize : DEFAULT_MAX_MESSAGE_SIZE;
+        return new MessageAssembler(getBufferPool(), this, maxMessageSize);
     }
 
     @Override
     public void onConnect() {
         status = Status.UNKNOWN_FAIL;
         notifyOnStateChange(State.CONNECTED, Status.SUCCESS);
+        setPhaseTimeout("websocket upgrade", upgradeTimeoutMs);
         sendUpgradeRequest();
         state = SldpConnectionState.HANDSHAKE;
         status = Status.CONN_FAIL;
@@ -109,20 +176,30 @@ public class SldpConnection extends TcpConnection {
         systemTimestamp = C.NO_VALUE;
     }
 
+    /**
+     * Everything in the upgrade request is fixed by the config, so it is serialized once
+     * and resent as is on every reconnect.
+     */
+    private static byte[] createUpgradeRequest(Config config) {
+        String request = "GET /" + config.app + "/" + config.stream + " HTTP/1.1\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Host: " + config.host + ":" + config.port + "\r\n" +
+                "Origin: http://dev.wmspanel.com\r\n" +
+                "Sec-WebSocket-Protocol: sldp.softvelum.com\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Sec-WebSocket-Key: MYnDFVtBIiNR1eIQ5NNvmA==\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "Sec-WebSocket-Extensions: x-webkit-deflate-frame\r\n" +
+                "User-Agent: " + (TextUtils.isEmpty(config.userAgent) ? "SLDPLib/1.0" : config.userAgent) + "\r\n" +
+                "\r\n";
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+
     private void sendUpgradeRequest() {
         try {
-            append(String.format("GET /%s/%s HTTP/1.1\r\n", app, stream));
-            append("Upgrade: websocket\r\n");
-            append("Connection: Upgrade\r\n");
-            append(String.format(Locale.ENGLISH, "Host: %s:%d\r\n", host, port));
-            append("Origin: http://dev.wmspanel.com\r\n");
-            append("Sec-WebSocket-Protocol: sldp.softvelum.com\r\n");
-            append("Pragma: no-cache\r\n");
-            append("Sec-WebSocket-Key: MYnDFVtBIiNR1eIQ5NNvmA==\r\n");
-            append("Sec-WebSocket-Version: 13\r\n");
-            append("Sec-WebSocket-Extensions: x-webkit-deflate-frame\r\n");
-            append(String.format("User-Agent: %s\r\n", TextUtils.isEmpty(userAgent) ? "SLDPLib/1.0" : userAgent));
-            send("\r\n");
+            upgradeSentUs = System.nanoTime() / 1000;
+            send(upgradeRequest);
         } catch (Exception e) {
             close();
         }
@@ -134,11 +211,13 @@ public class SldpConnection extends TcpConnection {
 
         switch (state) {
             case HANDSHAKE:
-                bytesParsed = parser.parse(byteBuffer.array(), byteBuffer.limit());
+                bytesParsed = parser.parse(byteBuffer);
                 if (bytesParsed < 0) {
                     close();
                     return;// byteBuffer.position();
                 }
+                // consumed lines are not seen again, the parser keeps what it learned from them
+                byteBuffer.position(byteBuffer.position() + bytesParsed);
                 if (!parser.getComplete()) {
                     // incomplete
                     return; // bytesParsed;
@@ -153,8 +232,9 @@ public class SldpConnection extends TcpConnection {
                     close();
                     return; // byteBuffer.position();
                 }
-                byteBuffer.position(bytesParsed);
                 state = STATUS;
+                setPhaseTimeout("status", statusTimeoutMs);
+                startKeepalive();
 
             case STATUS:
             case PLAY:
@@ -181,6 +261,20 @@ public class SldpConnection extends TcpConnection {
 
         int offset = byteBuffer.position();
 
+        if (payloadRemaining > 0) {
+            // payload of a frame too large to buffer whole, feed it to the assembler as it arrives
+            int count = (int) Math.min(byteBuffer.remaining(), payloadRemaining);
+            if (!assembler.append(view(byteBuffer, offset, count))) {
+                Log.e(TAG, "message exceeds " + assembler.getMaxSize() + " bytes");
+                return -1;
+            }
+            payloadRemaining -= count;
+            if (payloadRemaining == 0 && payloadFin && !completeMessage()) {
+                return -1;
+            }
+            return count;
+        }
+
         int hdr_len = 2;
 
         if (byteBuffer.remaining() < hdr_len) {
@@ -192,7 +286,7 @@ public class SldpConnection extends TcpConnection {
             return -1;
         }
 
-        int payload_len = byteBuffer.get(offset + 1) & 0x7F;
+        long payload_len = byteBuffer.get(offset + 1) & 0x7F;
         if (payload_len == 126) {
             // 16 bit Extended payload length
             hdr_len += 2;
@@ -203,47 +297,66 @@ public class SldpConnection extends TcpConnection {
             payload_len = ((byteBuffer.get(offset + 2) & 0xFF) << 8) | (byteBuffer.get(offset + 3) & 0xFF);
 
         } else if (payload_len == 127) {
+            // 64 bit Extended payload length
+            hdr_len += 8;
+
+            if (byteBuffer.remaining() < hdr_len) {
+                return 0;
+            }
+            payload_len = 0;
+            for (int i = 0; i < 8; i++) {
+                payload_len = (payload_len << 8) | (byteBuffer.get(offset + 2 + i) & 0xFF);
+            }
+            if (payload_len < 0) {
+                // the most significant bit must be 0
+                return -1;
+            }
+        }
+
+        if (payload_len > assembler.getMaxSize()) {
+            Log.e(TAG, "frame of " + payload_len + " bytes exceeds " + assembler.getMaxSize());
             return -1;
         }
 
+        int opcode = byteBuffer.get(offset) & 0xF;
+        boolean fin = (byteBuffer.get(offset) & 0x80) != 0;
+
         //Log.v(TAG, "payload_len=" + payload_len);
         if (hdr_len + payload_len > byteBuffer.remaining()) {
-            // incomplete frame
-            //Log.v(TAG, "incomplete frame");
-            return 0;
+            if (opcode > 0x2 || hdr_len + payload_len <= MAX_BUFFERED_FRAME_SIZE) {
+                // incomplete frame
+                //Log.v(TAG, "incomplete frame");
+                return 0;
+            }
+            beginFragment(opcode);
+            payloadRemaining = payload_len;
+            payloadFin = fin;
+            return hdr_len;
+        }
+
+        int length = (int) payload_len;
+
+        if (fin && frameType == UNKNOWN && (opcode == 0x1 || opcode == 0x2)) {
+            // unfragmented message, parse it straight out of the receive buffer
+            if (!processMessage(opcode == 0x1 ? TEXT : BINARY, view(byteBuffer, offset + hdr_len, length).slice())) {
+                return -1;
+            }
+            return hdr_len + length;
         }
 
-        int opcode = byteBuffer.get(offset) & 0xF;
         switch (opcode) {
             case 0x0:
                 // continuation frame
-                try {
-                    frameBuffer.put(byteBuffer.array(), offset + hdr_len, payload_len);
-                } catch (Exception e) {
-                    return -1;
-                }
-                break;
-
             case 0x1:
                 // text frame
-                frameType = TEXT;
-                frameBuffer.clear();
-
-                try {
-                    frameBuffer.put(byteBuffer.array(), offset + hdr_len, payload_len);
-                } catch (Exception e) {
-                    return -1;
-                }
-                break;
-
             case 0x2:
                 // binary frame
-                frameType = BINARY;
-                frameBuffer.clear();
-
-                try {
-                    frameBuffer.put(byteBuffer.array(), offset + hdr_len, payload_len);
-                } catch (Exception e) {
+                beginFragment(opcode);
+                if (!assembler.append(view(byteBuffer, offset + hdr_len, length))) {
+                    Log.e(TAG, "message exceeds " + assembler.getMaxSize() + " bytes");
+                    return -1;
+                }
+                if (fin && !completeMessage()) {
                     return -1;
                 }
                 break;
@@ -251,53 +364,206 @@ public class SldpConnection extends TcpConnection {
             case 0x8:
                 // connection close
                 close();
-                return hdr_len + payload_len;
+                break;
 
             case 0x9:
                 // ping
-                return hdr_len + payload_len;
+                if (length > MAX_CONTROL_PAYLOAD) {
+                    return -1;
+                }
+                sendControlFrame(0xA, view(byteBuffer, offset + hdr_len, length));
+                break;
 
             case 0xA:
                 // pong
-                return hdr_len + payload_len;
+                onPong(view(byteBuffer, offset + hdr_len, length));
+                break;
 
             default:
                 break;
         }
 
-        if ((byteBuffer.get(offset) & 0x80) != 0) {
-            // fin
-            frameBuffer.flip();
+        return hdr_len + length;
+    }
 
-            switch (frameType) {
-                case TEXT:
-                    String text;
-                    try {
-                        text = new String(frameBuffer.array(), StandardCharsets.US_ASCII);
-                        processTextMessage(text);
-                    } catch (Exception e) {
-                        close();
-                        return -1;
-                    }
-                    break;
+    private void sendControlFrame(int opcode, ByteBuffer payload) {
+        try {
+            encoder.encodeControl(stage(CommandEncoder.getFrameLength(payload.remaining())), opcode, payload);
+            sendPending();
+        } catch (IOException e) {
+            close();
+        }
+    }
 
-                case BINARY:
-                    processBinaryMessage(frameBuffer);
-                    break;
+    private void startKeepalive() {
+        SldpEventLoop eventLoop = getEventLoop();
+        if (eventLoop == null) {
+            return;
+        }
+        pingSentMs = eventLoop.now();
+        keepaliveTimeout = eventLoop.schedule(this::keepalive, pingIntervalMs);
+    }
 
-                default:
-                    break;
-            }
+    private void stopKeepalive() {
+        if (keepaliveTimeout != null) {
+            keepaliveTimeout.cancel();
+            keepaliveTimeout = null;
+        }
+        if (pongTimeout != null) {
+            pongTimeout.cancel();
+            pongTimeout = null;
+        }
+        pingOutstanding = false;
+    }
 
-            frameBuffer.clear();
-            frameType = UNKNOWN;
+    private void keepalive() {
+        if (state != STATUS && state != SldpConnectionState.PLAY) {
+            return;
+        }
+        SldpEventLoop eventLoop = getEventLoop();
+        long now = eventLoop.now();
+        if (!pingOutstanding
+                && (now - getLastReceiveTimeMs() >= pingIntervalMs || now - pingSentMs >= RTT_PROBE_INTERVAL_MS)) {
+            sendPing(now);
         }
+        keepaliveTimeout = eventLoop.schedule(this::keepalive, pingIntervalMs);
+    }
 
-        return hdr_len + payload_len;
+    private void sendPing(long now) {
+        // the pong echoes the payload, so the send time travels with the ping
+        long sentNanos = System.nanoTime();
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putLong(0, sentNanos);
+        pingOutstanding = true;
+        pingSentNanos = sentNanos;
+        pingSentMs = now;
+        sendControlFrame(0x9, payload);
+        pongTimeout = getEventLoop().schedule(this::onPongTimeout, getPongTimeoutMs());
+    }
+
+    private long getPongTimeoutMs() {
+        if (pongTimeoutMs > 0) {
+            return pongTimeoutMs;
+        }
+        if (smoothedRttUs == C.NO_VALUE) {
+            return DEFAULT_PONG_TIMEOUT_MS;
+        }
+        // retransmission timeout of RFC 6298
+        return Math.max(MIN_PONG_TIMEOUT_MS, (smoothedRttUs + 4 * rttVarianceUs) / 1000);
+    }
+
+    private void onPongTimeout() {
+        pongTimeout = null;
+        if (!pingOutstanding || state == SldpConnectionState.CLOSED) {
+            return;
+        }
+        pingOutstanding = false;
+        if (getLastReceiveTimeMs() > pingSentMs) {
+            // data is still flowing, the pong is only queued behind it or the server does not answer pings
+            return;
+        }
+        Log.w(TAG, "no pong within " + getPongTimeoutMs() + "ms, id=" + getConnectionId());
+        close();
+    }
+
+    private void onPong(ByteBuffer payload) {
+        if (!pingOutstanding || payload.remaining() != 8
+                || payload.getLong(payload.position()) != pingSentNanos) {
+            // unsolicited pong
+            return;
+        }
+        long rttUs = (System.nanoTime() - pingSentNanos) / 1000;
+        pingOutstanding = false;
+        if (pongTimeout != null) {
+            pongTimeout.cancel();
+            pongTimeout = null;
+        }
+        onRttSample(rttUs);
+        clockOffset.addRtt(rttUs);
+        updateZeroTime();
+    }
+
+    private void onRttSample(long rttUs) {
+        // RFC 6298, section 2
+        if (smoothedRttUs == C.NO_VALUE) {
+            smoothedRttUs = rttUs;
+            rttVarianceUs = rttUs / 2;
+        } else {
+            rttVarianceUs = (3 * rttVarianceUs + Math.abs(smoothedRttUs - rttUs)) / 4;
+            smoothedRttUs = (7 * smoothedRttUs + rttUs) / 8;
+        }
+    }
+
+    /**
+     * @return Smoothed round trip time measured with WebSocket pings, in microseconds,
+     * or {@link C#NO_VALUE} before the first pong.
+     */
+    public long getSmoothedRttUs() {
+        return smoothedRttUs;
+    }
+
+    /**
+     * @return Round trip time variation in microseconds, or {@link C#NO_VALUE} before the first pong.
+     */
+    public long getRttVarianceUs() {
+        return rttVarianceUs;
+    }
+
+    @Override
+    protected long getRttEstimateUs() {
+        long rttUs = smoothedRttUs;
+        return rttUs != C.NO_VALUE ? rttUs : super.getRttEstimateUs();
+    }
+
+    private static ByteBuffer view(ByteBuffer byteBuffer, int offset, int length) {
+        ByteBuffer payload = byteBuffer.duplicate();
+        payload.limit(offset + length);
+        payload.position(offset);
+        return payload;
+    }
+
+    private void beginFragment(int opcode) {
+        if (opcode == 0x0) {
+            return;
+        }
+        frameType = opcode == 0x1 ? TEXT : BINARY;
+        assembler.reset();
+    }
+
+    private boolean completeMessage() {
+        boolean processed = processMessage(frameType, assembler.message());
+        assembler.reset();
+        frameType = UNKNOWN;
+        return processed;
+    }
+
+    private boolean processMessage(FrameType type, ByteBuffer payload) {
+        switch (type) {
+            case TEXT:
+                try {
+                    processTextMessage(payload);
+                } catch (Exception e) {
+                    close();
+                    return false;
+                }
+                break;
+
+            case BINARY:
+                processBinaryMessage(payload);
+                break;
+
+            default:
+                break;
+        }
+        return true;
     }
 
     private void processBinaryMessage(ByteBuffer buffer) {
 
+        if (buffer.limit() < 2) {
+            return;
+        }
+
         int offset = 0;
 
         int sn = buffer.get(0);
@@ -359,6 +625,15 @@ public class SldpConnection extends TcpConnection {
         }
 
         StreamBuffer stream = getStreamBySn(sn);
+        if (stream != null && !firstFrameReceived) {
+            firstFrameReceived = true;
+            clearPhaseTimeout();
+        }
+        if (stream != null && disconnectTimeMs != C.NO_VALUE) {
+            lastStallMs = System.currentTimeMillis() - disconnectTimeMs;
+            disconnectTimeMs = C.NO_VALUE;
+            Log.d(TAG, "resumed after " + lastStallMs + "ms");
+        }
         if (stream != null) {
             if (stream.isVideo()) {
                 // video
@@ -394,17 +669,13 @@ public class SldpConnection extends TcpConnection {
 
         switch (type) {
             case WEB_AAC_SEQUENCE_HEADER:
-                byte[] seqHeader = new byte[buffer.remaining()];
-                buffer.get(seqHeader);
-                streamBuffer.setExtradata(seqHeader);
+                streamBuffer.setSequenceHeader(buffer);
                 break;
 
             case WEB_AAC_FRAME:
             case WEB_MP3_FRAME:
             case WEB_OPUS_FRAME:
-                byte[] audioFrame = new byte[buffer.remaining()];
-                buffer.get(audioFrame);
-                streamBuffer.writeAudioFrame(timestamp, audioFrame);
+                streamBuffer.writeAudioFrame(timestamp, buffer);
                 break;
 
             default:
@@ -421,20 +692,16 @@ public class SldpConnection extends TcpConnection {
         switch (type) {
             case WEB_AVC_SEQUENCE_HEADER:
             case WEB_HEVC_SEQUENCE_HEADER:
-                byte[] seqHeader = new byte[buffer.remaining()];
-                buffer.get(seqHeader);
-                streamBuffer.setExtradata(seqHeader);
+                streamBuffer.setSequenceHeader(buffer);
                 break;
 
             case WEB_AVC_KEY_FRAME:
             case WEB_HEVC_KEY_FRAME:
             case WEB_AVC_FRAME:
             case WEB_HEVC_FRAME:
-                byte[] h26xFrame = new byte[buffer.remaining()];
-                buffer.get(h26xFrame);
                 boolean h26xKeyKrame = type == WEB_AVC_KEY_FRAME
                         || type == WEB_HEVC_KEY_FRAME;
-                streamBuffer.writeH26xFrame(timestamp, offset, h26xFrame, h26xKeyKrame);
+                streamBuffer.writeH26xFrame(timestamp, offset, buffer, h26xKeyKrame);
                 break;
 
             case WEB_VP8_KEY_FRAME:
@@ -443,12 +710,10 @@ public class SldpConnection extends TcpConnection {
             case WEB_VP8_FRAME:
             case WEB_VP9_FRAME:
             case WEB_AV1_FRAME:
-                byte[] vpxFrame = new byte[buffer.remaining()];
-                buffer.get(vpxFrame);
                 boolean vpxKeyFrame = type == WEB_VP8_KEY_FRAME
                         || type == WEB_VP9_KEY_FRAME
                         || type == WEB_AV1_KEY_FRAME;
-                streamBuffer.writeVpxFrame(timestamp, vpxFrame, vpxKeyFrame);
+                streamBuffer.writeVpxFrame(timestamp, buffer, vpxKeyFrame);
                 break;
 
             default:
@@ -456,197 +721,425 @@ public class SldpConnection extends TcpConnection {
         }
     }
 
-    private void processTextMessage(String text) {
+    /**
+     * Stream description from the info array of a status message. Instances are reused
+     * from one status message to the next.
+     */
+    private static class StreamInfo {
+        String stream;
+        String vcodec;
+        int vtimescale;
+        int width;
+        int height;
+        String acodec;
+        int atimescale;
+        int bandwidth;
+
+        void reset() {
+            stream = null;
+            vcodec = null;
+            vtimescale = C.NO_VALUE;
+            width = C.NO_VALUE;
+            height = C.NO_VALUE;
+            acodec = null;
+            atimescale = C.NO_VALUE;
+            bandwidth = 0;
+        }
+    }
+
+    private final JsonReader jsonReader = new JsonReader();
+    private final List<StreamInfo> streamInfos = new ArrayList<>();
+    private int streamInfoCount;
+
+    private void processTextMessage(ByteBuffer payload) {
+        String command = null;
+        String steady = "";
+        String system = "";
+        streamInfoCount = 0;
+
         try {
-            JSONObject response = new JSONObject(text);
-            String command = response.getString("command");
-            if (command.equalsIgnoreCase("status")) {
-                String steady = response.optString("steady", "");
-                String system = response.optString("system", "");
-                if (steady.isEmpty() || system.isEmpty()) {
-                    notifyOnStateChange(State.STEADY_SUPPORT_CHECK, Status.STEADY_UNSUPPORTED);
-                } else {
-                    notifyOnStateChange(State.STEADY_SUPPORT_CHECK, Status.SUCCESS);
-                    if (playbackDelay > 0) {
-                        steadyTimestamp = Long.parseLong(steady);
-                        systemTimestamp = Long.parseLong(system);
-
-                        long localNanoTime = System.nanoTime() / 1000;
-                        long remoteClockOffset = 0;
-                        remoteClockOffset += playbackDelay;
-                        zeroTime = localNanoTime - steadyTimestamp + remoteClockOffset;
-                    }
+            JsonReader reader = jsonReader.reset(payload);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(MESSAGE_NAMES)) {
+                    case 0:
+                        command = reader.nextString();
+                        break;
+                    case 1:
+                        steady = reader.nextString();
+                        break;
+                    case 2:
+                        system = reader.nextString();
+                        break;
+                    case 3:
+                        readInfo(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
                 }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            Log.w(TAG, "malformed message: " + e.getMessage());
+            return;
+        }
 
-                JSONArray infoArray = response.getJSONArray("info");
-                if (infoArray.length() < 1) {
-                    return;
-                }
+        if ("status".equalsIgnoreCase(command)) {
+            processStatus(steady, system);
+        }
+    }
 
-                for (int i = 0; i < infoArray.length(); i++) {
-
-                    JSONObject info = infoArray.getJSONObject(i);
-                    JSONObject streamInfo = info.getJSONObject("stream_info");
-
-                    if (streamInfo.has("vcodec") && streamInfo.has("vtimescale")) {
-
-                        StreamBuffer videoBuffer = getBufferFactory().createVideoBuffer();
-
-                        videoBuffer.setConnectionId(getConnectionId());
-                        videoBuffer.setStreamId(++id);
-
-                        int timescale = streamInfo.getInt("vtimescale");
-                        videoBuffer.setTimescale(timescale);
-
-                        videoBuffer.setStream(info.getString("stream"));
-                        videoBuffer.setBandwidth(streamInfo.getInt("bandwidth"));
-
-                        String resolution = streamInfo.getString("resolution");
-                        Matcher m = RESOLUTION_PATTERN.matcher(resolution);
-                        if (m.find()) {
-                            int width = Integer.parseInt(m.group(1));
-                            int height = Integer.parseInt(m.group(2));
-                            videoBuffer.setSize(new Size(width, height));
-                        }
-
-                        String vcodec = streamInfo.getString("vcodec");
-                        if (vcodec.startsWith("avc1")) {
-                            videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_AVC);
-                        } else if (vcodec.startsWith("hvc1")) {
-                            videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_HEVC);
-                        } else if (vcodec.startsWith("vp8")) {
-                            videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_VP8);
-                        } else if (vcodec.startsWith("vp9")) {
-                            videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_VP9);
-                        } else if (vcodec.startsWith("av01")) {
-                            videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_AV1);
-                        }
-                        streamIdMap.put(videoBuffer.getStreamId(), videoBuffer);
-                    }
+    private void readInfo(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            StreamInfo info;
+            if (streamInfoCount < streamInfos.size()) {
+                info = streamInfos.get(streamInfoCount);
+            } else {
+                info = new StreamInfo();
+                streamInfos.add(info);
+            }
+            info.reset();
 
-                    if (streamInfo.has("acodec") && streamInfo.has("atimescale")) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(INFO_NAMES)) {
+                    case 0:
+                        info.stream = reader.nextString();
+                        break;
+                    case 1:
+                        readStreamInfo(reader, info);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
 
-                        StreamBuffer audioBuffer = getBufferFactory().createAudioBuffer();
+            if (info.stream != null) {
+                streamInfoCount++;
+            }
+        }
+        reader.endArray();
+    }
 
-                        audioBuffer.setConnectionId(getConnectionId());
-                        audioBuffer.setStreamId(++id);
+    private void readStreamInfo(JsonReader reader, StreamInfo info) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.selectName(STREAM_INFO_NAMES)) {
+                case 0:
+                    info.vcodec = reader.nextString();
+                    break;
+                case 1:
+                    info.vtimescale = reader.nextInt();
+                    break;
+                case 2:
+                    parseResolution(reader.nextString(), info);
+                    break;
+                case 3:
+                    info.acodec = reader.nextString();
+                    break;
+                case 4:
+                    info.atimescale = reader.nextInt();
+                    break;
+                case 5:
+                    info.bandwidth = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
 
-                        int timescale = streamInfo.getInt("atimescale");
-                        audioBuffer.setTimescale(timescale);
+    // <width>x<height>
+    private static void parseResolution(String resolution, StreamInfo info) {
+        if (resolution == null) {
+            return;
+        }
+        int separator = resolution.indexOf('x');
+        if (separator <= 0) {
+            return;
+        }
+        int width = parseDecimal(resolution, 0, separator);
+        int height = parseDecimal(resolution, separator + 1, resolution.length());
+        if (width > 0 && height > 0) {
+            info.width = width;
+            info.height = height;
+        }
+    }
 
-                        audioBuffer.setStream(info.getString("stream"));
-                        audioBuffer.setBandwidth(streamInfo.getInt("bandwidth"));
+    private static int parseDecimal(String s, int start, int end) {
+        if (end <= start || end - start > 9) {
+            return C.NO_VALUE;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return C.NO_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
 
-                        String acodec = streamInfo.getString("acodec");
-                        if (acodec.equals("opus")) {
-                            audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_OPUS);
-                        } else if (acodec.equals("mp4a.40.34")) {
-                            audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_MPEG);
-                        } else {
-                            audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_AAC);
-                        }
+    /**
+     * Maps the server steady clock to the local one, compensated for network delay, plus the
+     * playback delay. Refined whenever a status or a pong gives a shorter round trip.
+     */
+    private void updateZeroTime() {
+        if (!clockOffset.hasOffset()) {
+            return;
+        }
+        remoteClockOffsetUs = clockOffset.getOffsetUs();
+        hasRemoteClockOffset = true;
+        zeroTime = remoteClockOffsetUs + playbackDelay;
+    }
 
-                        streamIdMap.put(audioBuffer.getStreamId(), audioBuffer);
-                    }
-                }
+    /**
+     * @return Local monotonic time minus server steady time in microseconds, valid if
+     * {@link #hasRemoteClockOffset()}.
+     */
+    public long getRemoteClockOffsetUs() {
+        return remoteClockOffsetUs;
+    }
 
-                onStreamInfoReceived();
+    /**
+     * @return true once the server has sent its clock in steady mode.
+     */
+    public boolean hasRemoteClockOffset() {
+        return hasRemoteClockOffset;
+    }
 
+    private void processStatus(String steady, String system) {
+        if (TextUtils.isEmpty(steady) || TextUtils.isEmpty(system)) {
+            notifyOnStateChange(State.STEADY_SUPPORT_CHECK, Status.STEADY_UNSUPPORTED);
+        } else {
+            notifyOnStateChange(State.STEADY_SUPPORT_CHECK, Status.SUCCESS);
+            if (playbackDelay > 0) {
+                steadyTimestamp = Long.parseLong(steady);
+                systemTimestamp = Long.parseLong(system);
+
+                long localNanoTime = System.nanoTime() / 1000;
+                if (upgradeSentUs != C.NO_VALUE) {
+                    clockOffset.addExchange(upgradeSentUs, steadyTimestamp, localNanoTime);
+                    upgradeSentUs = C.NO_VALUE;
+                }
+                if (clockOffset.hasOffset()) {
+                    updateZeroTime();
+                } else {
+                    zeroTime = localNanoTime - steadyTimestamp + playbackDelay;
+                }
             }
+        }
 
-        } catch (JSONException ignored) {
+        if (streamInfoCount < 1) {
+            return;
         }
-    }
 
-    private void sendCommand(String command) {
-        try {
-            append(0x81);
-
-            if (command.length() < 125) {
-                append(0x80 | command.length());
-            } else if (command.length() <= 0xFFFF) {
-                append(0x80 | 126);
-                append(command.length() >> 8);
-                append(command.length() & 0xFF);
-            } else {
-                close();
-                return;
+        boolean created = false;
+
+        for (int i = 0; i < streamInfoCount; i++) {
+
+            StreamInfo info = streamInfos.get(i);
+
+            if (info.vcodec != null && info.vtimescale != C.NO_VALUE) {
+
+                StreamBuffer videoBuffer = findStream(info.stream, StreamBuffer.Type.VIDEO);
+                if (videoBuffer == null) {
+                    videoBuffer = getBufferFactory().createVideoBuffer();
+
+                    videoBuffer.setConnectionId(getConnectionId());
+                    videoBuffer.setStreamId(++id);
+                    created = true;
+                }
+
+                videoBuffer.setTimescale(info.vtimescale);
+
+                videoBuffer.setStream(info.stream);
+                videoBuffer.setBandwidth(info.bandwidth);
+
+                if (info.width > 0) {
+                    videoBuffer.setSize(new Size(info.width, info.height));
+                }
+
+                String vcodec = info.vcodec;
+                if (vcodec.startsWith("avc1")) {
+                    videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_AVC);
+                } else if (vcodec.startsWith("hvc1")) {
+                    videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_HEVC);
+                } else if (vcodec.startsWith("vp8")) {
+                    videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_VP8);
+                } else if (vcodec.startsWith("vp9")) {
+                    videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_VP9);
+                } else if (vcodec.startsWith("av01")) {
+                    videoBuffer.setMimeType(MediaFormat.MIMETYPE_VIDEO_AV1);
+                }
+                streamIdMap.put(videoBuffer.getStreamId(), videoBuffer);
             }
 
-            byte[] mask = new byte[4];
-            new Random().nextBytes(mask);
-            append(mask[0]);
-            append(mask[1]);
-            append(mask[2]);
-            append(mask[3]);
+            if (info.acodec != null && info.atimescale != C.NO_VALUE) {
+
+                StreamBuffer audioBuffer = findStream(info.stream, StreamBuffer.Type.AUDIO);
+                if (audioBuffer == null) {
+                    audioBuffer = getBufferFactory().createAudioBuffer();
+
+                    audioBuffer.setConnectionId(getConnectionId());
+                    audioBuffer.setStreamId(++id);
+                    created = true;
+                }
+
+                audioBuffer.setTimescale(info.atimescale);
+
+                audioBuffer.setStream(info.stream);
+                audioBuffer.setBandwidth(info.bandwidth);
 
-            byte[] bytes = command.getBytes();
-            for (int i = 0; i < bytes.length; i++) {
-                bytes[i] ^= mask[i % 4];
+                String acodec = info.acodec;
+                if (acodec.equals("opus")) {
+                    audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+                } else if (acodec.equals("mp4a.40.34")) {
+                    audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_MPEG);
+                } else {
+                    audioBuffer.setMimeType(MediaFormat.MIMETYPE_AUDIO_AAC);
+                }
+
+                streamIdMap.put(audioBuffer.getStreamId(), audioBuffer);
             }
-            send(bytes);
+        }
+
+        if (state == STATUS) {
+            state = SldpConnectionState.PLAY;
+            clearPhaseTimeout();
+        }
+        if (reconnecting) {
+            reconnecting = false;
+            reconnectAttempt = 0;
+            resumePlayback();
+        }
+        if (created) {
+            onStreamInfoReceived();
+        }
+        streamInfoReceived = true;
+        flushCommands();
+    }
 
+    private void sendCommand() {
+        encoder.endCommand();
+        try {
+            encoder.encode(stage(encoder.getFrameLength()));
+            sendPending();
         } catch (Exception e) {
             close();
         }
     }
 
     private void sendPlay(List<PlayRequest> requests) {
-        StringBuilder play = new StringBuilder();
-        play.append("{\"command\":\"Play\", \"streams\":[");
-        String steady = "";
-        if (playbackDelay > 0 && systemTimestamp != C.NO_VALUE && steadyTimestamp != C.NO_VALUE) {
-            steady = ",\"steady\":true";
-        }
+        sendPlay(requests, false);
+    }
+
+    /**
+     * @param resume true when re-requesting streams after a reconnect, in which case the
+     *               offset of the request is sent but the stream keeps its original one.
+     */
+    private void sendPlay(List<PlayRequest> requests, boolean resume) {
+        encoder.beginCommand("Play");
+        boolean steady = playbackDelay > 0 && systemTimestamp != C.NO_VALUE && steadyTimestamp != C.NO_VALUE;
 
         for (int i = 0; i < requests.size(); i++) {
             StreamBuffer s = getStreamByStreamId(requests.get(i).getStreamId());
             if (null != s) {
                 s.setSn(++sn);
                 s.setState(StreamBuffer.State.PLAY);
-                s.setOffset(requests.get(i).getOffset());
-                s.setDuration(requests.get(i).getDuration());
-
-                if (i > 0) {
-                    play.append(",");
+                if (!resume) {
+                    s.setOffset(requests.get(i).getOffset());
+                    s.setDuration(requests.get(i).getDuration());
                 }
 
-                play.append(String.format(Locale.ENGLISH,
-                        "{\"stream\":\"%s\",\"type\":\"%s\",\"sn\":\"%d\",\"offsetMs\":\"%d\",\"duration\":\"%d\"%s}",
-                        s.getStream(),
-                        s.isVideo() ? "video" : "audio",
-                        s.getSn(), s.getOffset(), s.getDuration(),
-                        steady
-                ));
+                encoder.addPlay(s.getStream(), s.isVideo(), s.getSn(),
+                        requests.get(i).getOffset(), s.getDuration(), steady);
 
                 streamSnMap.put(s.getSn(), s);
             }
         }
 
-        play.append("]}");
-        sendCommand(play.toString());
+        if (encoder.getElementCount() == 0) {
+            return;
+        }
+        if (!firstFrameReceived) {
+            setPhaseTimeout("first frame", firstFrameTimeoutMs);
+        }
+        sendCommand();
     }
 
     private void sendCancel(List<Integer> streams) {
 
-        StringBuilder cancel = new StringBuilder();
-        cancel.append("{\"command\":\"Cancel\", \"streams\":[");
+        encoder.beginCommand("Cancel");
 
         for (int i = 0; i < streams.size(); i++) {
 
-            if (i > 0) {
-                cancel.append(",");
-            }
-
             StreamBuffer s = getStreamByStreamId(streams.get(i));
-            cancel.append(String.format(Locale.ENGLISH, "\"%d\"", s.getSn()));
+            if (null == s || s.getState() != StreamBuffer.State.PLAY) {
+                // never played, or its play was withdrawn before it went out
+                continue;
+            }
+            encoder.addCancel(s.getSn());
             s.setState(StreamBuffer.State.STOP);
             streamSnMap.remove(s.getSn());
             s.release();
         }
 
-        cancel.append("]}");
-        sendCommand(cancel.toString());
+        if (encoder.getElementCount() > 0) {
+            sendCommand();
+        }
+    }
+
+    /**
+     * Sends the requests queued since the last flush as at most two messages,
+     * cancels first so a stream switched within one loop iteration ends up playing.
+     */
+    private void flushCommands() {
+        boolean ready = state == STATUS || state == SldpConnectionState.PLAY;
+        synchronized (pendingPlays) {
+            flushScheduled = false;
+            if (!ready) {
+                if (state == SldpConnectionState.CLOSED && !reconnecting) {
+                    pendingCancels.clear();
+                    pendingPlays.clear();
+                }
+                // otherwise kept until the status message of the connection being set up
+                return;
+            }
+            flushCancels.addAll(pendingCancels);
+            flushPlays.addAll(pendingPlays);
+            pendingCancels.clear();
+            pendingPlays.clear();
+        }
+        if (!flushCancels.isEmpty()) {
+            sendCancel(flushCancels);
+            flushCancels.clear();
+        }
+        if (!flushPlays.isEmpty()) {
+            sendPlay(flushPlays);
+            flushPlays.clear();
+        }
+    }
+
+    private void scheduleFlush() {
+        // called with the pending lists locked
+        if (!flushScheduled) {
+            flushScheduled = true;
+            SldpEventLoop eventLoop = getEventLoop();
+            if (eventLoop != null) {
+                // queued even on the loop thread, so requests made in the same iteration go out together
+                eventLoop.execute(this::flushCommands);
+            } else {
+                flushCommands();
+            }
+        }
     }
 
     @Override
@@ -664,20 +1157,148 @@ public class SldpConnection extends TcpConnection {
     }
 
     @Override
-    public void playStreams(List<PlayRequest> streams) {
-        sendPlay(streams);
+    public void playStreams(final List<PlayRequest> streams) {
+        synchronized (pendingPlays) {
+            pendingPlays.addAll(streams);
+            scheduleFlush();
+        }
     }
 
     @Override
-    public void cancelStreams(List<Integer> streams) {
-        sendCancel(streams);
+    public void cancelStreams(final List<Integer> streams) {
+        synchronized (pendingPlays) {
+            for (Integer streamId : streams) {
+                // a play still waiting for the flush is simply withdrawn
+                for (int i = pendingPlays.size() - 1; i >= 0; i--) {
+                    if (pendingPlays.get(i).getStreamId() == streamId) {
+                        pendingPlays.remove(i);
+                    }
+                }
+                if (!pendingCancels.contains(streamId)) {
+                    pendingCancels.add(streamId);
+                }
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * @return Time from the last disconnect to the first media frame after resuming, in
+     * milliseconds, or {@link C#NO_VALUE} if the connection never had to resume.
+     */
+    public long getLastStallMs() {
+        return lastStallMs;
+    }
+
+    private StreamBuffer findStream(String name, StreamBuffer.Type type) {
+        for (StreamBuffer s : streamIdMap.values()) {
+            if (name.equals(s.getStream()) && (type == StreamBuffer.Type.VIDEO) == s.isVideo()) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Re-requests every stream that was playing before the connection dropped. The offset asks
+     * the server to replay the outage, each buffer drops what it already holds.
+     */
+    private void resumePlayback() {
+        long now = System.currentTimeMillis();
+        List<PlayRequest> requests = new ArrayList<>();
+        for (StreamBuffer s : streamIdMap.values()) {
+            if (s.getState() != StreamBuffer.State.PLAY) {
+                continue;
+            }
+            // Frames carry media time only and nothing tells where the live edge is in it, but a
+            // live stream moves on in real time, so the outage is measured on the wall clock.
+            // Media time takes over on the way back: the buffer drops what it holds up to its
+            // last frame, see StreamBuffer#prepareResume().
+            long gapMs = s.getLastWriteTimeMs() != C.NO_VALUE ? now - s.getLastWriteTimeMs() : 0;
+            int offsetMs = (int) Math.min(s.getOffset() + gapMs, reconnectPolicy.maxResumeOffsetMs);
+            s.prepareResume();
+            requests.add(new PlayRequest(s.getStreamId(), Math.max(offsetMs, s.getOffset()), s.getDuration()));
+        }
+        if (!requests.isEmpty()) {
+            sendPlay(requests, true);
+        }
+    }
+
+    /**
+     * @param status Why the connection closed. A server that refused the upgrade or the
+     *               credentials will refuse them again, so those are not retried.
+     */
+    private boolean canReconnect(Status status) {
+        return !released
+                && status != Status.HANDSHAKE_FAIL
+                && status != Status.AUTH_FAIL
+                && reconnectPolicy != null
+                && getEventLoop() != null
+                && !getEventLoop().isShuttingDown()
+                && (streamInfoReceived || reconnecting)
+                && reconnectPolicy.canRetry(reconnectAttempt + 1);
+    }
+
+    private void scheduleReconnect() {
+        reconnectAttempt++;
+        if (!reconnecting) {
+            reconnecting = true;
+            disconnectTimeMs = System.currentTimeMillis();
+        }
+        long delayMs = reconnectPolicy.getDelayMs(reconnectAttempt, random);
+        Log.d(TAG, "reconnect attempt " + reconnectAttempt + " in " + delayMs + "ms");
+        getEventLoop().schedule(this::reconnect, delayMs);
+    }
+
+    private synchronized void reconnect() {
+        if (released || state != SldpConnectionState.CLOSED) {
+            return;
+        }
+        if (!reopen()) {
+            reconnecting = false;
+            notifyOnStateChange(State.DISCONNECTED, status);
+            return;
+        }
+        state = SldpConnectionState.INITIAL;
+        parser = new HttpParser();
+        frameType = UNKNOWN;
+        payloadRemaining = 0;
+        firstFrameReceived = false;
+        streamSnMap.clear();
+        resetErrors();
+        connect();
     }
 
     @Override
-    synchronized public void close() {
+    public void release() {
+        released = true;
+        super.release();
+    }
+
+    @Override
+    public void close() {
+        if (!inEventLoop() && getEventLoop().offer(this::close)) {
+            return;
+        }
+        closeOnLoop();
+    }
+
+    private synchronized void closeOnLoop() {
         if (state != SldpConnectionState.CLOSED) {
             state = SldpConnectionState.CLOSED;
             super.close();
+            stopKeepalive();
+            assembler.reset();
+            if (canReconnect(status)) {
+                notifyOnStateChange(State.RECONNECTING, status);
+                scheduleReconnect();
+            } else {
+                reconnecting = false;
+                notifyOnStateChange(State.DISCONNECTED, status);
+            }
+        } else if (released && reconnecting) {
+            // released while waiting for the next attempt
+            reconnecting = false;
             notifyOnStateChange(State.DISCONNECTED, status);
         }
     }
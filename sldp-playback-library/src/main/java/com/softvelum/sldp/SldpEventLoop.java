@@ -0,0 +1,233 @@
+package com.softvelum.sldp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A single selector thread driving the connections pinned to it.
+ */
+public final class SldpEventLoop implements Runnable {
+    private static final String TAG = "SldpEventLoop";
+
+    private static final long TICK_MS = 50;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<TcpConnection> connections = new ArrayList<>();
+    private final TimerWheel wheel;
+    private final List<Runnable> expired = new ArrayList<>();
+    private long now;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean running = true;
+    // set once the loop no longer runs tasks, before its last drain of the queue
+    private volatile boolean terminated;
+    private volatile long bytesReceived;
+
+    SldpEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        now = clock();
+        wheel = new TimerWheel(TICK_MS, WHEEL_SLOTS, now);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        if (!offer(task)) {
+            Log.w(TAG, "dropped a task, " + thread.getName() + " has terminated");
+        }
+    }
+
+    /**
+     * Queues the task unless the loop has terminated.
+     *
+     * @return false if the task will not run, so the caller has to deal with it.
+     */
+    boolean offer(Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            // unless the last drain of the loop took it already
+            return !tasks.remove(task);
+        }
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * @return true once the loop has stopped after {@link SldpEventLoopGroup#shutdown()}.
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * @return true once the loop was asked to stop, connections closed from then on stay closed.
+     */
+    boolean isShuttingDown() {
+        return !running;
+    }
+
+    /**
+     * Monotonic clock used for all deadlines on the loop.
+     */
+    static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * @return Loop time in milliseconds, refreshed once per iteration. Only meaningful on the loop thread.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Runs the task on this loop once {@code delayMs} milliseconds have passed.
+     *
+     * @return Handle that can cancel the task from any thread.
+     */
+    @NonNull
+    public TimerWheel.Timeout schedule(Runnable task, long delayMs) {
+        if (inEventLoop()) {
+            return wheel.schedule(task, delayMs, clock());
+        }
+        final TimerWheel.Timeout timeout = TimerWheel.newTimeout(task, delayMs, clock());
+        execute(() -> wheel.add(timeout));
+        return timeout;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    void onBytesReceived(int count) {
+        // Only the loop thread writes this counter.
+        bytesReceived += count;
+    }
+
+    void reserve() {
+        connectionCount.incrementAndGet();
+    }
+
+    void register(final TcpConnection connection) {
+        execute(() -> {
+            if (!connections.contains(connection)) {
+                connections.add(connection);
+            }
+        });
+    }
+
+    void unregister(final TcpConnection connection) {
+        connectionCount.decrementAndGet();
+        // nothing to forget once the loop has terminated
+        offer(() -> connections.remove(connection));
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    long timeout = wheel.getDelayToNextTimeout(clock());
+                    if (timeout < 0) {
+                        selector.select();
+                    } else if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, Log.getStackTraceString(e));
+                break;
+            }
+            now = clock();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                Object attachment = key.attachment();
+                if (key.isValid() && attachment instanceof TcpConnection) {
+                    ((TcpConnection) attachment).processEvent(key);
+                }
+            }
+
+            runTasks();
+
+            now = clock();
+            wheel.advance(now, expired);
+            for (int i = 0; i < expired.size(); i++) {
+                tasks.add(expired.get(i));
+            }
+            expired.clear();
+            runTasks();
+        }
+
+        runTasks();
+        for (TcpConnection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        runTasks();
+        connections.clear();
+        terminated = true;
+        // tasks queued before they could see the flag
+        runTasks();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, Log.getStackTraceString(e));
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, Log.getStackTraceString(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.softvelum.sldp;
+
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Owns a fixed set of {@link SldpEventLoop} threads and spreads connections across them.
+ * Each connection stays pinned to the loop it was created on.
+ */
+public class SldpEventLoopGroup {
+
+    private final SldpEventLoop[] loops;
+    private int nextLoop;
+
+    public SldpEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SldpEventLoopGroup(int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("loopCount must be positive");
+        }
+        loops = new SldpEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new SldpEventLoop("SldpEventLoop-" + i);
+        }
+        for (SldpEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    @NonNull
+    public SldpConnection createConnection(TcpConnection.Config config,
+                                           StreamBuffer.Factory bufferFactory,
+                                           Connection.Listener listener) throws IOException {
+        return new SldpConnection(config, next(), bufferFactory, listener);
+    }
+
+    /**
+     * Picks the least loaded loop, starting the scan after the previously chosen one
+     * so that ties are distributed round-robin.
+     */
+    @NonNull
+    synchronized SldpEventLoop next() {
+        int start = nextLoop;
+        SldpEventLoop best = loops[start];
+        for (int i = 1; i < loops.length; i++) {
+            SldpEventLoop loop = loops[(start + i) % loops.length];
+            if (loop.getConnectionCount() < best.getConnectionCount()) {
+                best = loop;
+            }
+        }
+        nextLoop = (start + 1) % loops.length;
+        best.reserve();
+        return best;
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    public long getBytesReceived() {
+        long total = 0;
+        for (SldpEventLoop loop : loops) {
+            total += loop.getBytesReceived();
+        }
+        return total;
+    }
+
+    public void shutdown() {
+        for (SldpEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.softvelum.sldp;
+
+import android.annotation.SuppressLint;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Process-wide holder of TLS contexts, one per trust configuration.
+ * Engines are created with the peer host and port, so the client session cache of the
+ * shared context lets reconnects to the same host:port resume with an abbreviated handshake.
+ */
+public class SslContextManager {
+
+    private static final int SESSION_CACHE_SIZE = 256;
+    private static final int SESSION_TIMEOUT_SEC = 24 * 60 * 60;
+    private static final int MAX_TRACKED_PEERS = 256;
+
+    private static final SslContextManager INSTANCE = new SslContextManager();
+
+    @NonNull
+    public static SslContextManager getInstance() {
+        return INSTANCE;
+    }
+
+    private static final int MAX_TASK_THREADS = 4;
+    private static final int MAX_QUEUED_TASKS = 256;
+
+    private final Map<Boolean, SSLContext> contexts = new HashMap<>();
+    private final int maxTaskThreads;
+    private final int maxQueuedTasks;
+    private ThreadPoolExecutor taskExecutor;
+    // handed on by the workers, one per finished task
+    private final Queue<Runnable> waitingForCapacity = new ConcurrentLinkedQueue<>();
+    private final SecureRandom random = new SecureRandom();
+
+    // Last session id seen per host:port, used to tell resumed handshakes from full ones.
+    private final Map<String, byte[]> lastSessionIds = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_TRACKED_PEERS;
+        }
+    };
+
+    private long fullHandshakes;
+    private long fullHandshakeTimeUs;
+    private long resumedHandshakes;
+    private long resumedHandshakeTimeUs;
+
+    public SslContextManager() {
+        this(MAX_TASK_THREADS, MAX_QUEUED_TASKS);
+    }
+
+    SslContextManager(int maxTaskThreads, int maxQueuedTasks) {
+        this.maxTaskThreads = maxTaskThreads;
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    @SuppressLint("CustomX509TrustManager")
+    private static TrustManager[] getTrustManager(boolean trustAllCerts) {
+        if (trustAllCerts) {
+            return new TrustManager[]{
+                    new X509TrustManager() {
+                        public X509Certificate[] getAcceptedIssuers() {
+                            return null;
+                        }
+
+                        @SuppressLint("TrustAllX509TrustManager")
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                        }
+
+                        @SuppressLint("TrustAllX509TrustManager")
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                        }
+                    }
+            };
+        }
+        return null;
+    }
+
+    @NonNull
+    public synchronized SSLContext getContext(boolean trustAllCerts) throws GeneralSecurityException {
+        SSLContext context = contexts.get(trustAllCerts);
+        if (context == null) {
+            context = SSLContext.getInstance("TLS");
+            context.init(null, getTrustManager(trustAllCerts), random);
+
+            SSLSessionContext sessionContext = context.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT_SEC);
+            }
+            contexts.put(trustAllCerts, context);
+        }
+        return context;
+    }
+
+    @NonNull
+    public SSLEngine createEngine(boolean trustAllCerts, String host, int port) throws GeneralSecurityException {
+        SSLEngine engine = getContext(trustAllCerts).createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Bounded executor for {@link SSLEngine#getDelegatedTask()} work, so certificate validation
+     * and key agreement do not run on a selector thread. When the queue is full tasks are
+     * rejected, see {@link #execute(Runnable, Runnable)}.
+     */
+    @NonNull
+    public synchronized Executor getTaskExecutor() {
+        if (taskExecutor == null) {
+            int threads = Math.min(maxTaskThreads, Math.max(2, Runtime.getRuntime().availableProcessors()));
+            final AtomicInteger threadIndex = new AtomicInteger();
+            taskExecutor = new ThreadPoolExecutor(threads, threads,
+                    30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxQueuedTasks),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "SldpTlsTask-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    new ThreadPoolExecutor.AbortPolicy()) {
+                @Override
+                protected void afterExecute(Runnable r, Throwable t) {
+                    Runnable waiting = waitingForCapacity.poll();
+                    if (waiting != null) {
+                        waiting.run();
+                    }
+                }
+            };
+            taskExecutor.allowCoreThreadTimeOut(true);
+        }
+        return taskExecutor;
+    }
+
+    /**
+     * Runs the task on the {@link #getTaskExecutor() task executor}, never on the calling thread.
+     * If the executor is saturated the task is dropped and {@code onCapacity} runs once a worker
+     * has finished a task, on that worker, so the caller can submit it again.
+     *
+     * @return false if the task was rejected.
+     */
+    public boolean execute(@NonNull Runnable task, @NonNull Runnable onCapacity) {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) getTaskExecutor();
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            waitingForCapacity.add(onCapacity);
+            // a worker that finished before the callback was queued had nothing to hand on
+            if (executor.getQueue().remainingCapacity() > 0 && waitingForCapacity.remove(onCapacity)) {
+                onCapacity.run();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records a finished handshake.
+     *
+     * @return true if the session was resumed from the cache.
+     */
+    synchronized boolean onHandshakeFinished(String host, int port, SSLSession session,
+                                             long startTimeMs, long durationUs) {
+        String peer = host + ":" + port;
+        byte[] sessionId = session != null ? session.getId() : null;
+        byte[] previous = lastSessionIds.get(peer);
+
+        // TLS 1.3 resumption may not reuse the legacy session id, but the resumed
+        // session still predates the handshake.
+        boolean resumed = (sessionId != null && sessionId.length > 0 && Arrays.equals(sessionId, previous))
+                || (session != null && session.getCreationTime() < startTimeMs);
+        if (resumed) {
+            resumedHandshakes++;
+            resumedHandshakeTimeUs += durationUs;
+        } else {
+            fullHandshakes++;
+            fullHandshakeTimeUs += durationUs;
+        }
+        if (sessionId != null && sessionId.length > 0) {
+            lastSessionIds.put(peer, sessionId);
+        }
+        return resumed;
+    }
+
+    public synchronized long getFullHandshakeCount() {
+        return fullHandshakes;
+    }
+
+    public synchronized long getResumedHandshakeCount() {
+        return resumedHandshakes;
+    }
+
+    public synchronized long getAverageFullHandshakeTimeUs() {
+        return fullHandshakes == 0 ? 0 : fullHandshakeTimeUs / fullHandshakes;
+    }
+
+    public synchronized long getAverageResumedHandshakeTimeUs() {
+        return resumedHandshakes == 0 ? 0 : resumedHandshakeTimeUs / resumedHandshakes;
+    }
+
+    /**
+     * Drops cached sessions and contexts, forcing full handshakes from now on.
+     */
+    public synchronized void reset() {
+        contexts.clear();
+        lastSessionIds.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package com.softvelum.sldp;
+
+/**
+ * Recent samples of the server steady clock against media time, in primitive arrays, and a
+ * least-squares fit of one against the other. The slope of the fit is the rate of the server
+ * clock relative to media time, so positions between samples are extrapolated with the drift
+ * rather than assumed to advance one to one. Not thread-safe, callers synchronize.
+ */
+final class SteadyClockMap {
+    private static final int CAPACITY = 64;
+    // samples closer than this span give a slope dominated by jitter
+    private static final long MIN_FIT_SPAN_US = 5_000_000;
+    private static final double MAX_DRIFT = 1000e-6;
+    // a sample this far off the fit, or this far back, means the timeline was reset
+    private static final long MAX_RESIDUAL_US = 1_000_000;
+
+    private final long[] pts = new long[CAPACITY];
+    private final long[] steady = new long[CAPACITY];
+    // sequence numbers of the oldest sample and of the next one to write
+    private long head;
+    private long tail;
+
+    private double slope = 1.0;
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    long lastPts() {
+        return pts[(int) ((tail - 1) % CAPACITY)];
+    }
+
+    void clear() {
+        head = tail;
+        slope = 1.0;
+    }
+
+    void add(long ptsUs, long steadyUs) {
+        if (!isEmpty()) {
+            int last = (int) ((tail - 1) % CAPACITY);
+            if (ptsUs <= pts[last] && pts[last] - ptsUs <= MAX_RESIDUAL_US) {
+                // the same frame again, or frames presented slightly out of decode order
+                return;
+            }
+            long predicted = steady[last] + Math.round((ptsUs - pts[last]) * slope);
+            if (ptsUs < pts[last] || Math.abs(steadyUs - predicted) > MAX_RESIDUAL_US) {
+                clear();
+            }
+        }
+        if (tail - head == CAPACITY) {
+            head++;
+        }
+        pts[(int) (tail % CAPACITY)] = ptsUs;
+        steady[(int) (tail % CAPACITY)] = steadyUs;
+        tail++;
+        fit();
+    }
+
+    private void fit() {
+        int first = (int) (head % CAPACITY);
+        int last = (int) ((tail - 1) % CAPACITY);
+        if (pts[last] - pts[first] < MIN_FIT_SPAN_US) {
+            slope = 1.0;
+            return;
+        }
+
+        // centered on the oldest sample to keep the sums small
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        long n = tail - head;
+        for (long i = head; i < tail; i++) {
+            int slot = (int) (i % CAPACITY);
+            double x = pts[slot] - pts[first];
+            double y = steady[slot] - steady[first];
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double denominator = n * sumXX - sumX * sumX;
+        if (denominator <= 0) {
+            slope = 1.0;
+            return;
+        }
+        double fitted = (n * sumXY - sumX * sumY) / denominator;
+        slope = Math.max(1.0 - MAX_DRIFT, Math.min(1.0 + MAX_DRIFT, fitted));
+    }
+
+    /**
+     * @return Server steady time at the given media time, extrapolated from the latest sample
+     * not after it, or {@link C#NO_VALUE} if there is none.
+     */
+    long steadyAt(long ptsUs) {
+        long lo = head;
+        long hi = tail - 1;
+        if (isEmpty() || pts[(int) (lo % CAPACITY)] > ptsUs) {
+            return C.NO_VALUE;
+        }
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            if (pts[(int) (mid % CAPACITY)] <= ptsUs) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        int slot = (int) (lo % CAPACITY);
+        return steady[slot] + Math.round((ptsUs - pts[slot]) * slope);
+    }
+
+    /**
+     * @return Rate of the server steady clock against media time, in parts per million.
+     */
+    double getDriftPpm() {
+        return (slope - 1.0) * 1e6;
+    }
+}
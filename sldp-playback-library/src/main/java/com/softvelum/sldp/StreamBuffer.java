@@ -3,16 +3,35 @@ package com.softvelum.sldp;
 import android.media.MediaFormat;
 import android.util.Size;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import androidx.annotation.NonNull;
 
+/**
+ * Ring of received frames for one stream. There is a single writer, the thread running the
+ * connection, and any number of readers.
+ * <p>
+ * Slots and slab space are reused in place, so reads follow a sequence lock protocol. The writer
+ * holds the write lock of a {@link StampedLock} while it changes anything a reader may look at:
+ * storing or evicting a frame, copying a payload into the slab and {@link #release()}. Readers
+ * never lock: they read the slot, and copy the payload, after {@link StampedLock#tryOptimisticRead()}
+ * and use the result only if {@link StampedLock#validate(long)} succeeds afterwards, retrying
+ * otherwise. Unlike re-reading a volatile index, the validation orders the plain loads of the
+ * slot columns and of the slab before it, so a reader cannot pass the check holding a mix of two
+ * frames. No reader ever holds the lock, so the writer does not wait for readers; a reader only
+ * waits while a frame is being stored.
+ */
 public class StreamBuffer {
     protected static final String TAG = "StreamBuffer";
 
+    // Replayed frames older than this are taken as a new timeline rather than duplicates.
+    private static final int RESUME_WINDOW_SEC = 60;
+
     public interface Factory {
         @NonNull
         StreamBuffer createVideoBuffer();
@@ -21,6 +40,31 @@ public class StreamBuffer {
         StreamBuffer createAudioBuffer();
     }
 
+    /**
+     * Factory of plain buffers with a capacity policy, and storage mode, per stream type.
+     */
+    public static class ConfigFactory implements Factory {
+        private final Config videoConfig;
+        private final Config audioConfig;
+
+        public ConfigFactory(@NonNull Config videoConfig, @NonNull Config audioConfig) {
+            this.videoConfig = videoConfig;
+            this.audioConfig = audioConfig;
+        }
+
+        @NonNull
+        @Override
+        public StreamBuffer createVideoBuffer() {
+            return new StreamBuffer(Type.VIDEO, videoConfig);
+        }
+
+        @NonNull
+        @Override
+        public StreamBuffer createAudioBuffer() {
+            return new StreamBuffer(Type.AUDIO, audioConfig);
+        }
+    }
+
     public enum Type {
         AUDIO,
         VIDEO
@@ -31,35 +75,113 @@ public class StreamBuffer {
         PLAY
     }
 
+    /**
+     * Capacity policy. Any combination of limits may be set, 0 leaves a limit out.
+     * The byte and duration budgets evict a whole GOP at a time, so the oldest frame held is
+     * a keyframe; the newest GOP is always kept, even if it alone exceeds them. Running out of
+     * slots or slab space drops only the oldest frame.
+     */
+    public static class Config {
+        /**
+         * Number of slots in the ring, a hard limit. {@link #DEFAULT_MAX_ITEMS} if 0.
+         */
+        public int maxItems;
+        public long maxBytes;
+        public long maxDurationMs;
+        /**
+         * Keep payloads in a circular slab of direct memory instead of one array per frame.
+         * Readers then get views into the slab, see {@link BufferItem#getBuffer()}.
+         */
+        public boolean offHeap;
+        /**
+         * Size of the slab, derived from {@link #maxBytes} or {@link #DEFAULT_SLAB_SIZE} if 0.
+         */
+        public int slabSize;
+    }
+
+    public static final int DEFAULT_MAX_ITEMS = 4096;
+    public static final int DEFAULT_SLAB_SIZE = 8 * 1024 * 1024;
+
     private final Type type;
     private int connectionId = C.NO_VALUE;
     private int streamId = C.NO_VALUE;
-    private int timescale;
-    private String stream;
-    private State state = State.STOP;
-    private Size size = new Size(C.NO_VALUE, C.NO_VALUE);
-    private int bandwidth;
-    private String mimeType;
-    private byte[] extradata;
-
-    private boolean isInitialized;
-
-    private BufferItem[] ringBuffer;
+    private volatile int timescale;
+    private volatile Timestamp.Rescaler clock = new Timestamp.Rescaler(0, Timestamp.TIMESCALE_US);
+    private volatile String stream;
+    private volatile State state = State.STOP;
+    private volatile Size size = new Size(C.NO_VALUE, C.NO_VALUE);
+    private volatile int bandwidth;
+    private volatile String mimeType;
+    private volatile byte[] extradata;
+    private volatile CodecConfig codecConfig;
+    // last sequence header as received, kept apart from the extradata handed out; writer only
+    private byte[] sequenceHeader;
+    private long sequenceHeaderHash;
+
+    private volatile boolean isInitialized;
+
+    // held by the writer around every change readers may see, see the class comment
+    private final StampedLock slotLock = new StampedLock();
+    private volatile FrameTable frameTable;
+    // bumped by release(), so readers notice a restart even once the writer passed their index
+    private volatile int generation;
     private final int maxItems;
-    private long messageIndex;
-
-    private Timestamp startTimestamp;
-    private Timestamp endTimestamp;
-
-    private int offset;
-    private int duration;
-    private int sn;
-
-    private final TreeMap<Long, Long> steadyMap = new TreeMap<>();
+    private final long maxBytes;
+    private final long maxDurationUs;
+    // index of the next item to write; a slot is visible to readers once this has moved past it
+    private final AtomicLong messageIndex = new AtomicLong();
+    // index of the oldest item held, moved forward a GOP at a time by the writer
+    private volatile long firstIndex;
+    private volatile long bufferedBytes;
+    private final KeyFrameIndex keyFrames;
+
+    private final int slabSize;
+    private volatile ByteBuffer slab;
+    // logical write position in the slab, the physical one is this modulo the slab size
+    private long slabHead;
+
+    private volatile Timestamp startTimestamp;
+    // written by the writer only
+    private long lastDts = C.NO_VALUE;
+
+    private volatile int offset;
+    private volatile int duration;
+    private volatile int sn;
+
+    private long resumeDts = C.NO_VALUE;
+    private boolean resumeOverlap;
+    private volatile long lastWriteTimeMs = C.NO_VALUE;
+
+    private final SteadyClockMap steadyMap = new SteadyClockMap();
     private long steadyOffset = C.NO_VALUE;
 
+    // a subclass still overrides onProduced(BufferItem), so items are created for it
+    private final boolean producesItems = overridesOnProducedItem(getClass());
+
     public StreamBuffer(Type type, int capacity) {
         this.maxItems = Math.max(capacity, offset);
+        this.maxBytes = 0;
+        this.maxDurationUs = 0;
+        this.keyFrames = new KeyFrameIndex(maxItems);
+        this.slabSize = 0;
+        this.type = type;
+    }
+
+    public StreamBuffer(Type type, @NonNull Config config) {
+        this.maxItems = config.maxItems > 0 ? config.maxItems : DEFAULT_MAX_ITEMS;
+        this.maxBytes = Math.max(0, config.maxBytes);
+        this.maxDurationUs = Math.max(0, config.maxDurationMs) * 1000;
+        this.keyFrames = new KeyFrameIndex(maxItems);
+        if (!config.offHeap) {
+            this.slabSize = 0;
+        } else if (config.slabSize > 0) {
+            this.slabSize = config.slabSize;
+        } else if (maxBytes > 0) {
+            // room for the budget plus the GOP that may overshoot it
+            this.slabSize = (int) Math.min(Integer.MAX_VALUE, maxBytes + maxBytes / 2);
+        } else {
+            this.slabSize = DEFAULT_SLAB_SIZE;
+        }
         this.type = type;
     }
 
@@ -69,129 +191,908 @@ public class StreamBuffer {
     protected void onBufferRelease() {
     }
 
+    /**
+     * Called on the writer thread once the frame with the given index is readable. By default
+     * hands a view of the frame to {@link #onProduced(BufferItem)} if a subclass overrides it.
+     */
+    protected void onProduced(long index) {
+        if (producesItems) {
+            BufferItem item = itemAt(index);
+            if (item != null) {
+                onProduced(item);
+            }
+        }
+    }
+
+    /**
+     * Called on the writer thread with a view of each frame once it is readable, only if
+     * {@link #onProduced(long)} is not overridden.
+     *
+     * @deprecated Creates a view per frame; override {@link #onProduced(long)} instead.
+     */
+    @Deprecated
     protected void onProduced(BufferItem item) {
     }
 
-    synchronized private void putItem(BufferItem item) {
-        if (item == null) {
-            throw new IllegalArgumentException();
+    private static boolean overridesOnProducedItem(Class<?> cls) {
+        for (Class<?> c = cls; c != StreamBuffer.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("onProduced", BufferItem.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared at this level
+            }
         }
+        return false;
+    }
+
+    /**
+     * Called on the writer thread only.
+     *
+     * @param payload Heap payload, or null if the payload was copied to {@code slabPosition}.
+     */
+    private void putFrame(long dts, int offset, int flags, byte[] payload, long slabPosition, int size) {
+        boolean keyFrame = (flags & FrameTable.FLAG_KEY_FRAME) != 0;
+        long index;
+        long stamp = slotLock.writeLock();
+        try {
+            index = messageIndex.get();
+            FrameTable table = table();
+
+            if (index - firstIndex >= maxItems) {
+                // out of slots, the oldest frame has to go before its slot is reused
+                evictOldest(table);
+            }
+
+            int slot = (int) (index % maxItems);
+            table.set(slot, dts, offset, clock, flags, payload, slabPosition, size);
+            if (startTimestamp == null) {
+                startTimestamp = new Timestamp(dts, offset, timescale);
+            }
+            lastDts = dts;
+            lastWriteTimeMs = System.currentTimeMillis();
+            bufferedBytes += size;
+            // release store: the slot is visible to any reader that sees the new index
+            messageIndex.lazySet(index + 1);
+            if (keyFrame) {
+                keyFrames.add(index, table.getPtsUs(slot));
+            }
+
+            while (isOverBudget(table, index) && evictGop(table, index + 1)) {
+                // drop GOPs until the budget is met or only the newest one is left
+            }
+        } finally {
+            slotLock.unlockWrite(stamp);
+        }
+
+        onProduced(index);
+    }
+
+    private FrameTable table() {
+        FrameTable table = frameTable;
+        if (table == null) {
+            table = new FrameTable(maxItems);
+            frameTable = table;
+        }
+        return table;
+    }
 
-        if (startTimestamp == null) {
-            startTimestamp = item.getTimestamp();
+    /**
+     * Copies a payload into the slab, evicting the oldest GOPs until it fits.
+     *
+     * @return Slab position of the payload, or {@link C#NO_VALUE} if it is larger than the whole slab.
+     */
+    private long copyToSlab(ByteBuffer src) {
+        int size = src.remaining();
+        if (size > slabSize) {
+            return C.NO_VALUE;
         }
-        endTimestamp = item.getTimestamp();
+        long stamp = slotLock.writeLock();
+        try {
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            }
+            FrameTable table = table();
+
+            long position;
+            while (true) {
+                long index = messageIndex.get();
+                long physical = slabHead % slabSize;
+                // a payload is never split across the end of the slab
+                long padding = physical + size > slabSize ? slabSize - physical : 0;
+                long tail = slabTail(table, index, slabHead + padding);
+                if (slabHead + padding + size - tail <= slabSize) {
+                    position = slabHead + padding;
+                    break;
+                }
+                evictOldest(table);
+            }
+            slabHead = position + size;
 
-        item.setMessageIndex(messageIndex);
+            // bytes of evicted frames are overwritten here, while readers would fail to validate
+            slabView(slab, position, size).put(src.duplicate());
+            return position;
+        } finally {
+            slotLock.unlockWrite(stamp);
+        }
+    }
+
+    private ByteBuffer slabView(ByteBuffer slab, long position, int size) {
+        ByteBuffer view = slab.duplicate();
+        view.limit((int) (position % slabSize) + size);
+        view.position((int) (position % slabSize));
+        return view.slice();
+    }
 
-        if (ringBuffer == null) {
-            ringBuffer = new BufferItem[maxItems];
+    /**
+     * @return Slab position of the oldest held payload, skipping frames that did not fit the
+     * slab and were kept on the heap, or {@code head} if the slab holds nothing.
+     */
+    private long slabTail(FrameTable table, long index, long head) {
+        for (long i = firstIndex; i < index; i++) {
+            int slot = (int) (i % maxItems);
+            if (table.payloads[slot] == null) {
+                return table.slabPositions[slot];
+            }
         }
+        return head;
+    }
 
-        onProduced(item);
+    /**
+     * @return true while the frame is in the ring.
+     */
+    public boolean isHeld(long index) {
+        return index >= firstIndex && index < messageIndex.get();
+    }
 
-        ringBuffer[((int) (messageIndex % maxItems))] = item;
-        messageIndex++;
+    /**
+     * Tells whether a view returned by {@link #getItem(long)} is still intact. A heap payload is
+     * never changed once stored. An off-heap payload may be overwritten while it is read, so for
+     * such a view this is true only if nothing was written to the buffer since the view was
+     * created; it may then be false for a frame still held. Readers of off-heap views should
+     * check this after consuming the payload, or copy it with
+     * {@link #readFrame(long, ByteBuffer, NalUnits.Format)}, which retries instead.
+     */
+    public boolean isHeld(BufferItem item) {
+        if (item.isOffHeap()) {
+            return item.getStamp() != 0 && slotLock.validate(item.getStamp());
+        }
+        return isHeld(item.getMessageIndex());
     }
 
-    synchronized public BufferItem getItem(long readIndex) {
-        if (readIndex >= messageIndex) {
+    private boolean isOverBudget(FrameTable table, long lastIndex) {
+        if (maxBytes > 0 && bufferedBytes > maxBytes) {
+            return true;
+        }
+        if (maxDurationUs > 0) {
+            int first = (int) (firstIndex % maxItems);
+            int last = (int) (lastIndex % maxItems);
+            return table.getDtsUs(last) - table.getDtsUs(first) > maxDurationUs;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the first index past the oldest GOP, to the next keyframe before {@code endIndex}.
+     *
+     * @return false if there is no later keyframe, so nothing was evicted.
+     */
+    private boolean evictGop(FrameTable table, long endIndex) {
+        long first = firstIndex;
+        long next = first + 1;
+        while (next < endIndex && !table.isKeyFrame((int) (next % maxItems))) {
+            next++;
+        }
+        if (next >= endIndex) {
+            return false;
+        }
+        evict(table, first, next);
+        return true;
+    }
+
+    /**
+     * Drops the oldest frame only, when a slot or slab space is needed. A GOP longer than the
+     * ring then loses its head frame by frame, like the old per-slot overwrite, instead of the
+     * whole ring at once; readers resume at the next keyframe either way.
+     */
+    private void evictOldest(FrameTable table) {
+        long first = firstIndex;
+        evict(table, first, first + 1);
+    }
+
+    private void evict(FrameTable table, long first, long next) {
+        long bytes = 0;
+        for (long i = first; i < next; i++) {
+            int slot = (int) (i % maxItems);
+            bytes += table.sizes[slot];
+            // let the payload go with the frame rather than when the slot is reused
+            table.payloads[slot] = null;
+            table.copies.set(slot, null);
+        }
+        // publish the new first index before any of the evicted slots can be reused
+        firstIndex = next;
+        bufferedBytes -= bytes;
+        keyFrames.evictBefore(next);
+    }
+
+    /**
+     * Starts an optimistic read of the slots, waiting out a frame being stored.
+     */
+    private long beginRead() {
+        long stamp;
+        while ((stamp = slotLock.tryOptimisticRead()) == 0) {
+            Thread.yield();
+        }
+        return stamp;
+    }
+
+    /**
+     * @return Slot of a readable frame in {@code table}, or -1. Only meaningful once the
+     * optimistic read it is part of validates.
+     */
+    private int slotOf(FrameTable table, long index) {
+        if (table == null || index < firstIndex || index >= messageIndex.get()) {
+            return -1;
+        }
+        return (int) (index % maxItems);
+    }
+
+    /**
+     * @return Decode time of the frame in microseconds, or {@link C#NO_VALUE} if it is not held.
+     * Like the accessors below, does not allocate.
+     */
+    public long getDtsUs(long index) {
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            int slot = slotOf(table, index);
+            long res = slot >= 0 ? table.getDtsUs(slot) : C.NO_VALUE;
+            if (slotLock.validate(stamp)) {
+                return res;
+            }
+        }
+    }
+
+    /**
+     * @return Presentation time of the frame in microseconds, or {@link C#NO_VALUE} if it is not held.
+     */
+    public long getPtsUs(long index) {
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            int slot = slotOf(table, index);
+            long res = slot >= 0 ? table.getPtsUs(slot) : C.NO_VALUE;
+            if (slotLock.validate(stamp)) {
+                return res;
+            }
+        }
+    }
+
+    /**
+     * @return false if the frame is not a keyframe or is not held.
+     */
+    public boolean isKeyFrame(long index) {
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            int slot = slotOf(table, index);
+            boolean res = slot >= 0 && table.isKeyFrame(slot);
+            if (slotLock.validate(stamp)) {
+                return res;
+            }
+        }
+    }
+
+    /**
+     * @return Payload size in bytes, or {@link C#NO_VALUE} if the frame is not held.
+     */
+    public int getFrameSize(long index) {
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            int slot = slotOf(table, index);
+            int res = slot >= 0 ? table.sizes[slot] : C.NO_VALUE;
+            if (slotLock.validate(stamp)) {
+                return res;
+            }
+        }
+    }
+
+    /**
+     * @return A view of the frame with the given index, or null if it has not been written yet.
+     * As with the fixed ring this buffer used to be, a caller lapped by the writer is handed a
+     * newer frame instead, the oldest one held; compare {@link BufferItem#getMessageIndex()}
+     * with the index asked for to notice the skip. Each call creates a new view; the metadata
+     * accessors above do not allocate.
+     */
+    public BufferItem getItem(long readIndex) {
+        long index = readIndex;
+        while (true) {
+            BufferItem item = itemAt(index);
+            if (item != null || index >= getWriteIndex()) {
+                return item;
+            }
+            index = Math.max(index, getFirstIndex());
+        }
+    }
+
+    /**
+     * @return A view of the frame with the given index, or null if it is not held.
+     */
+    private BufferItem itemAt(long index) {
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            ByteBuffer slab = this.slab;
+            int slot = slotOf(table, index);
+            BufferItem item = null;
+            if (slot >= 0) {
+                int size = table.sizes[slot];
+                byte[] payload = table.payloads[slot];
+                long slabPosition = table.slabPositions[slot];
+                Timestamp.Rescaler clock = table.clocks[slot];
+                // a torn read is discarded below, but must not fail before that
+                if (clock != null && isConsistent(slab, payload, slabPosition, size)) {
+                    item = new BufferItem(payload, payload == null ? slabView(slab, slabPosition, size) : null,
+                            payload == null ? slabPosition : C.NO_VALUE, table.dts[slot], table.offsets[slot],
+                            clock.getTimescale(), table.isKeyFrame(slot), table.isLengthPrefixed(slot));
+                    item.setMessageIndex(index);
+                    item.setStamp(stamp);
+                    item.setOwner(this, table);
+                }
+            }
+            if (slotLock.validate(stamp)) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * A torn read of a slot can pair the size of one frame with the payload of another; such
+     * a pair must not be used to index the payload before the read is validated.
+     */
+    private boolean isConsistent(ByteBuffer slab, byte[] payload, long slabPosition, int size) {
+        if (size < 0) {
+            return false;
+        }
+        if (payload != null) {
+            return size <= payload.length;
+        }
+        return slab != null && slabPosition >= 0 && slabPosition % slabSize + size <= slab.capacity();
+    }
+
+    /**
+     * Copies the payload of a frame to the position of {@code dst}, with H.264/H.265 NAL units
+     * laid out in the requested format, and moves the position past it. Other codecs are
+     * copied as they are. Does not allocate, so a decoder can fill its input buffers directly.
+     *
+     * @return Bytes copied, or {@link C#NO_VALUE} if the frame is not held; {@code dst} is
+     * left unchanged then.
+     * @throws java.nio.BufferOverflowException If {@code dst} has no room for the frame.
+     */
+    public int readFrame(long index, ByteBuffer dst, NalUnits.Format format) {
+        return readFrame(null, index, dst, format);
+    }
+
+    /**
+     * @param expected Table the frame has to be read from, or null for the current one.
+     */
+    private int readFrame(FrameTable expected, long index, ByteBuffer dst, NalUnits.Format format) {
+        int start = dst.position();
+        while (true) {
+            long stamp = beginRead();
+            FrameTable table = frameTable;
+            ByteBuffer slab = this.slab;
+            int slot = expected == null || expected == table ? slotOf(table, index) : -1;
+            int size = C.NO_VALUE;
+            boolean lengthPrefixed = false;
+            if (slot >= 0) {
+                int frameSize = table.sizes[slot];
+                byte[] payload = table.payloads[slot];
+                long slabPosition = table.slabPositions[slot];
+                lengthPrefixed = table.isLengthPrefixed(slot);
+                if (isConsistent(slab, payload, slabPosition, frameSize) && dst.remaining() >= frameSize) {
+                    if (payload != null) {
+                        dst.put(payload, 0, frameSize);
+                    } else {
+                        copySlab(slab, (int) (slabPosition % slabSize), dst, frameSize);
+                    }
+                    size = frameSize;
+                } else if (slotLock.validate(stamp)) {
+                    // a validated slot is always consistent, so there is no room in dst
+                    throw new BufferOverflowException();
+                }
+            }
+            if (!slotLock.validate(stamp)) {
+                // the frame was stored, evicted or overwritten meanwhile
+                dst.position(start);
+                continue;
+            }
+            if (size != C.NO_VALUE && lengthPrefixed && format == NalUnits.Format.ANNEX_B) {
+                NalUnits.toAnnexB(dst, start, start + size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Payload of a view with start codes before H.264/H.265 NAL units, copied once per frame
+     * however many views of it ask, see {@link BufferItem#getData()}.
+     *
+     * @return null if the frame is no longer held, or was released since the view was created.
+     */
+    byte[] getData(BufferItem item, FrameTable table) {
+        long index = item.getMessageIndex();
+        int slot = (int) (index % maxItems);
+        FrameTable.Copy copy = table.copies.get(slot);
+        if (copy != null && copy.index == index) {
+            return copy.data;
+        }
+        byte[] data = new byte[item.getSize()];
+        if (readFrame(table, index, ByteBuffer.wrap(data), NalUnits.Format.ANNEX_B) != data.length) {
             return null;
         }
-        return ringBuffer[((int) (readIndex % maxItems))];
+        // may outlive the frame if it is evicted right now, until its slot is reused
+        table.copies.set(slot, new FrameTable.Copy(index, data));
+        return data;
     }
 
-    synchronized public void writeAudioFrame(long timestamp, byte[] buffer) {
-        putItem(new BufferItem(buffer, timestamp, 0, timescale, true));
+    /**
+     * Bulk copy with absolute accesses, so no view of the shared slab is created.
+     */
+    private static void copySlab(ByteBuffer slab, int position, ByteBuffer dst, int size) {
+        int start = dst.position();
+        boolean swap = slab.order() != dst.order();
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            long value = slab.getLong(position + i);
+            dst.putLong(start + i, swap ? Long.reverseBytes(value) : value);
+        }
+        for (; i < size; i++) {
+            dst.put(start + i, slab.get(position + i));
+        }
+        dst.position(start + size);
+    }
+
+    /**
+     * @return Index the next item will be written at.
+     */
+    public long getWriteIndex() {
+        return messageIndex.get();
+    }
+
+    /**
+     * @return Index of the oldest item still held by the ring.
+     */
+    public long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return Index of the newest keyframe held, or {@link C#NO_VALUE} if there is none.
+     */
+    public long latestKeyFrameIndex() {
+        return keyFrames.latest();
+    }
+
+    /**
+     * @return Index of the last keyframe presented at or before {@code ptsUs}, the oldest keyframe
+     * held if all of them are later, or {@link C#NO_VALUE} if there is none.
+     */
+    public long keyFrameAtOrBefore(long ptsUs) {
+        return keyFrames.atOrBefore(ptsUs);
+    }
+
+    /**
+     * @return Index of the first keyframe after {@code index}, or {@link C#NO_VALUE} if none has been written yet.
+     */
+    public long nextKeyFrameIndex(long index) {
+        return keyFrames.after(index);
+    }
+
+    /**
+     * Iterates over the frames of the GOP starting at the given keyframe, up to the next
+     * keyframe or the newest frame written. Iteration stops early if the GOP is evicted.
+     */
+    @NonNull
+    public Iterator<BufferItem> gop(final long keyFrameIndex) {
+        return new Iterator<BufferItem>() {
+            private long index = keyFrameIndex;
+            private BufferItem next = itemAt(keyFrameIndex);
+
+            {
+                if (next != null && !next.isKeyFrame()) {
+                    next = null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public BufferItem next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                BufferItem res = next;
+                next = itemAt(++index);
+                if (next != null && next.isKeyFrame()) {
+                    next = null;
+                }
+                return res;
+            }
+        };
+    }
+
+    /**
+     * @return Frames currently held.
+     */
+    public int getItemCount() {
+        return (int) Math.max(0, messageIndex.get() - firstIndex);
+    }
+
+    /**
+     * @return Payload bytes currently held.
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Read cursor over the ring for a single consumer thread. A consumer that falls behind
+     * by more than the ring holds is moved to the next keyframe instead of being handed
+     * frames out of order, so the decoder never sees a broken GOP.
+     */
+    public final class Reader {
+        private int generation;
+        private long readIndex;
+        private boolean waitForKeyFrame = true;
+        private long lastDtsUs = C.NO_VALUE;
+        private long skippedFrames;
+        private int overruns;
+
+        private Reader(int generation, long readIndex) {
+            this.generation = generation;
+            this.readIndex = readIndex;
+        }
 
+        /**
+         * @return The next frame, or null if the reader has caught up with the writer.
+         */
+        public BufferItem next() {
+            while (true) {
+                long index = nextIndex();
+                if (index == C.NO_VALUE) {
+                    return null;
+                }
+                BufferItem item = itemAt(index);
+                if (item != null) {
+                    return item;
+                }
+                // evicted right after it was checked, go on with what is held now
+            }
+        }
+
+        /**
+         * Allocation-free form of {@link #next()}: read the frame through the index accessors
+         * of the buffer.
+         *
+         * @return Index of the next frame, or {@link C#NO_VALUE} if the reader has caught up.
+         */
+        public long nextIndex() {
+            while (true) {
+                int current = StreamBuffer.this.generation;
+                long writeIndex = getWriteIndex();
+                if (current != generation || readIndex > writeIndex) {
+                    // the buffer was released and started over, whether or not the writer
+                    // has passed the old read index on the new timeline yet
+                    generation = current;
+                    readIndex = getFirstIndex();
+                    waitForKeyFrame = true;
+                    lastDtsUs = C.NO_VALUE;
+                    continue;
+                }
+                if (readIndex == writeIndex) {
+                    return C.NO_VALUE;
+                }
+
+                boolean keyFrame = isKeyFrame(readIndex);
+                long dtsUs = getDtsUs(readIndex);
+                if (StreamBuffer.this.generation != current) {
+                    // released while reading, the values may belong to either timeline
+                    continue;
+                }
+                if (readIndex < getFirstIndex()) {
+                    // lapped by the writer, resume from the oldest frame still held
+                    long firstIndex = Math.max(getFirstIndex(), readIndex + 1);
+                    skippedFrames += firstIndex - readIndex;
+                    readIndex = firstIndex;
+                    waitForKeyFrame = true;
+                    overruns++;
+                    continue;
+                }
+
+                long index = readIndex++;
+                if (waitForKeyFrame && !keyFrame) {
+                    skippedFrames++;
+                    continue;
+                }
+                waitForKeyFrame = false;
+                lastDtsUs = dtsUs;
+                return index;
+            }
+        }
+
+        /**
+         * @return Index of the next frame to read.
+         */
+        public long getReadIndex() {
+            return readIndex;
+        }
+
+        /**
+         * @return Frames dropped because the reader was overrun or was waiting for a keyframe.
+         */
+        public long getSkippedFrames() {
+            return skippedFrames;
+        }
+
+        /**
+         * @return How many times the writer lapped this reader.
+         */
+        public int getOverrunCount() {
+            return overruns;
+        }
+
+        /**
+         * @return Frames written but not read yet.
+         */
+        public long getLagFrames() {
+            return Math.max(0, getWriteIndex() - readIndex);
+        }
+
+        /**
+         * @return Media time between the last frame read and the newest frame written, in microseconds.
+         */
+        public long getLagUs() {
+            long endDtsUs = getDtsUs(getWriteIndex() - 1);
+            if (endDtsUs == C.NO_VALUE || lastDtsUs == C.NO_VALUE) {
+                return 0;
+            }
+            return Math.max(0, endDtsUs - lastDtsUs);
+        }
+    }
+
+    /**
+     * @return A reader starting at the oldest frame held; frames before the first keyframe are skipped.
+     */
+    public Reader createReader() {
+        return new Reader(generation, getFirstIndex());
+    }
+
+    /**
+     * @return A reader starting at the newest keyframe, or with the next frame written if none is held.
+     */
+    public Reader createLiveReader() {
+        long index = latestKeyFrameIndex();
+        return new Reader(generation, index != C.NO_VALUE ? index : getWriteIndex());
+    }
+
+    private static byte[] copyOf(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Stores an audio frame given as a view into the network buffer.
+     * The view is only valid for the duration of the call.
+     */
+    public void writeAudioFrame(long timestamp, ByteBuffer buffer) {
+        if (!acceptAfterResume(timestamp, true)) {
+            return;
+        }
+        long position = slabSize > 0 ? copyToSlab(buffer) : C.NO_VALUE;
+        if (position == C.NO_VALUE) {
+            writeAudioFrame(timestamp, copyOf(buffer));
+            return;
+        }
+        putFrame(timestamp, 0, FrameTable.FLAG_KEY_FRAME, null, position, buffer.remaining());
+        onAudioWritten(buffer);
+    }
+
+    public void writeAudioFrame(long timestamp, byte[] buffer) {
+        if (!acceptAfterResume(timestamp, true)) {
+            return;
+        }
+        putFrame(timestamp, 0, FrameTable.FLAG_KEY_FRAME, buffer, C.NO_VALUE, buffer.length);
+        onAudioWritten(ByteBuffer.wrap(buffer));
+    }
+
+    private void onAudioWritten(ByteBuffer buffer) {
         if (!isInitialized) {
             if (MediaFormat.MIMETYPE_AUDIO_MPEG.equals(mimeType)) {
-                setExtradata(Arrays.copyOfRange(buffer, 0, 4));
+                byte[] header = new byte[4];
+                buffer.duplicate().get(header, 0, Math.min(header.length, buffer.remaining()));
+                setExtradata(header);
             }
             isInitialized = true;
             onBufferReady();
         }
     }
 
-    synchronized public void writeH26xFrame(long timestamp, int offset, byte[] buffer, boolean keyFrame) {
+    private static int videoFlags(boolean keyFrame, boolean lengthPrefixed) {
+        return (keyFrame ? FrameTable.FLAG_KEY_FRAME : 0)
+                | (lengthPrefixed ? FrameTable.FLAG_LENGTH_PREFIXED : 0);
+    }
+
+    /**
+     * Stores an H.264/H.265 frame given as a view into the network buffer, as received with
+     * a length before each NAL unit, see {@link #readFrame(long, ByteBuffer, NalUnits.Format)}.
+     * Frames that would be dropped before the first keyframe are never copied.
+     */
+    public void writeH26xFrame(long timestamp, int offset, ByteBuffer buffer, boolean keyFrame) {
+        if (!(isInitialized || keyFrame) || !acceptAfterResume(timestamp, keyFrame)) {
+            return;
+        }
+        long position = slabSize > 0 ? copyToSlab(buffer) : C.NO_VALUE;
+        if (position == C.NO_VALUE) {
+            writeH26xFrame(timestamp, offset, copyOf(buffer), keyFrame);
+            return;
+        }
+        putFrame(timestamp, offset, videoFlags(keyFrame, true), null, position, buffer.remaining());
+        onVideoWritten(keyFrame);
+    }
+
+    public void writeH26xFrame(long timestamp, int offset, byte[] buffer, boolean keyFrame) {
+        if (!acceptAfterResume(timestamp, keyFrame)) {
+            return;
+        }
         if (isInitialized || keyFrame) {
-            int pos = 0;
-            while (buffer.length - pos > 4) {
-                byte[] bytes = new byte[4];
-                for (int i = 0; i < 4; i++) {
-                    bytes[i] = buffer[pos + i];
-                }
-                int naluLength = ByteBuffer.wrap(bytes).getInt();
-                buffer[pos] = 0;
-                buffer[pos + 1] = 0;
-                buffer[pos + 2] = 0;
-                buffer[pos + 3] = 1;
-                pos += naluLength + 4;
-            }
-            putItem(new BufferItem(buffer, timestamp, offset, timescale, keyFrame));
+            putFrame(timestamp, offset, videoFlags(keyFrame, true), buffer, C.NO_VALUE, buffer.length);
         }
+        onVideoWritten(keyFrame);
+    }
 
-        if (!isInitialized && keyFrame) {
-            isInitialized = true;
-            onBufferReady();
+    public void writeVpxFrame(long timestamp, ByteBuffer buffer, boolean keyFrame) {
+        if (!(isInitialized || keyFrame) || !acceptAfterResume(timestamp, keyFrame)) {
+            return;
         }
+        long position = slabSize > 0 ? copyToSlab(buffer) : C.NO_VALUE;
+        if (position == C.NO_VALUE) {
+            writeVpxFrame(timestamp, copyOf(buffer), keyFrame);
+            return;
+        }
+        putFrame(timestamp, 0, videoFlags(keyFrame, false), null, position, buffer.remaining());
+        onVideoWritten(keyFrame);
     }
 
-    public synchronized void writeVpxFrame(long timestamp, byte[] buffer, boolean keyFrame) {
+    public void writeVpxFrame(long timestamp, byte[] buffer, boolean keyFrame) {
+        if (!acceptAfterResume(timestamp, keyFrame)) {
+            return;
+        }
         if (isInitialized || keyFrame) {
-            putItem(new BufferItem(buffer, timestamp, 0, timescale, keyFrame));
+            putFrame(timestamp, 0, videoFlags(keyFrame, false), buffer, C.NO_VALUE, buffer.length);
         }
+        onVideoWritten(keyFrame);
+    }
 
+    private void onVideoWritten(boolean keyFrame) {
         if (!isInitialized && keyFrame) {
             isInitialized = true;
             onBufferReady();
         }
     }
 
+    /**
+     * Marks the buffer as resuming after a reconnect. Frames the server replays up to the
+     * current end timestamp are dropped, so the ring continues without duplicates. If the
+     * replay does not overlap what was already received, frames are dropped until a keyframe.
+     */
+    public void prepareResume() {
+        resumeDts = lastDts;
+        resumeOverlap = false;
+    }
+
+    /**
+     * @return true if a frame with the given timestamp continues the stream after a resume.
+     */
+    private boolean acceptAfterResume(long timestamp, boolean keyFrame) {
+        if (resumeDts == C.NO_VALUE) {
+            return true;
+        }
+        if (timestamp <= resumeDts && resumeDts - timestamp <= (long) timescale * RESUME_WINDOW_SEC) {
+            resumeOverlap = true;
+            return false;
+        }
+        if (!resumeOverlap && !keyFrame) {
+            return false;
+        }
+        resumeDts = C.NO_VALUE;
+        return true;
+    }
+
+    /**
+     * @return Wall clock time of the last stored frame in milliseconds, or {@link C#NO_VALUE}.
+     */
+    public long getLastWriteTimeMs() {
+        return lastWriteTimeMs;
+    }
+
+    /**
+     * Drops all frames. Called on the writer thread; readers holding old indices get null
+     * until they start over from {@link #getFirstIndex()}.
+     */
     public void release() {
+        long stamp = slotLock.writeLock();
+        try {
+            // readers see the new generation before any index of the new timeline
+            generation++;
+            frameTable = null;
+            messageIndex.set(0);
+            slab = null;
+            slabHead = 0;
+            firstIndex = 0;
+            bufferedBytes = 0;
+            keyFrames.clear();
+        } finally {
+            slotLock.unlockWrite(stamp);
+        }
         setState(State.STOP);
         offset = 0;
         duration = 0;
         sn = C.NO_VALUE;
         isInitialized = false;
         startTimestamp = null;
-        messageIndex = 0;
-        ringBuffer = null;
+        resumeDts = C.NO_VALUE;
+        lastWriteTimeMs = C.NO_VALUE;
+        lastDts = C.NO_VALUE;
 
         onBufferRelease();
     }
 
     public synchronized void notifySteadyTimestamp(long zeroTime, long steadyTimestamp) {
-        long pts = getEndTimestamp().getPtsUs();
-        if (steadyOffset < 0) {
-            steadyOffset = zeroTime;
+        long pts = getPtsUs(getWriteIndex() - 1);
+        if (pts == C.NO_VALUE) {
+            return;
         }
-        if (!steadyMap.isEmpty() && pts - steadyMap.lastKey() < 1_000_000) {
+        // follows the connection as its clock offset estimate is refined
+        steadyOffset = zeroTime;
+        if (!steadyMap.isEmpty() && pts > steadyMap.lastPts() && pts - steadyMap.lastPts() < 1_000_000) {
             return;
         }
         //Log.v(TAG, "Steady "+ steady_ts + " for pts "+ pts);
-        steadyMap.put(pts, steadyTimestamp);
+        steadyMap.add(pts, steadyTimestamp);
     }
 
     public synchronized double getDeviationForPlayTime(long playtimeUs) {
         //Log.v(TAG, "MediaTime:"+playtime_us);
         long now = System.nanoTime() / 1000;
-        Long pts = steadyMap.lowerKey(playtimeUs + 1); //lowerKey returns strictly less, so increment for less or equal
-        if (pts == null) {
+        long steady = steadyMap.steadyAt(playtimeUs);
+        if (steady == C.NO_VALUE) {
             return 0.0;
         }
-        Long steady = steadyMap.get(pts);
-        SortedMap<Long, Long> toRemove = steadyMap.headMap(pts);
-        toRemove.clear();
-
-        long sincePts = playtimeUs - pts;
-        long expected = steady + sincePts + steadyOffset;
-        //Log.v(TAG, "Steady:"+steady +  "+"+ since_pts + " expected:" + expected);
+        long expected = steady + steadyOffset;
+        //Log.v(TAG, "Steady:"+steady + " expected:" + expected);
         return (expected - now) / 1000000.0;
     }
 
+    /**
+     * @return Rate of the server steady clock against the media timeline in parts per million,
+     * fitted over the last minute of samples; 0 until they span a few seconds.
+     */
+    public synchronized double getClockDriftPpm() {
+        return steadyMap.getDriftPpm();
+    }
+
+    /**
+     * @return Timestamp of the newest frame held, or null if there is none.
+     */
     public Timestamp getEndTimestamp() {
-        return endTimestamp;
+        BufferItem item = getItem(getWriteIndex() - 1);
+        return item != null ? item.getTimestamp() : null;
     }
 
     public Timestamp getStartTimestamp() {
@@ -248,6 +1149,7 @@ public class StreamBuffer {
 
     public void setTimescale(int scale) {
         timescale = scale;
+        clock = new Timestamp.Rescaler(scale, Timestamp.TIMESCALE_US);
     }
 
     public void setExtradata(byte[] buffer) {
@@ -258,6 +1160,36 @@ public class StreamBuffer {
         return extradata;
     }
 
+    /**
+     * Stores a sequence header given between position and limit of {@code header} as the
+     * extradata and parses it into a {@link CodecConfig}. A header identical to the current
+     * one is recognized by its content hash and ignored, whether or not it could be parsed,
+     * so it is copied and parsed only once however often it is re-sent.
+     *
+     * @return true if the configuration changed.
+     */
+    public boolean setSequenceHeader(ByteBuffer header) {
+        long hash = CodecConfig.hash(header);
+        if (sequenceHeader != null && hash == sequenceHeaderHash
+                && ByteBuffer.wrap(sequenceHeader).equals(header)) {
+            return false;
+        }
+        sequenceHeader = copyOf(header);
+        sequenceHeaderHash = hash;
+        codecConfig = CodecConfig.parse(mimeType, header);
+        // a copy of its own, so changes made through getExtradata() cannot reach the cache
+        setExtradata(sequenceHeader.clone());
+        return true;
+    }
+
+    /**
+     * @return Configuration parsed from the last sequence header, or null if none was received
+     * or the codec is not one {@link CodecConfig} understands.
+     */
+    public CodecConfig getCodecConfig() {
+        return codecConfig;
+    }
+
     public boolean isInitialized() {
         return isInitialized;
     }
@@ -1,23 +1,22 @@
 package com.softvelum.sldp;
 
-import android.annotation.SuppressLint;
 import android.util.Log;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
@@ -29,6 +28,7 @@ import static javax.net.ssl.SSLEngineResult.Status.BUFFER_UNDERFLOW;
 import static javax.net.ssl.SSLEngineResult.Status.CLOSED;
 import static javax.net.ssl.SSLEngineResult.Status.OK;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 public abstract class TcpConnection extends Connection {
@@ -45,12 +45,52 @@ public abstract class TcpConnection extends Connection {
         public String pass;
         public String userAgent;
         public int steadyDelayMs;
+        public BufferPool bufferPool;
+        public int maxMessageSize;
+        public int sendBufferSize;
+        public SslContextManager sslContextManager;
+        public HostResolver hostResolver;
+        public ReconnectPolicy reconnectPolicy;
+        /**
+         * Deadlines of the connection phases in milliseconds, 0 selects the default.
+         * They are enforced only for connections running on an {@link SldpEventLoop}.
+         */
+        public int connectTimeoutMs;
+        public int handshakeTimeoutMs;
+        public int upgradeTimeoutMs;
+        public int statusTimeoutMs;
+        public int firstFrameTimeoutMs;
+        /**
+         * Longest period without any traffic before an established connection is dropped.
+         */
+        public int inactivityTimeoutMs;
+        /**
+         * Silence on the connection after which a keepalive ping is sent, 0 selects the default.
+         */
+        public int pingIntervalMs;
+        /**
+         * How long to wait for the pong before the peer is considered gone,
+         * 0 derives it from the measured round trip time.
+         */
+        public int pongTimeoutMs;
     }
 
+    private static final long CONNECTION_ATTEMPT_DELAY_MS = 250;
+    private static final long DEFAULT_PHASE_TIMEOUT_MS = 10_000;
+    private static final long DEFAULT_INACTIVITY_TIMEOUT_MS = 5_000;
+    private static final long DEFAULT_PING_INTERVAL_MS = 1_000;
+    private static final long SAMPLE_INTERVAL_MS = 1_000;
+
     private Selector selector;
+    private final SldpEventLoop eventLoop;
 
     private static final String TAG = "Connection";
     private SocketChannel socketChannel;
+    private final List<SocketChannel> attempts = new ArrayList<>(2);
+    private final HostResolver hostResolver;
+    private InetAddress[] addresses;
+    private int nextAddress;
+    private boolean connected;
 
     protected String host;
     protected int port;
@@ -60,73 +100,109 @@ public abstract class TcpConnection extends Connection {
     public static final String statusCode = "statusCode";
     public static final String statusText = "statusText";
 
-    private final ByteBuffer outBuffer;
-    private final ByteBuffer inBuffer;
+    private static final long DEFAULT_RTT_US = 200_000;
+    private static final int IDLE_SAMPLES_BEFORE_RELEASE = 3;
+
+    private static final int MIN_SEGMENT_SIZE = 512;
+    private static final int MAX_GATHER = 16;
+    private static final int DEFAULT_SEND_BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final int sendBufferSize;
+    private ByteBuffer pending;
+    private long queuedBytes;
+    private final BufferPool bufferPool;
+    private ByteBuffer inBuffer;
+    private long bytesSinceSample;
+    private long lastSampleNanos;
+    private int idleSamples;
+
+    private final long connectTimeoutMs;
+    private final long handshakeTimeoutMs;
+    protected final long upgradeTimeoutMs;
+    protected final long statusTimeoutMs;
+    protected final long firstFrameTimeoutMs;
+    private final long inactivityTimeoutMs;
+    protected final long pingIntervalMs;
+    protected final long pongTimeoutMs;
+    private TimerWheel.Timeout phaseTimeout;
+    private TimerWheel.Timeout inactivityTimeout;
+    private TimerWheel.Timeout sampleTimeout;
+    private TimerWheel.Timeout attemptTimeout;
+    private long lastActivityMs;
+    private long lastReceiveMs;
 
     protected TcpConnection(Config config,
                             Selector selector,
                             StreamBuffer.Factory bufferFactory,
                             Connection.Listener listener) throws IOException {
+        this(config, selector, null, bufferFactory, listener);
+    }
+
+    protected TcpConnection(Config config,
+                            SldpEventLoop eventLoop,
+                            StreamBuffer.Factory bufferFactory,
+                            Connection.Listener listener) throws IOException {
+        this(config, eventLoop.selector(), eventLoop, bufferFactory, listener);
+    }
+
+    private TcpConnection(Config config,
+                          Selector selector,
+                          SldpEventLoop eventLoop,
+                          StreamBuffer.Factory bufferFactory,
+                          Connection.Listener listener) throws IOException {
         super(config.connectionId, bufferFactory, listener);
 
         this.selector = selector;
+        this.eventLoop = eventLoop;
 
         this.host = config.host;
         this.port = config.port;
         this.ssl = config.ssl;
         this.trustAllCerts = config.trustAllCerts;
         this.userAgent = config.userAgent;
-
-        inBuffer = ByteBuffer.allocate(4 * 1024 * 1024);
-        outBuffer = ByteBuffer.allocate(21 * 1024);
-
-        outBuffer.position(0);
-        outBuffer.limit(0);
+        this.hostResolver = config.hostResolver != null ? config.hostResolver : HostResolver.getDefault();
+        this.sslContextManager = config.sslContextManager != null
+                ? config.sslContextManager : SslContextManager.getInstance();
+
+        bufferPool = config.bufferPool != null ? config.bufferPool : BufferPool.getDefault();
+        sendBufferSize = config.sendBufferSize > 0 ? config.sendBufferSize : DEFAULT_SEND_BUFFER_SIZE;
+
+        connectTimeoutMs = timeoutOrDefault(config.connectTimeoutMs, DEFAULT_PHASE_TIMEOUT_MS);
+        handshakeTimeoutMs = timeoutOrDefault(config.handshakeTimeoutMs, DEFAULT_PHASE_TIMEOUT_MS);
+        upgradeTimeoutMs = timeoutOrDefault(config.upgradeTimeoutMs, DEFAULT_PHASE_TIMEOUT_MS);
+        statusTimeoutMs = timeoutOrDefault(config.statusTimeoutMs, DEFAULT_PHASE_TIMEOUT_MS);
+        firstFrameTimeoutMs = timeoutOrDefault(config.firstFrameTimeoutMs, DEFAULT_PHASE_TIMEOUT_MS);
+        inactivityTimeoutMs = timeoutOrDefault(config.inactivityTimeoutMs, DEFAULT_INACTIVITY_TIMEOUT_MS);
+        pingIntervalMs = timeoutOrDefault(config.pingIntervalMs, DEFAULT_PING_INTERVAL_MS);
+        pongTimeoutMs = Math.max(0, config.pongTimeoutMs);
 
         socketChannel = SocketChannel.open();
         socketChannel.configureBlocking(false);
     }
 
+    private static long timeoutOrDefault(int timeoutMs, long defaultMs) {
+        return timeoutMs > 0 ? timeoutMs : defaultMs;
+    }
+
     private final boolean ssl;
     private final boolean trustAllCerts;
     private boolean sslHandshakeFinished;
+    private boolean handshakeTaskPending;
+    private final SslContextManager sslContextManager;
+    private long handshakeStartMs;
+    private long handshakeStartNanos;
+    private long handshakeTimeUs = C.NO_VALUE;
+    private boolean sessionResumed;
     private SSLEngine sslEngine;
     private ByteBuffer wrappedBuffer;
     private ByteBuffer unwrappedBuffer;
 
-    @SuppressLint("CustomX509TrustManager")
-    @Nullable
-    private TrustManager[] getTrustManager() {
-        if (trustAllCerts) {
-            return new TrustManager[]{
-                    new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            //Log.d(TAG, "getAcceptedIssuers");
-                            return null;
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                            //Log.d(TAG, "checkClientTrusted");
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                            //Log.d(TAG, "checkServerTrusted");
-                        }
-                    }
-            };
-        }
-        return null;
-    }
-
     private boolean initSsl() {
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, getTrustManager(), new SecureRandom());
-
-            sslEngine = sslContext.createSSLEngine(host, port);
-            sslEngine.setUseClientMode(true);
+            sslEngine = sslContextManager.createEngine(trustAllCerts, host, port);
 
             int wrappedBufferSize = sslEngine.getSession().getPacketBufferSize();
             wrappedBuffer = ByteBuffer.allocate(wrappedBufferSize);
@@ -141,22 +217,189 @@ public abstract class TcpConnection extends Connection {
         }
     }
 
+    /**
+     * @return Duration of the TLS handshake in microseconds, or {@link C#NO_VALUE} if none completed.
+     */
+    public long getHandshakeTimeUs() {
+        return handshakeTimeUs;
+    }
+
+    /**
+     * @return true if the TLS session was resumed from the shared session cache.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    @Nullable
+    public SldpEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    protected boolean inEventLoop() {
+        return eventLoop == null || eventLoop.inEventLoop();
+    }
+
+    /**
+     * Runs the task on the connection's event loop, or inline when the connection
+     * is driven by an application-owned selector.
+     */
+    protected void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            eventLoop.execute(task);
+        }
+    }
+
     public void connect() {
-        try {
-            if (ssl && !initSsl()) {
+        if (!inEventLoop()) {
+            eventLoop.execute(this::connect);
+            return;
+        }
+
+        if (null == socketChannel) {
+            return;
+        }
+
+        if (ssl && !initSsl()) {
+            close();
+            return;
+        }
+
+        notifyOnStateChange(State.INITIALIZED, Status.SUCCESS);
+
+        if (eventLoop == null) {
+            // the application drives the selector, resolve in place through the cache
+            try {
+                startConnect(hostResolver.resolveNow(host));
+            } catch (Exception e) {
+                Log.e(TAG, Log.getStackTraceString(e));
                 close();
+            }
+            return;
+        }
+
+        eventLoop.register(this);
+        setPhaseTimeout("connect", connectTimeoutMs);
+        hostResolver.resolve(host, new HostResolver.Callback() {
+            @Override
+            public void onResolved(@NonNull InetAddress[] addresses) {
+                execute(() -> startConnect(addresses));
+            }
+
+            @Override
+            public void onFailed(@NonNull Exception e) {
+                Log.e(TAG, "failed to resolve " + host + ": " + e.getMessage());
+                execute(TcpConnection.this::close);
+            }
+        });
+    }
+
+    private void startConnect(InetAddress[] resolved) {
+        if (null == socketChannel) {
+            return;
+        }
+        addresses = HostResolver.interleave(resolved);
+        nextAddress = 0;
+        startNextAttempt();
+    }
+
+    /**
+     * Starts a connection attempt to the next resolved address. With an event loop a further
+     * attempt is raced after {@link #CONNECTION_ATTEMPT_DELAY_MS} if none has completed yet,
+     * without one the addresses are tried in turn as attempts fail.
+     */
+    private synchronized void startNextAttempt() {
+        // the race timer is either firing now or superseded by a failed attempt
+        cancelAttemptTimeout();
+        if (null == socketChannel || connected || null == addresses) {
+            return;
+        }
+
+        while (nextAddress < addresses.length) {
+            boolean first = nextAddress == 0;
+            InetSocketAddress address = new InetSocketAddress(addresses[nextAddress++], port);
+            SocketChannel channel = null;
+            try {
+                if (first) {
+                    channel = socketChannel;
+                } else {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+                attempts.add(channel);
+                channel.connect(address);
+
+                if (eventLoop != null && nextAddress < addresses.length) {
+                    attemptTimeout = eventLoop.schedule(this::startNextAttempt, CONNECTION_ATTEMPT_DELAY_MS);
+                }
                 return;
+
+            } catch (IOException e) {
+                Log.w(TAG, "failed to connect to " + address + ": " + e.getMessage());
+                if (channel != null) {
+                    attempts.remove(channel);
+                    closeChannel(channel);
+                }
             }
+        }
 
-            notifyOnStateChange(State.INITIALIZED, Status.SUCCESS);
+        if (attempts.isEmpty()) {
+            Log.e(TAG, "no reachable address for " + host);
+            close();
+        }
+    }
 
-            socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+    private synchronized void cancelAttemptTimeout() {
+        if (null != attemptTimeout) {
+            attemptTimeout.cancel();
+            attemptTimeout = null;
+        }
+    }
 
-            InetSocketAddress socketAddress = new InetSocketAddress(host, port);
-            socketChannel.connect(socketAddress);
-        } catch (Exception e) {
+    private synchronized void onAttemptFailed(SocketChannel channel) {
+        attempts.remove(channel);
+        closeChannel(channel);
+        if (attempts.isEmpty()) {
+            startNextAttempt();
+        }
+    }
+
+    /**
+     * Makes the first connected attempt the connection's channel and cancels the others.
+     *
+     * @return false if another attempt already won or the connection was closed.
+     */
+    private synchronized boolean adoptChannel(SocketChannel channel) {
+        if (null == socketChannel || connected) {
+            closeChannel(channel);
+            return false;
+        }
+        cancelAttemptTimeout();
+        attempts.remove(channel);
+        for (SocketChannel attempt : attempts) {
+            closeChannel(attempt);
+        }
+        attempts.clear();
+        if (channel != socketChannel) {
+            closeChannel(socketChannel);
+            socketChannel = channel;
+        }
+        connected = true;
+        return true;
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            SelectionKey selectionKey = selector != null ? channel.keyFor(selector) : null;
+            if (null != selectionKey) {
+                selectionKey.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
             Log.e(TAG, Log.getStackTraceString(e));
-            close();
         }
     }
 
@@ -190,53 +433,124 @@ public abstract class TcpConnection extends Connection {
     }
 
     public void send(byte[] buffer, int offset, int count) throws IOException {
+        stage(count).put(buffer, offset, count);
+        sendPending();
+    }
 
-        if (null == outBuffer) {
-            close();
+    /**
+     * Queues the staged bytes as one segment and tries to flush the queue.
+     */
+    protected void sendPending() throws IOException {
+        if (null == socketChannel) {
+            return;
+        }
+        if (null == pending || pending.position() == 0) {
+            flush();
             return;
         }
 
-        outBuffer.compact();
-        outBuffer.put(buffer, offset, count);
-        outBuffer.flip();
+        ByteBuffer segment = pending;
+        pending = null;
+        segment.flip();
 
         if (ssl) {
-            if (wrappedBuffer.hasRemaining()) {
-                close();
-                return;
+            while (segment.hasRemaining()) {
+                SSLEngineResult result = wrap(segment, wrappedBuffer);
+                if (result.getStatus() != OK) {
+                    close();
+                    return;
+                }
+                queueWrapped();
             }
+        } else {
+            queue(segment);
+        }
 
-            SSLEngineResult result = wrap(outBuffer, wrappedBuffer);
-            if (result.getStatus() != OK) {
-                close();
-                return;
-            }
+        flush();
+    }
 
-            sendInternal(wrappedBuffer);
+    private void queue(ByteBuffer segment) {
+        sendQueue.addLast(segment);
+        queuedBytes += segment.remaining();
+    }
 
-        } else {
+    private void queueWrapped() {
+        ByteBuffer segment = ByteBuffer.allocate(wrappedBuffer.remaining());
+        segment.put(wrappedBuffer);
+        segment.flip();
+        queue(segment);
+    }
 
-            sendInternal(outBuffer);
+    /**
+     * Writes as much of the queue as the socket accepts with a single gathering write.
+     */
+    private void flush() throws IOException {
+        if (null == socketChannel || sendQueue.isEmpty()) {
+            return;
         }
-    }
 
-    private void sendInternal(ByteBuffer buffer) throws IOException {
+        int count = 0;
+        for (ByteBuffer segment : sendQueue) {
+            if (count == gather.length) {
+                break;
+            }
+            gather[count++] = segment;
+        }
 
-        int bytesSent = socketChannel.write(buffer);
+        long bytesSent = socketChannel.write(gather, 0, count);
+        Arrays.fill(gather, 0, count, null);
         if (bytesSent > 0) {
-            inactivityCount = 0;
+            markActivity();
+            queuedBytes -= bytesSent;
+        }
+
+        while (!sendQueue.isEmpty() && !sendQueue.peekFirst().hasRemaining()) {
+            sendQueue.pollFirst();
         }
 
-        if (buffer.hasRemaining()) {
+        if (sendQueue.isEmpty()) {
+            setOps(SelectionKey.OP_READ);
+            onSend();
+        } else {
             setOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
     }
 
+    /**
+     * Returns a staging buffer with room for {@code count} more bytes.
+     * The staged bytes go out as one segment on the next {@link #sendPending()}.
+     */
+    protected ByteBuffer stage(int count) {
+        if (null == pending) {
+            pending = ByteBuffer.allocate(Math.max(count, MIN_SEGMENT_SIZE));
+        } else if (pending.remaining() < count) {
+            ByteBuffer res = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + count));
+            pending.flip();
+            res.put(pending);
+            pending = res;
+        }
+        return pending;
+    }
+
+    /**
+     * Outbound data is queued rather than dropped when the socket is not writable.
+     * Callers that produce data continuously should hold off while this returns 0
+     * and resume from {@link #onSend()}, which is invoked once the queue has drained.
+     *
+     * @return Bytes that can still be queued before the send buffer limit is reached.
+     */
     public int getSendBufferRemaining() {
-        if (null == outBuffer) {
+        if (null == socketChannel) {
             return 0;
         }
-        return outBuffer.remaining();
+        return (int) Math.max(0, sendBufferSize - queuedBytes);
+    }
+
+    /**
+     * @return Bytes queued but not yet accepted by the socket.
+     */
+    public long getSendQueueSize() {
+        return queuedBytes;
     }
 
     public void append(String request) throws IOException {
@@ -245,14 +559,7 @@ public abstract class TcpConnection extends Connection {
     }
 
     public void append(int b) throws IOException {
-        if (null == outBuffer) {
-            close();
-            return;
-        }
-
-        outBuffer.compact();
-        outBuffer.put((byte) (b & 0xFF));
-        outBuffer.flip();
+        stage(1).put((byte) (b & 0xFF));
     }
 
     public void append(byte[] buffer) throws IOException {
@@ -260,15 +567,188 @@ public abstract class TcpConnection extends Connection {
     }
 
     void append(byte[] buffer, int count) throws IOException {
+        stage(count).put(buffer, 0, count);
+    }
+
+    /**
+     * @return Bytes of pooled receive memory currently held by this connection.
+     */
+    public long getBufferMemory() {
+        return bufferPool.getAllocatedBytes(this);
+    }
+
+    protected BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Round trip estimate used to size the receive buffer to the bandwidth-delay product.
+     */
+    protected long getRttEstimateUs() {
+        return DEFAULT_RTT_US;
+    }
+
+    /**
+     * Makes sure there is room for the next read, growing the buffer to the next size class
+     * when a partial message has filled it.
+     *
+     * @return false if the buffer is full and cannot grow any further.
+     */
+    private boolean ensureInBuffer() {
+        if (null == inBuffer) {
+            inBuffer = bufferPool.acquire(this, BufferPool.MIN_BUFFER_SIZE);
+            lastSampleNanos = System.nanoTime();
+            return true;
+        }
+        if (inBuffer.hasRemaining()) {
+            return true;
+        }
+        if (inBuffer.capacity() >= BufferPool.MAX_BUFFER_SIZE) {
+            return false;
+        }
+        resizeInBuffer(BufferPool.sizeClassFor(inBuffer.capacity() + 1));
+        return true;
+    }
+
+    private void resizeInBuffer(int capacity) {
+        ByteBuffer res = bufferPool.acquire(this, capacity);
+        inBuffer.flip();
+        res.put(inBuffer);
+        bufferPool.release(this, inBuffer);
+        inBuffer = res;
+    }
+
+    private void releaseInBuffer() {
+        if (null != inBuffer) {
+            bufferPool.release(this, inBuffer);
+            inBuffer = null;
+        }
+    }
+
+    /**
+     * Resizes the receive buffer toward twice the measured bandwidth-delay product
+     * and gives it back to the pool once the connection has been idle for a while.
+     */
+    private void sampleReceiveRate() {
+        long now = System.nanoTime();
+        long elapsedNanos = now - lastSampleNanos;
+        long bytes = bytesSinceSample;
+        lastSampleNanos = now;
+        bytesSinceSample = 0;
+
+        if (null == inBuffer) {
+            return;
+        }
+
+        if (bytes == 0) {
+            if (++idleSamples >= IDLE_SAMPLES_BEFORE_RELEASE && inBuffer.position() == 0) {
+                releaseInBuffer();
+            }
+            return;
+        }
+        idleSamples = 0;
 
-        if (null == outBuffer) {
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        long bytesPerSecond = bytes * 1_000_000_000L / elapsedNanos;
+        long bdp = bytesPerSecond * getRttEstimateUs() / 1_000_000L;
+        int target = BufferPool.sizeClassFor((int) Math.min(2 * bdp, BufferPool.MAX_BUFFER_SIZE));
+        target = Math.max(target, BufferPool.MIN_BUFFER_SIZE);
+
+        int capacity = inBuffer.capacity();
+        if (capacity < target) {
+            resizeInBuffer(target);
+        } else if (capacity >= 4 * target && inBuffer.position() <= target / 2) {
+            resizeInBuffer(target);
+        }
+    }
+
+    /**
+     * Arms the deadline of the current connection phase, replacing the previous one.
+     * The connection is closed if the phase has not been left by then.
+     */
+    protected void setPhaseTimeout(final String phase, long timeoutMs) {
+        if (null == eventLoop) {
+            return;
+        }
+        clearPhaseTimeout();
+        phaseTimeout = eventLoop.schedule(() -> {
+            phaseTimeout = null;
+            if (null != socketChannel) {
+                Log.w(TAG, phase + " timeout expired, id=" + getConnectionId());
+                close();
+            }
+        }, timeoutMs);
+    }
+
+    protected void clearPhaseTimeout() {
+        if (null != phaseTimeout) {
+            phaseTimeout.cancel();
+            phaseTimeout = null;
+        }
+    }
+
+    private void markActivity() {
+        inactivityCount = 0;
+        if (null != eventLoop) {
+            lastActivityMs = eventLoop.now();
+        }
+    }
+
+    /**
+     * @return Event loop time of the last read from the socket.
+     */
+    protected long getLastReceiveTimeMs() {
+        return lastReceiveMs;
+    }
+
+    /**
+     * Starts the inactivity deadline and the receive rate sampling once a channel is connected.
+     */
+    private void startTimers() {
+        if (null == eventLoop) {
+            return;
+        }
+        markActivity();
+        lastReceiveMs = lastActivityMs;
+        inactivityTimeout = eventLoop.schedule(this::checkInactivity, inactivityTimeoutMs);
+        sampleTimeout = eventLoop.schedule(this::sample, SAMPLE_INTERVAL_MS);
+    }
+
+    private void cancelTimers() {
+        clearPhaseTimeout();
+        cancelAttemptTimeout();
+        if (null != inactivityTimeout) {
+            inactivityTimeout.cancel();
+            inactivityTimeout = null;
+        }
+        if (null != sampleTimeout) {
+            sampleTimeout.cancel();
+            sampleTimeout = null;
+        }
+    }
+
+    private void checkInactivity() {
+        if (null == socketChannel) {
+            return;
+        }
+        // traffic only stamps lastActivityMs, the deadline is pushed out lazily when it fires
+        long idleMs = eventLoop.now() - lastActivityMs;
+        if (idleMs >= inactivityTimeoutMs) {
+            Log.w(TAG, "inactivity timeout expired");
             close();
             return;
         }
+        inactivityTimeout = eventLoop.schedule(this::checkInactivity, inactivityTimeoutMs - idleMs);
+    }
 
-        outBuffer.compact();
-        outBuffer.put(buffer, 0, count);
-        outBuffer.flip();
+    private void sample() {
+        if (null == socketChannel) {
+            return;
+        }
+        sampleReceiveRate();
+        sampleTimeout = eventLoop.schedule(this::sample, SAMPLE_INTERVAL_MS);
     }
 
     abstract public void onConnect();
@@ -281,7 +761,17 @@ public abstract class TcpConnection extends Connection {
 
     protected int inactivityCount = 0;
 
+    /**
+     * Polled inactivity check for connections driven by an application-owned selector.
+     * Connections on an {@link SldpEventLoop} keep their own deadlines and ignore this.
+     */
     public void verifyInactivity() {
+        if (null != eventLoop) {
+            return;
+        }
+
+        sampleReceiveRate();
+
         inactivityCount++;
         if (inactivityCount > 5) {
             Log.w(TAG, "inactivity timeout expired");
@@ -290,37 +780,63 @@ public abstract class TcpConnection extends Connection {
     }
 
     public void processEvent(SelectionKey selectionKey) {
-        if (null == selectionKey) {
+        if (null == selectionKey || null == socketChannel) {
             return;
         }
 
         try {
 
             if (selectionKey.isConnectable()) {
-                if (socketChannel.finishConnect()) {
-                    inactivityCount = 0;
+                SocketChannel channel = (SocketChannel) selectionKey.channel();
+                boolean finished;
+                try {
+                    finished = channel.finishConnect();
+                } catch (IOException e) {
+                    Log.w(TAG, "connection attempt failed: " + e.getMessage());
+                    onAttemptFailed(channel);
+                    return;
+                }
+
+                if (finished && adoptChannel(channel)) {
+                    startTimers();
                     setOps(SelectionKey.OP_READ);
 
                     if (ssl) {
+                        setPhaseTimeout("TLS handshake", handshakeTimeoutMs);
+                        handshakeStartMs = System.currentTimeMillis();
+                        handshakeStartNanos = System.nanoTime();
                         sslEngine.beginHandshake();
                         SSLEngineResult.HandshakeStatus hs = sslEngine.getHandshakeStatus();
                         if (hs == NEED_WRAP) {
-                            wrap(outBuffer, wrappedBuffer);
-                            sendInternal(wrappedBuffer);
+                            wrap(EMPTY_BUFFER, wrappedBuffer);
+                            queueWrapped();
+                            flush();
                         } else {
                             Log.e(TAG, "unexpected handshake status on connect, hs=" + hs);
                             close();
                         }
 
                     } else {
+                        clearPhaseTimeout();
                         onConnect();
                     }
                 }
+                return;
+            }
+
+            if (selectionKey.channel() != socketChannel) {
+                return;
             }
 
             if (selectionKey.isReadable()) {
                 //Log.v(TAG, "read: pos=" + inBuffer.position() + "; limit=" + inBuffer.limit());
 
+                if (!ensureInBuffer()) {
+                    Log.e(TAG, "receive buffer overflow");
+                    close();
+                    return;
+                }
+
                 int bytesRead = socketChannel.read(inBuffer);
                 //Log.d(TAG, "bytesRead=" + bytesRead);
                 if (bytesRead <= 0) {
@@ -328,7 +844,12 @@ public abstract class TcpConnection extends Connection {
                     return;
                 }
 
-                inactivityCount = 0;
+                markActivity();
+                lastReceiveMs = lastActivityMs;
+                bytesSinceSample += bytesRead;
+                if (eventLoop != null) {
+                    eventLoop.onBytesReceived(bytesRead);
+                }
 
                 if (ssl) {
 
@@ -362,95 +883,142 @@ public abstract class TcpConnection extends Connection {
 
                         }
 
-                    } else {
+                    } else if (!handshakeTaskPending) {
+                        continueHandshake();
+                    }
 
-                        SSLEngineResult.HandshakeStatus hs = sslEngine.getHandshakeStatus();
-                        //Log.d(TAG, "hs=" + hs);
+                } else {
+                    inBuffer.flip();
+                    onRecv(inBuffer);
+                    inBuffer.compact();
+                }
+            }
 
-                        SSLEngineResult result;
-                        SSLEngineResult.Status status = OK;
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                //Log.d(TAG, "write event");
+                flush();
+            }
 
-                        while (hs != FINISHED && hs != NOT_HANDSHAKING && status == OK) {
+        } catch (Exception e) {
+            Log.d(TAG, Log.getStackTraceString(e));
+            close();
+        }
+    }
 
-                            if (hs == NEED_UNWRAP) {
+    private void continueHandshake() throws Exception {
+        if (null == socketChannel || !ensureInBuffer()) {
+            return;
+        }
 
-                                inBuffer.flip();
-                                result = sslEngine.unwrap(inBuffer, unwrappedBuffer);
-                                inBuffer.compact();
+        SSLEngineResult.HandshakeStatus hs = sslEngine.getHandshakeStatus();
+        //Log.d(TAG, "hs=" + hs);
 
-                                hs = result.getHandshakeStatus();
-                                status = result.getStatus();
+        SSLEngineResult result;
+        SSLEngineResult.Status status = OK;
 
-                            } else if (hs == NEED_WRAP) {
+        while (hs != FINISHED && hs != NOT_HANDSHAKING && status == OK) {
 
-                                result = wrap(outBuffer, wrappedBuffer);
+            if (hs == NEED_UNWRAP) {
 
-                                hs = result.getHandshakeStatus();
-                                status = result.getStatus();
+                inBuffer.flip();
+                result = sslEngine.unwrap(inBuffer, unwrappedBuffer);
+                inBuffer.compact();
 
-                                if (status == OK) {
-                                    sendInternal(wrappedBuffer);
-                                }
+                hs = result.getHandshakeStatus();
+                status = result.getStatus();
 
-                            } else if (hs == NEED_TASK) {
+            } else if (hs == NEED_WRAP) {
 
-                                Runnable runnable;
-                                while ((runnable = sslEngine.getDelegatedTask()) != null) {
-                                    //Log.d(TAG, "running delegated task...");
-                                    runnable.run();
-                                }
-                                hs = sslEngine.getHandshakeStatus();
-                                if (hs == NEED_TASK) {
-                                    throw new Exception("handshake shouldn't need additional tasks");
-                                }
+                result = wrap(EMPTY_BUFFER, wrappedBuffer);
 
-                            } else {
+                hs = result.getHandshakeStatus();
+                status = result.getStatus();
 
-                                Log.e(TAG, "unexpected hs=" + hs);
-                                close();
-                                return;
-                            }
+                if (status == OK) {
+                    queueWrapped();
+                    flush();
+                }
 
-                            //Log.d(TAG, "new hs=" + hs);
-                            //Log.d(TAG, "new status=" + status);
-                        }
+            } else if (hs == NEED_TASK) {
 
-                        // In some cases, on some platforms, the engine can go directly
-                        // from a handshaking state to NOT_HANDSHAKING.
-                        // We handle this situation as if it had returned FINISHED.
+                if (eventLoop != null) {
+                    // certificate checks and key agreement must not stall the other connections on this loop
+                    runDelegatedTasks();
+                    return;
+                }
 
-                        // hs == NEED_UNWRAP && status == BUFFER_UNDERFLOW
-                        // do nothing and wait for next data portion
+                Runnable runnable;
+                while ((runnable = sslEngine.getDelegatedTask()) != null) {
+                    //Log.d(TAG, "running delegated task...");
+                    runnable.run();
+                }
+                hs = sslEngine.getHandshakeStatus();
+                if (hs == NEED_TASK) {
+                    throw new Exception("handshake shouldn't need additional tasks");
+                }
 
-                        if ((hs == FINISHED || hs == NOT_HANDSHAKING) && status == OK) {
-                            //Log.d(TAG, "ssl handshake finished");
-                            sslHandshakeFinished = true;
-                            onConnect();
-                        }
-                    }
+            } else {
 
-                } else {
-                    inBuffer.flip();
-                    onRecv(inBuffer);
-                    inBuffer.compact();
-                }
+                Log.e(TAG, "unexpected hs=" + hs);
+                close();
+                return;
             }
 
-            if (selectionKey.isWritable()) {
-                //Log.d(TAG, "write event");
+            //Log.d(TAG, "new hs=" + hs);
+            //Log.d(TAG, "new status=" + status);
+        }
 
-                if (ssl) {
-                    sendBuffer(wrappedBuffer);
+        // In some cases, on some platforms, the engine can go directly
+        // from a handshaking state to NOT_HANDSHAKING.
+        // We handle this situation as if it had returned FINISHED.
+
+        // hs == NEED_UNWRAP && status == BUFFER_UNDERFLOW
+        // do nothing and wait for next data portion
+
+        if ((hs == FINISHED || hs == NOT_HANDSHAKING) && status == OK) {
+            //Log.d(TAG, "ssl handshake finished");
+            sslHandshakeFinished = true;
+            handshakeTimeUs = (System.nanoTime() - handshakeStartNanos) / 1000;
+            sessionResumed = sslContextManager.onHandshakeFinished(host, port,
+                    sslEngine.getSession(), handshakeStartMs, handshakeTimeUs);
+            clearPhaseTimeout();
+            onConnect();
+        }
+    }
 
-                } else {
-                    sendBuffer(outBuffer);
+    private void runDelegatedTasks() {
+        handshakeTaskPending = true;
+        final SSLEngine engine = sslEngine;
+        Runnable task = () -> {
+            try {
+                Runnable runnable;
+                while ((runnable = engine.getDelegatedTask()) != null) {
+                    runnable.run();
                 }
+            } finally {
+                // resume on the loop even if a task failed, the engine reports the error there
+                eventLoop.execute(() -> {
+                    if (engine != sslEngine) {
+                        // the connection was closed and reopened meanwhile
+                        return;
+                    }
+                    handshakeTaskPending = false;
+                    try {
+                        continueHandshake();
+                    } catch (Exception e) {
+                        Log.d(TAG, Log.getStackTraceString(e));
+                        close();
+                    }
+                });
             }
-
-        } catch (Exception e) {
-            Log.d(TAG, Log.getStackTraceString(e));
-            close();
-        }
+        };
+        // with every worker busy the handshake waits, still pending, for the next free one;
+        // the handshake timeout bounds the wait
+        sslContextManager.execute(task, () -> eventLoop.execute(() -> {
+            if (engine == sslEngine && handshakeTaskPending) {
+                runDelegatedTasks();
+            }
+        }));
     }
 
     private void setOps(int operations) {
@@ -466,29 +1034,20 @@ public abstract class TcpConnection extends Connection {
         selectionKey.interestOps(operations);
     }
 
-    private void sendBuffer(ByteBuffer buffer) {
-        //Log.d(TAG, "sendBuffer");
-
-        try {
-
-            int bytesSent = socketChannel.write(buffer);
-            if (bytesSent > 0) {
-                inactivityCount = 0;
-            }
-
-            if (!buffer.hasRemaining()) {
-                setOps(SelectionKey.OP_READ);
-
-                onSend();
-            }
-
-        } catch (IOException e) {
-            Log.e(TAG, Log.getStackTraceString(e));
-            close();
+    /**
+     * Closes the connection on its event loop, the only thread that uses the channel, selector
+     * and send queue; called from another thread, the close is queued to the loop. Once the
+     * loop has terminated nothing else uses them, so the close runs right away and the channel
+     * and pooled buffers are still released.
+     */
+    public void close() {
+        if (!inEventLoop() && eventLoop.offer(this::close)) {
+            return;
         }
+        closeOnLoop();
     }
 
-    synchronized public void close() {
+    private synchronized void closeOnLoop() {
         if (null == socketChannel) {
             return;
         }
@@ -496,6 +1055,12 @@ public abstract class TcpConnection extends Connection {
         //Log.e(TAG, Log.getStackTraceString(new Exception()));
 
         try {
+            for (SocketChannel attempt : attempts) {
+                closeChannel(attempt);
+            }
+            attempts.clear();
+            cancelTimers();
+
             socketChannel.close();
 
             SelectionKey selectionKey = socketChannel.keyFor(selector);
@@ -505,9 +1070,48 @@ public abstract class TcpConnection extends Connection {
 
             socketChannel = null;
             selector = null;
+            pending = null;
+            sendQueue.clear();
+            queuedBytes = 0;
+
+            releaseInBuffer();
+
+            if (eventLoop != null) {
+                eventLoop.unregister(this);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, Log.getStackTraceString(e));
+        }
+    }
+
+    /**
+     * Prepares a closed connection for another {@link #connect()} on the same event loop.
+     *
+     * @return false if the connection is still open, is not on an event loop or no socket could be opened.
+     */
+    protected synchronized boolean reopen() {
+        if (null != socketChannel || null == eventLoop) {
+            return false;
+        }
+        try {
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
         } catch (IOException e) {
             Log.e(TAG, Log.getStackTraceString(e));
+            return false;
         }
+        selector = eventLoop.selector();
+        eventLoop.reserve();
+
+        connected = false;
+        addresses = null;
+        nextAddress = 0;
+        sslHandshakeFinished = false;
+        handshakeTaskPending = false;
+        handshakeTimeUs = C.NO_VALUE;
+        sessionResumed = false;
+        inactivityCount = 0;
+        return true;
     }
 
     @Override
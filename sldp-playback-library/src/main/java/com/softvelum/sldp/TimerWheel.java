@@ -0,0 +1,191 @@
+package com.softvelum.sldp;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel. Scheduling and cancelling are O(1), and each tick only touches
+ * the timeouts hashed to a single slot. Not thread-safe, it is driven by one {@link SldpEventLoop}.
+ */
+public final class TimerWheel {
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // tick the timeout fires at, set once it is on the wheel
+        private long tick;
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running. Safe to call from any thread, the entry itself
+         * is dropped when its slot is next visited.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private static final long NO_TICK = Long.MAX_VALUE;
+    private static final long UNKNOWN_TICK = -1;
+
+    private final long tickMs;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startMs;
+    private long tick;
+    private int size;
+    // earliest tick holding a live timeout, NO_TICK if none, UNKNOWN_TICK until rescanned
+    private long dueTick = NO_TICK;
+    // a timeout firing at dueTick; once it fires or is cancelled the wheel is rescanned
+    private Timeout due;
+
+    /**
+     * @param tickMs    Resolution of the wheel.
+     * @param slotCount Number of slots, rounded up to a power of two.
+     * @param nowMs     Current time, the origin of the first tick.
+     */
+    public TimerWheel(long tickMs, int slotCount, long nowMs) {
+        int slots = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMs = tickMs;
+        this.buckets = new Bucket[slots];
+        for (int i = 0; i < slots; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = slots - 1;
+        this.startMs = nowMs;
+    }
+
+    public Timeout schedule(Runnable task, long delayMs, long nowMs) {
+        Timeout timeout = newTimeout(task, delayMs, nowMs);
+        add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Creates a timeout without placing it on the wheel, for handing over to the loop thread.
+     */
+    static Timeout newTimeout(Runnable task, long delayMs, long nowMs) {
+        return new Timeout(task, nowMs + Math.max(0, delayMs));
+    }
+
+    void add(Timeout timeout) {
+        // never place a timeout behind the tick currently being processed
+        long ticks = Math.max((timeout.deadline - startMs + tickMs - 1) / tickMs, tick);
+        timeout.tick = ticks;
+        timeout.rounds = (ticks - tick) / buckets.length;
+        buckets[(int) (ticks & mask)].add(timeout);
+        size++;
+        if (dueTick != UNKNOWN_TICK && ticks < dueTick) {
+            dueTick = ticks;
+            due = timeout;
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Milliseconds until the earliest pending timeout is due, or -1 if there is none.
+     */
+    public long getDelayToNextTimeout(long nowMs) {
+        if (dueTick == UNKNOWN_TICK || (due != null && due.cancelled)) {
+            findDue();
+        }
+        if (dueTick == NO_TICK) {
+            return -1;
+        }
+        return Math.max(0, startMs + dueTick * tickMs - nowMs);
+    }
+
+    /**
+     * Finds the earliest live timeout. Only needed once the previous one fired or was cancelled.
+     */
+    private void findDue() {
+        dueTick = NO_TICK;
+        due = null;
+        // walk the slots in firing order, a timeout waiting for more rounds fires a whole turn later
+        for (int i = 0; i < buckets.length && dueTick > tick + i; i++) {
+            for (Timeout timeout = buckets[(int) ((tick + i) & mask)].head; timeout != null; timeout = timeout.next) {
+                if (!timeout.cancelled && timeout.tick < dueTick) {
+                    dueTick = timeout.tick;
+                    due = timeout;
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes every tick up to {@code nowMs} and collects the tasks that are due.
+     */
+    public void advance(long nowMs, List<Runnable> expired) {
+        while (startMs + tick * tickMs <= nowMs) {
+            Bucket bucket = buckets[(int) (tick & mask)];
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    bucket.remove(timeout);
+                    size--;
+                } else if (timeout.rounds <= 0) {
+                    bucket.remove(timeout);
+                    size--;
+                    expired.add(timeout.task);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+            tick++;
+        }
+        if (dueTick != NO_TICK && dueTick < tick) {
+            // the earliest timeout fired, the next one is looked up when it is asked for
+            dueTick = UNKNOWN_TICK;
+        }
+    }
+}
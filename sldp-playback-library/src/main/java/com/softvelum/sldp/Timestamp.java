@@ -1,8 +1,8 @@
 package com.softvelum.sldp;
 
 public class Timestamp {
-    private static final int TIMESCALE_MS = 1_000;
-    private static final int TIMESCALE_US = 1_000_000;
+    static final int TIMESCALE_MS = 1_000;
+    static final int TIMESCALE_US = 1_000_000;
 
     private final long dts;
     private final int offset;
@@ -26,12 +26,86 @@ public class Timestamp {
         this.timescale = timescale;
     }
 
-    private long getDts(int targetTimescale) {
+    /**
+     * Exact conversion from one timescale to another, with the ratio reduced once up front.
+     * Results are truncated toward zero and exact as long as they fit a long, so a 90 kHz
+     * clock converts to microseconds without drift however long the stream runs.
+     */
+    public static final class Rescaler {
+        private final int timescale;
+        private final long multiplier;
+        private final long divisor;
+
+        public Rescaler(int timescale, int targetTimescale) {
+            this.timescale = timescale;
+            if (timescale <= 0 || targetTimescale <= 0) {
+                multiplier = 0;
+                divisor = 0;
+            } else {
+                int gcd = gcd(timescale, targetTimescale);
+                multiplier = targetTimescale / gcd;
+                divisor = timescale / gcd;
+            }
+        }
+
+        public int getTimescale() {
+            return timescale;
+        }
+
+        public long rescale(long value) {
+            return scale(value, multiplier, divisor);
+        }
+    }
+
+    private static long scale(long value, long multiplier, long divisor) {
+        if (divisor == 0) {
+            // no timescale yet, saturate as the floating point conversion did
+            return value > 0 ? Long.MAX_VALUE : value < 0 ? Long.MIN_VALUE : 0;
+        }
+        if (divisor == 1) {
+            return value * multiplier;
+        }
+        // value * multiplier / divisor, split so that the product cannot overflow:
+        // the remainder is below the divisor, and both are ints
+        long quotient = value / divisor;
+        long remainder = value % divisor;
+        return quotient * multiplier + remainder * multiplier / divisor;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Converts a time from one timescale to another without creating a Timestamp.
+     * Prefer a {@link Rescaler} for repeated conversions between the same timescales.
+     */
+    public static long rescale(long value, int timescale, int targetTimescale) {
         if (timescale == targetTimescale) {
-            return dts;
-        } else {
-            return (long) ((dts / (double) timescale) * targetTimescale);
+            return value;
         }
+        if (timescale <= 0 || targetTimescale <= 0) {
+            return scale(value, 0, 0);
+        }
+        int gcd = gcd(timescale, targetTimescale);
+        return scale(value, targetTimescale / gcd, timescale / gcd);
+    }
+
+    public static long toMs(long value, int timescale) {
+        return rescale(value, timescale, TIMESCALE_MS);
+    }
+
+    public static long toUs(long value, int timescale) {
+        return rescale(value, timescale, TIMESCALE_US);
+    }
+
+    private long getDts(int targetTimescale) {
+        return rescale(dts, timescale, targetTimescale);
     }
 
     public long getDtsMs() {
@@ -43,11 +117,7 @@ public class Timestamp {
     }
 
     private long getPts(int targetTimescale) {
-        if (timescale == targetTimescale) {
-            return dts + offset;
-        } else {
-            return (long) (((dts + offset) / (double) timescale) * targetTimescale);
-        }
+        return rescale(dts + offset, timescale, targetTimescale);
     }
 
     public long getPtsMs() {
@@ -62,6 +132,10 @@ public class Timestamp {
         return dts + offset;
     }
 
+    public long getDts() {
+        return dts;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (this == other) {
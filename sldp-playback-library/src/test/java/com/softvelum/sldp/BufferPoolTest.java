@@ -0,0 +1,68 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void roundsUpToSizeClasses() {
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.sizeClassFor(1));
+        assertEquals(64 * 1024, BufferPool.sizeClassFor(BufferPool.MIN_BUFFER_SIZE + 1));
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, BufferPool.sizeClassFor(BufferPool.MAX_BUFFER_SIZE));
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, BufferPool.sizeClassFor(BufferPool.MAX_BUFFER_SIZE + 1));
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        Object owner = new Object();
+        ByteBuffer buffer = pool.acquire(owner, 100);
+        assertTrue(buffer.isDirect());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(owner, buffer);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getPooledBytes());
+
+        ByteBuffer again = pool.acquire(owner, 1000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void chargesOwners() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        Object first = new Object();
+        Object second = new Object();
+        ByteBuffer a = pool.acquire(first, 1);
+        ByteBuffer b = pool.acquire(second, 100_000);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getAllocatedBytes(first));
+        assertEquals(256 * 1024, pool.getAllocatedBytes(second));
+        assertEquals(2, pool.getOwnerCount());
+
+        pool.release(first, a);
+        pool.release(second, b);
+        assertEquals(0, pool.getAllocatedBytes());
+        assertEquals(0, pool.getOwnerCount());
+    }
+
+    @Test
+    public void keepsNoMoreThanTheLimit() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        Object owner = new Object();
+        ByteBuffer large = pool.acquire(owner, 100_000);
+        pool.release(owner, large);
+        assertEquals(0, pool.getPooledBytes());
+
+        ByteBuffer oversized = pool.acquire(owner, BufferPool.MAX_BUFFER_SIZE + 1);
+        pool.release(owner, oversized);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getAllocatedBytes(owner));
+    }
+}
@@ -0,0 +1,75 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockOffsetEstimatorTest {
+    // local time minus server time
+    private static final long OFFSET = 5_000_000;
+
+    /**
+     * Adds an exchange with the given one-way delays and server handling time.
+     */
+    private static void exchange(ClockOffsetEstimator estimator, long sent, long up, long handling, long down) {
+        long remote = sent + up + handling - OFFSET;
+        estimator.addExchange(sent, remote, sent + up + handling + down);
+    }
+
+    @Test
+    public void takesTheServerTimeHalfwayThroughTheRoundTrip() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        assertFalse(estimator.hasOffset());
+        assertEquals(C.NO_VALUE, estimator.getRoundTripUs());
+
+        exchange(estimator, 1_000_000, 20_000, 0, 20_000);
+        assertTrue(estimator.hasOffset());
+        assertEquals(OFFSET, estimator.getOffsetUs());
+        assertEquals(40_000, estimator.getRoundTripUs());
+    }
+
+    @Test
+    public void prefersTheShortestRoundTrip() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        // a queued sample is off by half its extra delay, the fast one is exact
+        exchange(estimator, 1_000_000, 80_000, 0, 20_000);
+        exchange(estimator, 2_000_000, 20_000, 0, 20_000);
+        exchange(estimator, 3_000_000, 20_000, 0, 60_000);
+        assertEquals(OFFSET, estimator.getOffsetUs());
+        assertEquals(40_000, estimator.getRoundTripUs());
+    }
+
+    @Test
+    public void pingsRemoveTheServerHandlingTime() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        exchange(estimator, 1_000_000, 20_000, 30_000, 20_000);
+        // without a ping the handling time counts as path delay
+        assertEquals(OFFSET - 15_000, estimator.getOffsetUs());
+        estimator.addRtt(50_000);
+        estimator.addRtt(40_000);
+        estimator.addRtt(-1);
+        assertEquals(OFFSET, estimator.getOffsetUs());
+    }
+
+    @Test
+    public void startsOverOnAnotherServerClock() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        exchange(estimator, 1_000_000, 10_000, 0, 10_000);
+        estimator.addRtt(20_000);
+
+        // a new server ten seconds off, reached over a slower route
+        long remote = 2_000_000 + 40_000 - OFFSET - 10_000_000;
+        estimator.addExchange(2_000_000, remote, 2_000_000 + 80_000);
+        assertEquals(OFFSET + 10_000_000, estimator.getOffsetUs());
+        assertEquals(80_000, estimator.getRoundTripUs());
+    }
+
+    @Test
+    public void ignoresExchangesEndingBeforeTheyStart() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        estimator.addExchange(2_000_000, 0, 1_000_000);
+        assertFalse(estimator.hasOffset());
+    }
+}
@@ -0,0 +1,125 @@
+package com.softvelum.sldp;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodecConfigTest {
+    private static final byte[] AVCC = bytes(
+            0x01, 0x64, 0x00, 0x1f, 0xff,
+            0xe1, 0x00, 0x04, 0x67, 0x64, 0x00, 0x1f,
+            0x01, 0x00, 0x03, 0x68, 0xee, 0x3c);
+
+    // VPS, SPS and PPS in reverse order, with an SEI array in between
+    private static final byte[] HVCC = bytes(
+            0x01, 0x01, 0x60, 0x00, 0x00, 0x00, 0x90, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x5d, 0xf0, 0x00, 0xfc, 0xfd, 0xf8, 0xf8, 0x00, 0x00, 0x0f, 0x04,
+            0xa2, 0x00, 0x01, 0x00, 0x02, 0x44, 0x01,
+            0xa7, 0x00, 0x01, 0x00, 0x02, 0x4e, 0x01,
+            0xa1, 0x00, 0x01, 0x00, 0x03, 0x42, 0x01, 0x01,
+            0xa0, 0x00, 0x01, 0x00, 0x02, 0x40, 0x01);
+
+    // AAC LC, 44.1 kHz, stereo
+    private static final byte[] ASC = bytes(0x12, 0x10);
+
+    private static byte[] bytes(int... values) {
+        byte[] res = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            res[i] = (byte) values[i];
+        }
+        return res;
+    }
+
+    @Test
+    public void parsesAvcC() {
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, ByteBuffer.wrap(AVCC));
+        assertNotNull(config);
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_AVC, config.getMimeType());
+        assertEquals(4, config.getNalLengthSize());
+        assertArrayEquals(bytes(0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f), config.getCsd0());
+        assertArrayEquals(bytes(0, 0, 0, 1, 0x68, 0xee, 0x3c), config.getCsd1());
+        assertArrayEquals(AVCC, config.getHeader());
+        assertEquals(C.NO_VALUE, config.getSampleRate());
+    }
+
+    @Test
+    public void parsesHvcCInDecoderOrder() {
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_HEVC, ByteBuffer.wrap(HVCC));
+        assertNotNull(config);
+        assertEquals(4, config.getNalLengthSize());
+        assertArrayEquals(bytes(
+                0, 0, 0, 1, 0x40, 0x01,
+                0, 0, 0, 1, 0x42, 0x01, 0x01,
+                0, 0, 0, 1, 0x44, 0x01), config.getCsd0());
+        assertNull(config.getCsd1());
+    }
+
+    @Test
+    public void parsesAudioSpecificConfig() {
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_AUDIO_AAC, ByteBuffer.wrap(ASC));
+        assertNotNull(config);
+        assertEquals(44100, config.getSampleRate());
+        assertEquals(2, config.getChannelCount());
+        assertArrayEquals(ASC, config.getCsd0());
+        assertEquals(C.NO_VALUE, config.getNalLengthSize());
+    }
+
+    @Test
+    public void parsesExplicitSampleRate() {
+        // frequency index 15 followed by 24 bits of rate, then mono
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_AUDIO_AAC,
+                ByteBuffer.wrap(bytes(0x17, 0x80, 0x3e, 0x80, 0x08)));
+        assertNotNull(config);
+        assertEquals(32000, config.getSampleRate());
+        assertEquals(1, config.getChannelCount());
+    }
+
+    @Test
+    public void rejectsTruncatedHeaders() {
+        for (int length = 0; length < AVCC.length; length++) {
+            assertNull(CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, ByteBuffer.wrap(AVCC, 0, length)));
+        }
+        for (int length = 0; length < HVCC.length; length++) {
+            assertNull(CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_HEVC, ByteBuffer.wrap(HVCC, 0, length)));
+        }
+        assertNull(CodecConfig.parse(MediaFormat.MIMETYPE_AUDIO_AAC, ByteBuffer.wrap(ASC, 0, 1)));
+        assertNull(CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_VP9, ByteBuffer.wrap(AVCC)));
+    }
+
+    @Test
+    public void readsBetweenPositionAndLimit() {
+        byte[] data = new byte[AVCC.length + 5];
+        System.arraycopy(AVCC, 0, data, 3, AVCC.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 3, AVCC.length);
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, buffer);
+        assertNotNull(config);
+        assertArrayEquals(AVCC, config.getHeader());
+        assertEquals(3, buffer.position());
+        assertTrue(config.matches(buffer));
+    }
+
+    @Test
+    public void comparesByContent() {
+        CodecConfig config = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, ByteBuffer.wrap(AVCC));
+        CodecConfig same = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, ByteBuffer.wrap(AVCC.clone()));
+        byte[] changed = AVCC.clone();
+        changed[changed.length - 1] ^= 1;
+        CodecConfig other = CodecConfig.parse(MediaFormat.MIMETYPE_VIDEO_AVC, ByteBuffer.wrap(changed));
+
+        assertNotNull(config);
+        assertTrue(config.isSameAs(same));
+        assertEquals(config.getHash(), same.getHash());
+        assertFalse(config.isSameAs(other));
+        assertFalse(config.isSameAs(null));
+        assertFalse(config.matches(ByteBuffer.wrap(changed)));
+    }
+}
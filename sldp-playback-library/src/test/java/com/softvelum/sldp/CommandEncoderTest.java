@@ -0,0 +1,121 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CommandEncoderTest {
+
+    /**
+     * @return Unmasked payload of the single frame in {@code frame}, checking its header.
+     */
+    private static String unmask(ByteBuffer frame, int opcode) {
+        assertEquals(0x80 | opcode, frame.get() & 0xFF);
+        int length = frame.get() & 0xFF;
+        assertEquals(0x80, length & 0x80);
+        length &= 0x7F;
+        if (length == 126) {
+            length = frame.getShort() & 0xFFFF;
+        } else if (length == 127) {
+            length = (int) frame.getLong();
+        }
+        int mask = frame.getInt();
+        assertEquals(length, frame.remaining());
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (frame.get() ^ (mask >>> (24 - 8 * (i & 3))));
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static String encode(CommandEncoder encoder) {
+        encoder.endCommand();
+        ByteBuffer frame = ByteBuffer.allocate(encoder.getFrameLength());
+        encoder.encode(frame);
+        assertEquals(frame.capacity(), frame.position());
+        frame.flip();
+        return unmask(frame, 0x1);
+    }
+
+    @Test
+    public void encodesPlay() {
+        CommandEncoder encoder = new CommandEncoder(1);
+        encoder.beginCommand("Play");
+        encoder.addPlay("live/stream", true, 1, 0, -1, false);
+        encoder.addPlay("live/stream", false, 2, -2000, 0, true);
+        assertEquals(2, encoder.getElementCount());
+        assertEquals("{\"command\":\"Play\", \"streams\":["
+                        + "{\"stream\":\"live/stream\",\"type\":\"video\",\"sn\":\"1\",\"offsetMs\":\"0\",\"duration\":\"-1\"},"
+                        + "{\"stream\":\"live/stream\",\"type\":\"audio\",\"sn\":\"2\",\"offsetMs\":\"-2000\",\"duration\":\"0\",\"steady\":true}"
+                        + "]}",
+                encode(encoder));
+    }
+
+    @Test
+    public void encodesCancel() {
+        CommandEncoder encoder = new CommandEncoder(1);
+        encoder.beginCommand("Cancel");
+        encoder.addCancel(Integer.MAX_VALUE);
+        encoder.addCancel(Integer.MIN_VALUE);
+        assertEquals("{\"command\":\"Cancel\", \"streams\":[\"2147483647\",\"-2147483648\"]}", encode(encoder));
+
+        // the encoder starts over with each command
+        encoder.beginCommand("Cancel");
+        assertEquals(0, encoder.getElementCount());
+        encoder.addCancel(3);
+        assertEquals("{\"command\":\"Cancel\", \"streams\":[\"3\"]}", encode(encoder));
+    }
+
+    @Test
+    public void escapesStreamNames() throws IOException {
+        String name = "app/\"quoted\"\\\n\u00e9\u4e2d\ud83c\udfa5";
+        CommandEncoder encoder = new CommandEncoder(1);
+        encoder.beginCommand("Play");
+        encoder.addPlay(name, true, 1, 0, 0, false);
+        String json = encode(encoder);
+
+        JsonReader reader = new JsonReader().reset(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+        reader.beginObject();
+        assertEquals(0, reader.selectName(new String[]{"command"}));
+        assertEquals("Play", reader.nextString());
+        assertEquals(0, reader.selectName(new String[]{"streams"}));
+        reader.beginArray();
+        reader.beginObject();
+        assertEquals(0, reader.selectName(new String[]{"stream"}));
+        assertEquals(name, reader.nextString());
+    }
+
+    @Test
+    public void usesExtendedLengths() {
+        for (int count : new int[]{1, 20, 5000}) {
+            CommandEncoder encoder = new CommandEncoder(1);
+            encoder.beginCommand("Cancel");
+            StringBuilder expected = new StringBuilder("{\"command\":\"Cancel\", \"streams\":[");
+            for (int i = 0; i < count; i++) {
+                encoder.addCancel(i);
+                expected.append(i > 0 ? ",\"" : "\"").append(i).append('"');
+            }
+            expected.append("]}");
+            assertEquals(expected.toString(), encode(encoder));
+        }
+        assertEquals(2 + 4 + 125, CommandEncoder.getFrameLength(125));
+        assertEquals(4 + 4 + 126, CommandEncoder.getFrameLength(126));
+        assertEquals(10 + 4 + 65536, CommandEncoder.getFrameLength(65536));
+    }
+
+    @Test
+    public void masksControlFrames() {
+        CommandEncoder encoder = new CommandEncoder(0);
+        byte[] data = "ping".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer frame = ByteBuffer.allocate(CommandEncoder.getFrameLength(data.length));
+        encoder.encodeControl(frame, 0x9, ByteBuffer.wrap(data));
+        frame.flip();
+        assertEquals("ping", unmask(frame, 0x9));
+        assertNotEquals(encoder.nextMask(), encoder.nextMask());
+    }
+}
@@ -0,0 +1,271 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpParserTest {
+    private static final String UPGRADE = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"
+            + "Content-Type : text/plain \r\n"
+            + "\r\n";
+
+    /**
+     * Feeds the response in pieces of {@code chunk} bytes, dropping the consumed bytes the way
+     * the connection does.
+     *
+     * @return Bytes consumed in total, or -1 once the parser fails.
+     */
+    private static int feed(HttpParser parser, String response, int chunk) {
+        byte[] data = response.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        int consumed = 0;
+        for (int offset = 0; offset < data.length && !parser.getComplete(); offset += chunk) {
+            buffer.put(data, offset, Math.min(chunk, data.length - offset));
+            buffer.flip();
+            int parsed = parser.parse(buffer);
+            if (parsed < 0) {
+                return -1;
+            }
+            assertEquals(0, buffer.position());
+            buffer.position(parsed);
+            buffer.compact();
+            consumed += parsed;
+        }
+        return consumed;
+    }
+
+    @Test
+    public void parsesUpgradeResponseInAnyPieces() {
+        for (int chunk = 1; chunk <= UPGRADE.length(); chunk++) {
+            HttpParser parser = new HttpParser();
+            assertEquals(UPGRADE.length(), feed(parser, UPGRADE, chunk));
+            assertTrue(parser.getComplete());
+            assertEquals(101, parser.getStatusCode());
+            assertEquals("Switching Protocols", parser.getStatusText());
+            assertEquals("text/plain", parser.getContentType());
+        }
+    }
+
+    @Test
+    public void leavesDataAfterTheHeadUnconsumed() {
+        HttpParser parser = new HttpParser();
+        String frame = "\u0082\u0005hello";
+        assertEquals(UPGRADE.length(), parser.parse(ByteBuffer.wrap((UPGRADE + frame)
+                .getBytes(StandardCharsets.ISO_8859_1))));
+        assertTrue(parser.getComplete());
+    }
+
+    @Test
+    public void readsShoutcastStatusAndMetadataInterval() {
+        HttpParser parser = new HttpParser();
+        String response = "ICY 200 OK\r\nicy-metaint: 16000\r\ncontent-type: audio/mpeg\r\n\r\n";
+        assertEquals(response.length(), feed(parser, response, 7));
+        assertEquals(200, parser.getStatusCode());
+        assertEquals("OK", parser.getStatusText());
+        assertEquals(16000, parser.getMetadataInterval());
+        assertEquals("audio/mpeg", parser.getContentType());
+    }
+
+    @Test
+    public void waitsForTheBody() {
+        HttpParser parser = new HttpParser();
+        String head = "HTTP/1.0 404 Not Found\r\nContent-Length: 5\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.wrap((head + "gone").getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(head.length(), parser.parse(buffer));
+        assertFalse(parser.getComplete());
+        buffer = ByteBuffer.wrap("gone!".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(5, parser.parse(buffer));
+        assertTrue(parser.getComplete());
+        assertEquals(404, parser.getStatusCode());
+    }
+
+    @Test
+    public void keepsDigestChallengeParameters() {
+        HttpParser parser = new HttpParser();
+        String response = "HTTP/1.1 401 Unauthorized\r\n"
+                + "WWW-Authenticate: Digest realm=\"sldp\", nonce=\"abc123\",qop=\"auth\"\r\n"
+                + "Server: test\r\n"
+                + "\r\n";
+        assertEquals(response.length(), feed(parser, response, 5));
+        assertEquals(401, parser.getStatusCode());
+        assertEquals("sldp", parser.getHeader("WWW-Authenticate-Digest-realm"));
+        assertEquals("abc123", parser.getHeader("www-authenticate-digest-NONCE"));
+        assertEquals("auth", parser.getHeader("WWW-Authenticate-Digest-qop"));
+        // headers the handshake does not use are not kept
+        assertNull(parser.getHeader("Server"));
+    }
+
+    @Test
+    public void rejectsMalformedHeads() {
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1 1x1 Switching\r\n\r\n", 4));
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1101 Switching\r\n\r\n", 4));
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1 101\r\nno colon here\r\n\r\n", 4));
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1 101\r\n: empty name\r\n\r\n", 4));
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n", 4));
+        assertEquals(-1, feed(new HttpParser(), "HTTP/1.1 200 OK\r\nContent-Length: 99999999999\r\n\r\n", 4));
+    }
+
+    @Test
+    public void ignoresDataThatIsNotAResponse() {
+        HttpParser parser = new HttpParser();
+        assertEquals(0, parser.parse(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1))));
+        assertFalse(parser.getComplete());
+    }
+
+    @Test
+    public void rejectsTooLongLines() {
+        StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\nX-Padding: ");
+        for (int i = 0; i < 9 * 1024; i++) {
+            response.append('a');
+        }
+        assertEquals(-1, feed(new HttpParser(), response.toString(), 1024));
+
+        // a long line that ends in time is fine
+        response.setLength(response.length() - 2 * 1024);
+        response.append("\r\n\r\n");
+        HttpParser parser = new HttpParser();
+        assertEquals(response.length(), feed(parser, response.toString(), 1024));
+        assertTrue(parser.getComplete());
+    }
+
+    /**
+     * Defines the library classes anew, so that using them pays for loading and initializing
+     * them the way the first connect of an app does.
+     */
+    private static final class IsolatingClassLoader extends ClassLoader {
+        IsolatingClassLoader() {
+            super(HttpParserTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("com.softvelum.sldp.") || name.endsWith("Test")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    byte[] bytes = readClass(name);
+                    loaded = defineClass(name, bytes, 0, bytes.length);
+                }
+                return loaded;
+            }
+        }
+
+        private byte[] readClass(String name) throws ClassNotFoundException {
+            try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int count;
+                while ((count = in.read(chunk)) > 0) {
+                    out.write(chunk, 0, count);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    /**
+     * Startup cost of the handshake: parsing the first response and serializing the first
+     * upgrade request, class loading included, next to the same work done the way it was
+     * before, with the two regular expressions compiled on first use and String.format.
+     */
+    @Test
+    public void measuresTheFirstHandshakeCost() throws Exception {
+        byte[] response = UPGRADE.getBytes(StandardCharsets.ISO_8859_1);
+
+        long start = System.nanoTime();
+        Class<?> parserClass = new IsolatingClassLoader().loadClass("com.softvelum.sldp.HttpParser");
+        Object coldParser = parserClass.newInstance();
+        int parsed = (Integer) parserClass.getMethod("parse", ByteBuffer.class).invoke(coldParser, ByteBuffer.wrap(response));
+        long parseNanos = System.nanoTime() - start;
+        assertEquals(response.length, parsed);
+        assertEquals(101, parserClass.getMethod("getStatusCode").invoke(coldParser));
+
+        start = System.nanoTime();
+        Pattern statusLine = Pattern.compile("HTTP\\/1.\\d\\s+(\\d\\d\\d)\\s+(.+)");
+        Pattern headerLine = Pattern.compile("(\\S+):\\s?+(.*)");
+        String[] lines = UPGRADE.split("\r\n");
+        Matcher status = statusLine.matcher(lines[0]);
+        assertTrue(status.find());
+        for (int i = 1; i < lines.length; i++) {
+            // the old pattern does not allow the space before the colon, it is the work that counts
+            headerLine.matcher(lines[i]).find();
+        }
+        long regexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ClassLoader loader = new IsolatingClassLoader();
+        Class<?> configClass = loader.loadClass("com.softvelum.sldp.TcpConnection$Config");
+        Object config = configClass.newInstance();
+        configClass.getField("app").set(config, "live");
+        configClass.getField("stream").set(config, "stream");
+        configClass.getField("host").set(config, "example.com");
+        configClass.getField("port").setInt(config, 80);
+        // loads and initializes SldpConnection and the classes it depends on
+        Method createUpgradeRequest = loader.loadClass("com.softvelum.sldp.SldpConnection")
+                .getDeclaredMethod("createUpgradeRequest", configClass);
+        createUpgradeRequest.setAccessible(true);
+        byte[] request = (byte[]) createUpgradeRequest.invoke(null, config);
+        long requestNanos = System.nanoTime() - start;
+        assertTrue(request.length > 0);
+
+        start = System.nanoTime();
+        String formatted = String.format("GET /%s/%s HTTP/1.1\r\n", "live", "stream")
+                + String.format(Locale.ENGLISH, "Host: %s:%d\r\n", "example.com", 80)
+                + String.format("User-Agent: %s\r\n", "SLDPLib/1.0");
+        long formatNanos = System.nanoTime() - start;
+        assertTrue(formatted.length() > 0);
+
+        long warmNanos = 0;
+        long warmRegexNanos = 0;
+        // the first half only warms up
+        for (int pass = 0; pass < 2; pass++) {
+            int rounds = 50_000;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                HttpParser parser = new HttpParser();
+                parser.parse(ByteBuffer.wrap(response));
+                assertTrue(parser.getComplete());
+            }
+            warmNanos = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                String[] split = UPGRADE.split("\r\n");
+                assertTrue(statusLine.matcher(split[0]).find());
+                for (int j = 1; j < split.length; j++) {
+                    headerLine.matcher(split[j]).find();
+                }
+            }
+            warmRegexNanos = (System.nanoTime() - start) / rounds;
+        }
+
+        System.out.println(String.format(Locale.US, "first response parse %.2f ms (regex before: %.2f ms), "
+                        + "first upgrade request %.2f ms with SldpConnection loading (String.format before: %.2f ms), "
+                        + "warm response parse %d ns (regex before: %d ns)",
+                parseNanos / 1e6, regexNanos / 1e6, requestNanos / 1e6, formatNanos / 1e6,
+                warmNanos, warmRegexNanos));
+    }
+}
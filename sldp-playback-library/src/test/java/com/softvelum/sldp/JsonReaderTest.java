@@ -0,0 +1,143 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonReaderTest {
+    private static final String[] NAMES = {"command", "steady", "info"};
+    private static final String[] STREAM_NAMES = {"stream", "bandwidth"};
+
+    private static JsonReader reader(String json) {
+        return new JsonReader().reset(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertMalformed(String json) {
+        JsonReader reader = reader(json);
+        try {
+            reader.skipValue();
+            if (reader.peek() == JsonReader.Token.END_DOCUMENT) {
+                fail("accepted " + json);
+            }
+        } catch (IOException expected) {
+            // malformed
+        }
+    }
+
+    @Test
+    public void readsStatusMessage() throws IOException {
+        JsonReader reader = reader("{\"command\": \"status\", \"steady\": 1700000000123,"
+                + " \"info\": [{\"stream\": \"live/a\", \"bandwidth\": \"2500000\"}, {\"stream\": \"live/b\"}]}");
+        reader.beginObject();
+        assertEquals(0, reader.selectName(NAMES));
+        assertEquals("status", reader.nextString());
+        assertEquals(1, reader.selectName(NAMES));
+        assertEquals(1700000000123L, reader.nextLong());
+        assertEquals(2, reader.selectName(NAMES));
+        reader.beginArray();
+        int streams = 0;
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(STREAM_NAMES) == 0) {
+                    assertTrue(reader.nextString().startsWith("live/"));
+                } else {
+                    // numbers sent as strings are read as numbers too
+                    assertEquals(2500000, reader.nextInt());
+                }
+            }
+            reader.endObject();
+            streams++;
+        }
+        reader.endArray();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(2, streams);
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void skipsUnknownMembers() throws IOException {
+        JsonReader reader = reader("{\"other\": {\"a\": [1, 2.5, true, null, \"x\\\"}\"]}, \"command\": \"play\"}");
+        reader.beginObject();
+        assertEquals(-1, reader.selectName(NAMES));
+        reader.skipValue();
+        assertEquals(0, reader.selectName(NAMES));
+        assertEquals("play", reader.nextString());
+        reader.endObject();
+    }
+
+    @Test
+    public void decodesEscapesAndUtf8() throws IOException {
+        JsonReader reader = reader("[\"a\\n\\t\\\"b\\u0041\", \"\u00e9t\u00e9\", null, false, -12]");
+        reader.beginArray();
+        assertEquals("a\n\t\"bA", reader.nextString());
+        assertEquals("\u00e9t\u00e9", reader.nextString());
+        assertNull(reader.nextString());
+        assertEquals("false", reader.nextString());
+        assertEquals(-12, reader.nextLong());
+        reader.endArray();
+    }
+
+    @Test
+    public void readsNumbers() throws IOException {
+        JsonReader reader = reader("[9223372036854775807, -9223372036854775807, 1.5e3, 42.9, 3000000000]");
+        reader.beginArray();
+        assertEquals(Long.MAX_VALUE, reader.nextLong());
+        assertEquals(-Long.MAX_VALUE, reader.nextLong());
+        assertEquals(1500, reader.nextLong());
+        assertEquals(42, reader.nextLong());
+        try {
+            reader.nextInt();
+            fail("3000000000 read as an int");
+        } catch (IOException expected) {
+            // out of range
+        }
+    }
+
+    @Test
+    public void readsFromPositionToLimit() throws IOException {
+        byte[] data = "xx{\"command\":\"status\"}yy".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 2, data.length - 4);
+        JsonReader reader = new JsonReader().reset(buffer);
+        reader.beginObject();
+        assertEquals(0, reader.selectName(NAMES));
+        assertEquals("status", reader.nextString());
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        assertMalformed("{\"command\" \"status\"}");
+        assertMalformed("{\"command\": \"status\" \"steady\": 1}");
+        assertMalformed("[1 2]");
+        assertMalformed("{\"command\": \"stat");
+        assertMalformed("{\"command\": }");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedEscape() throws IOException {
+        JsonReader reader = reader("[\"\\u00\"]");
+        reader.beginArray();
+        reader.nextString();
+    }
+
+    @Test
+    public void rejectsDeepNesting() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            json.append('[');
+        }
+        assertMalformed(json.toString());
+    }
+}
@@ -0,0 +1,64 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageAssemblerTest {
+    private final BufferPool pool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+    private final Object owner = new Object();
+
+    private static ByteBuffer fragment(int first, int size) {
+        ByteBuffer res = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            res.put((byte) (first + i));
+        }
+        res.flip();
+        return res;
+    }
+
+    @Test
+    public void growsAcrossFragmentsAndKeepsOrder() {
+        MessageAssembler assembler = new MessageAssembler(pool, owner, 1024 * 1024);
+        int total = 0;
+        for (int size : new int[]{100, BufferPool.MIN_BUFFER_SIZE, 3 * BufferPool.MIN_BUFFER_SIZE, 7}) {
+            assertTrue(assembler.append(fragment(total, size)));
+            total += size;
+        }
+        assertEquals(total, assembler.size());
+
+        ByteBuffer message = assembler.message();
+        assertEquals(total, message.remaining());
+        for (int i = 0; i < total; i++) {
+            assertEquals((byte) i, message.get(i));
+        }
+        // only the final buffer is charged, the smaller ones went back on growth
+        assertEquals(message.capacity(), pool.getAllocatedBytes(owner));
+    }
+
+    @Test
+    public void rejectsMessagesOverTheCap() {
+        MessageAssembler assembler = new MessageAssembler(pool, owner, 1000);
+        assertTrue(assembler.append(fragment(0, 600)));
+        assertFalse(assembler.append(fragment(0, 401)));
+        assertEquals(600, assembler.size());
+        assertTrue(assembler.append(fragment(0, 400)));
+        assertEquals(1000, assembler.size());
+    }
+
+    @Test
+    public void resetReturnsTheBuffer() {
+        MessageAssembler assembler = new MessageAssembler(pool, owner, 1024 * 1024);
+        assertEquals(0, assembler.message().remaining());
+        assertTrue(assembler.append(fragment(0, 200_000)));
+        assertTrue(pool.getAllocatedBytes(owner) > 0);
+        assembler.reset();
+        assertEquals(0, pool.getAllocatedBytes(owner));
+        assertEquals(0, assembler.size());
+        assertEquals(0, pool.getOwnerCount());
+    }
+}
@@ -0,0 +1,92 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NalUnitsTest {
+    // two NAL units of 3 and 2 bytes
+    private static final byte[] AVCC = {0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x41, 3};
+    private static final byte[] ANNEX_B = {0, 0, 0, 1, 0x65, 1, 2, 0, 0, 0, 1, 0x41, 3};
+
+    @Test
+    public void walksNalUnits() {
+        int[] bounds = new int[4];
+        assertEquals(2, NalUnits.walk(ByteBuffer.wrap(AVCC), bounds));
+        assertArrayEquals(new int[]{4, 3, 11, 2}, bounds);
+        // too short a bounds array only counts
+        assertEquals(2, NalUnits.walk(ByteBuffer.wrap(AVCC), new int[2]));
+        assertEquals(2, NalUnits.walk(ByteBuffer.wrap(AVCC), null));
+        assertEquals(0, NalUnits.walk(ByteBuffer.allocate(0), null));
+    }
+
+    @Test
+    public void rejectsLengthsPastTheEnd() {
+        byte[] frame = AVCC.clone();
+        frame[10] = 3;
+        assertEquals(-1, NalUnits.walk(ByteBuffer.wrap(frame), null));
+        // trailing bytes too short for a length
+        assertEquals(-1, NalUnits.walk(ByteBuffer.wrap(AVCC, 0, AVCC.length - 1), null));
+        byte[] negative = {(byte) 0x80, 0, 0, 0, 1};
+        assertEquals(-1, NalUnits.walk(ByteBuffer.wrap(negative), null));
+    }
+
+    @Test
+    public void convertsInPlaceWhateverTheByteOrder() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer frame = ByteBuffer.allocateDirect(AVCC.length).order(order);
+            frame.put(AVCC).flip();
+            NalUnits.toAnnexB(frame);
+            byte[] res = new byte[AVCC.length];
+            frame.get(res);
+            assertArrayEquals(ANNEX_B, res);
+        }
+    }
+
+    @Test
+    public void stopsAtAMalformedLength() {
+        byte[] frame = AVCC.clone();
+        frame[10] = 9;
+        NalUnits.toAnnexB(ByteBuffer.wrap(frame));
+        byte[] expected = ANNEX_B.clone();
+        // the bad prefix is replaced, nothing is written past the end
+        assertArrayEquals(expected, frame);
+    }
+
+    @Test
+    public void copiesInEitherFormat() {
+        ByteBuffer frame = ByteBuffer.wrap(AVCC);
+        ByteBuffer dst = ByteBuffer.allocate(1 + 2 * AVCC.length);
+        dst.put((byte) 7);
+        NalUnits.copy(frame, dst, NalUnits.Format.ANNEX_B);
+        NalUnits.copy(frame, dst, NalUnits.Format.AVCC);
+        assertEquals(0, frame.position());
+        assertEquals(dst.capacity(), dst.position());
+
+        byte[] res = new byte[AVCC.length];
+        dst.position(1);
+        dst.get(res);
+        assertArrayEquals(ANNEX_B, res);
+        dst.get(res);
+        assertArrayEquals(AVCC, res);
+    }
+
+    @Test
+    public void itemsConvertOnce() {
+        BufferItem item = new BufferItem(AVCC.clone(), null, C.NO_VALUE, 0, 0, 1000, true, true);
+        byte[] data = item.getData();
+        assertArrayEquals(ANNEX_B, data);
+        assertSame(data, item.getData());
+        // the stored frame keeps its length prefixes
+        assertEquals(3, item.getBuffer().get(3));
+        assertEquals(1, item.getBuffer(NalUnits.Format.ANNEX_B).get(3));
+
+        byte[] vp8 = {1, 2, 3};
+        assertSame(vp8, new BufferItem(vp8, 0, 0, 1000, true).getData());
+    }
+}
@@ -0,0 +1,53 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void limitsAttempts() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.maxAttempts = 3;
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(3));
+        assertFalse(policy.canRetry(4));
+
+        policy.maxAttempts = 0;
+        assertTrue(policy.canRetry(1000));
+    }
+
+    @Test
+    public void growsDelaysUpToTheMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.jitter = 0;
+        Random random = new Random(1);
+        assertEquals(250, policy.getDelayMs(1, random));
+        assertEquals(500, policy.getDelayMs(2, random));
+        assertEquals(1000, policy.getDelayMs(3, random));
+        assertEquals(10_000, policy.getDelayMs(10, random));
+        assertEquals(10_000, policy.getDelayMs(100, random));
+    }
+
+    @Test
+    public void jitterOnlyShortensDelays() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        Random random = new Random(1);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelayMs(3, random);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(max <= 1000);
+        assertTrue(min >= 500);
+        // spread over the range rather than all clients retrying at once
+        assertTrue(max - min > 400);
+    }
+}
@@ -0,0 +1,159 @@
+package com.softvelum.sldp;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SldpConnectionTest {
+    private static final int FRAME_MS = 20;
+    // a keyframe every 100 ms
+    private static final int GOP = 5;
+    private static final int FRAMES_BEFORE_DROP = 15;
+    private static final int FRAMES = 40;
+    private static final long RECONNECT_DELAY_MS = 200;
+
+    /**
+     * Streams live, paced in real time, drops the first connection without a close frame and
+     * serves the resumed one from the live edge minus the offset it asks for, from a keyframe
+     * the way a server does.
+     */
+    @Test
+    public void resumesIntoTheSameBufferAfterADrop() throws Exception {
+        final AtomicLong liveStartMs = new AtomicLong();
+        final AtomicLong lastSentMs = new AtomicLong();
+        final byte[] data = SldpTestServer.payload(500);
+        SldpTestServer server = new SldpTestServer((peer, sn, offsetMs) -> {
+            int first = 0;
+            if (peer.index == 0) {
+                liveStartMs.set(System.currentTimeMillis());
+            } else {
+                long liveMs = System.currentTimeMillis() - liveStartMs.get();
+                first = (int) Math.max(0, (liveMs - offsetMs) / FRAME_MS / GOP * GOP);
+            }
+            for (int i = first; i < FRAMES; i++) {
+                if (peer.index == 0) {
+                    long dueMs = liveStartMs.get() + (long) i * FRAME_MS;
+                    long sleepMs = dueMs - System.currentTimeMillis();
+                    if (sleepMs > 0) {
+                        try {
+                            Thread.sleep(sleepMs);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (i == FRAMES_BEFORE_DROP) {
+                        peer.drop();
+                        return;
+                    }
+                    lastSentMs.set(System.currentTimeMillis());
+                }
+                peer.sendFrame(sn, i % GOP == 0 ? SldpTestServer.VP8_KEY_FRAME : SldpTestServer.VP8_FRAME,
+                        (long) i * FRAME_MS, data);
+            }
+        });
+
+        SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+        try {
+            TcpConnection.Config config = SldpEventLoopGroupTest.config(server.getPort());
+            config.reconnectPolicy = new ReconnectPolicy();
+            config.reconnectPolicy.initialDelayMs = RECONNECT_DELAY_MS;
+            config.reconnectPolicy.jitter = 0;
+            SldpEventLoopGroupTest.Player player = new SldpEventLoopGroupTest.Player(0);
+            SldpConnection connection = SldpEventLoopGroupTest.connect(group, config, player);
+
+            server.awaitPlays(2, 10_000);
+            long resumeBoundMs = System.currentTimeMillis() - lastSentMs.get();
+            player.awaitFrames(FRAMES);
+
+            assertTrue(player.states.contains(Connection.State.RECONNECTING));
+            assertEquals(1, connection.getStreamInfo().size());
+            StreamBuffer stream = player.stream;
+            assertSame(stream, connection.getStreamInfo().iterator().next());
+
+            // the offset covers the outage as seen on the wall clock, at least the reconnect delay
+            List<String> plays = server.getPlays();
+            assertEquals(0, SldpTestServer.getOffsetMs(plays.get(0)));
+            int resumeOffsetMs = SldpTestServer.getOffsetMs(plays.get(1));
+            assertTrue(resumeOffsetMs + "ms", resumeOffsetMs >= RECONNECT_DELAY_MS);
+            assertTrue(resumeOffsetMs + "ms of " + resumeBoundMs, resumeOffsetMs <= resumeBoundMs);
+
+            // and in media time the replay joins up with the last frame held, without a gap or a repeat
+            assertEquals(FRAMES, stream.getWriteIndex());
+            for (long i = stream.getFirstIndex() + 1; i < stream.getWriteIndex(); i++) {
+                assertEquals(FRAME_MS * 1000L, stream.getDtsUs(i) - stream.getDtsUs(i - 1));
+            }
+
+            long stallMs = connection.getLastStallMs();
+            assertNotEquals(C.NO_VALUE, stallMs);
+            assertTrue(stallMs + "ms", stallMs >= RECONNECT_DELAY_MS);
+        } finally {
+            group.shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * CPU time the loop spends per media frame when each arrives in one WebSocket frame and is
+     * parsed in place, and when each is split in two and goes through reassembly first.
+     */
+    @Test
+    public void reportsTheCostOfInPlaceAndReassembledFrames() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadCpuTimeSupported());
+        final int frames = 4000;
+        final byte[] data = SldpTestServer.payload(16 * 1024);
+        long[] nanosPerFrame = new long[3];
+
+        // the first round only warms up
+        for (int run = 0; run < 4; run++) {
+            final int fragments = 1 + run % 2;
+            final CountDownLatch start = new CountDownLatch(1);
+            SldpTestServer server = new SldpTestServer((peer, sn, offsetMs) -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < frames; i++) {
+                    peer.sendFrame(sn, i % 50 == 0 ? SldpTestServer.VP8_KEY_FRAME : SldpTestServer.VP8_FRAME,
+                            (long) i * FRAME_MS, data, fragments);
+                }
+            });
+            SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+            try {
+                SldpEventLoopGroupTest.Player player = new SldpEventLoopGroupTest.Player(0);
+                SldpConnection connection = SldpEventLoopGroupTest.connect(group,
+                        SldpEventLoopGroupTest.config(server.getPort()), player);
+                server.awaitPlays(1, 10_000);
+                final AtomicLong loopThread = new AtomicLong();
+                final CountDownLatch found = new CountDownLatch(1);
+                connection.getEventLoop().execute(() -> {
+                    loopThread.set(Thread.currentThread().getId());
+                    found.countDown();
+                });
+                found.await();
+
+                long cpuBefore = threads.getThreadCpuTime(loopThread.get());
+                start.countDown();
+                player.awaitFrames(frames);
+                nanosPerFrame[fragments] = (threads.getThreadCpuTime(loopThread.get()) - cpuBefore) / frames;
+            } finally {
+                group.shutdown();
+                server.close();
+            }
+        }
+        System.out.println(String.format(Locale.US, "loop CPU per %d byte frame: %d ns in place, %d ns reassembled",
+                data.length, nanosPerFrame[1], nanosPerFrame[2]));
+    }
+}
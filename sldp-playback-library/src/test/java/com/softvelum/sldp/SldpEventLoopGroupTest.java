@@ -0,0 +1,207 @@
+package com.softvelum.sldp;
+
+import android.os.Handler;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SldpEventLoopGroupTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    /**
+     * Delivers notifications on the thread that posts them.
+     */
+    static final class InlineHandler extends Handler {
+        @Override
+        public boolean post(Runnable r) {
+            r.run();
+            return true;
+        }
+    }
+
+    /**
+     * Plays the first stream announced and records the states the connection goes through.
+     */
+    static class Player implements Connection.Listener {
+        final Handler handler = new InlineHandler();
+        final List<Connection.State> states = Collections.synchronizedList(new ArrayList<Connection.State>());
+        final int offsetMs;
+        volatile SldpConnection connection;
+        volatile StreamBuffer stream;
+
+        Player(int offsetMs) {
+            this.offsetMs = offsetMs;
+        }
+
+        @Override
+        public Handler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void onStreamInfoReceived(int connectionId) {
+            StreamBuffer buffer = connection.getStreamInfo().iterator().next();
+            stream = buffer;
+            connection.playStreams(Collections.singletonList(
+                    new PlayRequest(buffer.getStreamId(), offsetMs, 0)));
+        }
+
+        @Override
+        public void onStateChanged(int connectionId, Connection.State state, Connection.Status status, JSONObject info) {
+            states.add(state);
+        }
+
+        Connection.State last() {
+            synchronized (states) {
+                return states.isEmpty() ? null : states.get(states.size() - 1);
+            }
+        }
+
+        void awaitFrames(long count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (stream == null || stream.getWriteIndex() < count) {
+                assertTrue("timed out waiting for " + count + " frames", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    static TcpConnection.Config config(int port) {
+        TcpConnection.Config config = new TcpConnection.Config();
+        config.host = "127.0.0.1";
+        config.port = port;
+        config.app = "app";
+        config.stream = SldpTestServer.STREAM;
+        return config;
+    }
+
+    static StreamBuffer.Factory factory(int maxItems) {
+        StreamBuffer.Config config = new StreamBuffer.Config();
+        config.maxItems = maxItems;
+        return new StreamBuffer.ConfigFactory(config, config);
+    }
+
+    static SldpConnection connect(SldpEventLoopGroup group, TcpConnection.Config config, Player player)
+            throws Exception {
+        SldpConnection connection = group.createConnection(config, factory(64), player);
+        player.connection = connection;
+        connection.connect();
+        return connection;
+    }
+
+    private static void awaitTermination(SldpEventLoop loop) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!loop.isTerminated()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void closesInlineOnceTheLoopHasTerminated() throws Exception {
+        SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+        Player player = new Player(0);
+        SldpConnection connection = group.createConnection(config(1), factory(64), player);
+        SldpEventLoop loop = connection.getEventLoop();
+        assertEquals(1, loop.getConnectionCount());
+
+        group.shutdown();
+        awaitTermination(loop);
+        // the queued connect never runs, the close must not wait for the loop either
+        connection.connect();
+        connection.close();
+        assertEquals(Connection.State.DISCONNECTED, player.last());
+        assertEquals(0, loop.getConnectionCount());
+    }
+
+    @Test
+    public void releasesConnectionsWhenTheLoopStops() throws Exception {
+        SldpTestServer server = new SldpTestServer((peer, sn, offsetMs) -> {
+            byte[] data = SldpTestServer.payload(1000);
+            for (int i = 0; i < 3; i++) {
+                peer.sendFrame(sn, i == 0 ? SldpTestServer.VP8_KEY_FRAME : SldpTestServer.VP8_FRAME, i * 40, data);
+            }
+        });
+        try {
+            SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+            Player player = new Player(0);
+            SldpConnection connection = connect(group, config(server.getPort()), player);
+            player.awaitFrames(3);
+            assertTrue(connection.getBufferMemory() > 0);
+
+            group.shutdown();
+            awaitTermination(connection.getEventLoop());
+            // not left waiting for a reconnect that no loop will run
+            assertEquals(Connection.State.DISCONNECTED, player.last());
+            assertEquals(0, connection.getBufferMemory());
+
+            int notified = player.states.size();
+            connection.close();
+            assertEquals(notified, player.states.size());
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Aggregate receive rate of a fixed set of connections, each streaming as fast as the
+     * loopback allows, as loops are added. Every frame is parsed and copied into a stream
+     * buffer on the loop, which is where the time goes.
+     */
+    @Test
+    public void reportsThroughputPerLoopCount() throws Exception {
+        final int connections = 8;
+        final int frames = 256;
+        final byte[] data = SldpTestServer.payload(32 * 1024);
+        // with fewer cores than loops the extra loops only add contention, which is worth seeing too
+        for (int loops = 1; loops <= 4; loops *= 2) {
+            final CountDownLatch start = new CountDownLatch(1);
+            SldpTestServer server = new SldpTestServer((peer, sn, offsetMs) -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < frames; i++) {
+                    peer.sendFrame(sn, i % 16 == 0 ? SldpTestServer.VP8_KEY_FRAME : SldpTestServer.VP8_FRAME,
+                            i * 40, data);
+                }
+            });
+            SldpEventLoopGroup group = new SldpEventLoopGroup(loops);
+            try {
+                List<Player> players = new ArrayList<>();
+                for (int i = 0; i < connections; i++) {
+                    Player player = new Player(0);
+                    connect(group, config(server.getPort()), player);
+                    players.add(player);
+                }
+                server.awaitPlays(connections, TIMEOUT_MS);
+
+                long bytesBefore = group.getBytesReceived();
+                long startNanos = System.nanoTime();
+                start.countDown();
+                for (Player player : players) {
+                    player.awaitFrames(frames);
+                }
+                long elapsedNanos = System.nanoTime() - startNanos;
+                long bytes = group.getBytesReceived() - bytesBefore;
+
+                assertTrue(bytes >= (long) connections * frames * data.length);
+                System.out.println(String.format(Locale.US, "%d loop(s), %d connections, %d cores: %.0f Mbit/s",
+                        loops, connections, Runtime.getRuntime().availableProcessors(), bytes * 8e3 / elapsedNanos));
+            } finally {
+                group.shutdown();
+                server.close();
+            }
+        }
+    }
+}
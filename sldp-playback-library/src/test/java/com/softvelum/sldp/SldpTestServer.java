@@ -0,0 +1,306 @@
+package com.softvelum.sldp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Minimal blocking SLDP server on the loopback interface. Every accepted connection gets the
+ * upgrade response and a status message announcing one VP8 stream, the play request it answers
+ * with is handed to the {@link Streamer} on a thread of its own. With a TLS context the server
+ * presents the self-signed certificate of localhost.p12.
+ */
+final class SldpTestServer implements Closeable {
+
+    static final String STREAM = "live";
+
+    static final int VP8_KEY_FRAME = 10;
+    static final int VP8_FRAME = 11;
+
+    private static final String UPGRADE_RESPONSE = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Protocol: sldp.softvelum.com\r\n"
+            + "\r\n";
+
+    private static final String STATUS = "{\"command\":\"status\",\"info\":[{\"stream\":\"" + STREAM + "\","
+            + "\"stream_info\":{\"vcodec\":\"vp8\",\"vtimescale\":1000,\"resolution\":\"320x240\","
+            + "\"bandwidth\":1000000}}]}";
+
+    private static final char[] KEY_STORE_PASSWORD = "changeit".toCharArray();
+
+    private static final Pattern SN = Pattern.compile("\"sn\":\"(\\d+)\"");
+    private static final Pattern OFFSET = Pattern.compile("\"offsetMs\":\"(-?\\d+)\"");
+
+    interface Streamer {
+        /**
+         * Called on the thread of the connection once the client asked to play.
+         */
+        void stream(Peer peer, int sn, int offsetMs) throws IOException;
+    }
+
+    /**
+     * Server side of one accepted connection.
+     */
+    static final class Peer {
+        final int index;
+        private final Socket socket;
+        private final OutputStream out;
+        private byte[] frame = new byte[0];
+
+        Peer(int index, Socket socket) throws IOException {
+            this.index = index;
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        void sendText(String text) throws IOException {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            writeHeader(0x81, payload.length);
+            out.write(payload);
+            out.flush();
+        }
+
+        /**
+         * Sends a media frame of a stream without composition time offset, i.e. anything but AVC and HEVC.
+         */
+        void sendFrame(int sn, int type, long timestamp, byte[] data) throws IOException {
+            sendFrame(sn, type, timestamp, data, 1);
+        }
+
+        /**
+         * Sends the media frame split into as many WebSocket fragments.
+         */
+        void sendFrame(int sn, int type, long timestamp, byte[] data, int fragments) throws IOException {
+            int length = 2 + 8 + data.length;
+            if (frame.length < length) {
+                frame = new byte[length];
+            }
+            frame[0] = (byte) sn;
+            frame[1] = (byte) type;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) (timestamp >>> (56 - 8 * i));
+            }
+            System.arraycopy(data, 0, frame, 10, data.length);
+            int offset = 0;
+            for (int i = 0; i < fragments; i++) {
+                int end = i == fragments - 1 ? length : length * (i + 1) / fragments;
+                writeHeader((i == fragments - 1 ? 0x80 : 0) | (i == 0 ? 0x2 : 0x0), end - offset);
+                out.write(frame, offset, end - offset);
+                offset = end;
+            }
+            out.flush();
+        }
+
+        private void writeHeader(int first, int length) throws IOException {
+            out.write(first);
+            if (length < 126) {
+                out.write(length);
+            } else if (length <= 0xFFFF) {
+                out.write(126);
+                out.write(length >>> 8);
+                out.write(length);
+            } else {
+                out.write(127);
+                for (int i = 7; i >= 0; i--) {
+                    out.write(i < 4 ? length >>> (8 * i) : 0);
+                }
+            }
+        }
+
+        /**
+         * Resets the connection the way a dying network path does, without a close frame.
+         */
+        void drop() throws IOException {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Streamer streamer;
+    private final Thread acceptor;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<String> plays = new ArrayList<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    SldpTestServer(Streamer streamer) throws IOException {
+        this(null, streamer);
+    }
+
+    SldpTestServer(SSLContext tls, Streamer streamer) throws IOException {
+        this.streamer = streamer;
+        serverSocket = tls != null
+                ? tls.getServerSocketFactory().createServerSocket(0, 64, InetAddress.getLoopbackAddress())
+                : new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "SldpTestServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    static SSLContext tlsContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = SldpTestServer.class.getResourceAsStream("localhost.p12")) {
+            keyStore.load(in, KEY_STORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEY_STORE_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Play commands received so far, in order.
+     */
+    synchronized List<String> getPlays() {
+        return new ArrayList<>(plays);
+    }
+
+    static int getSn(String play) {
+        Matcher matcher = SN.matcher(play);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    static int getOffsetMs(String play) {
+        Matcher matcher = OFFSET.matcher(play);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Blocks until {@code count} play commands have arrived.
+     */
+    synchronized void awaitPlays(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (plays.size() < count) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new AssertionError("got " + plays.size() + " of " + count + " play commands");
+            }
+            wait(left);
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    sockets.add(socket);
+                }
+                final int index = accepted.getAndIncrement();
+                Thread session = new Thread(() -> serve(index, socket), "SldpTestServer-" + index);
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(int index, Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            readRequest(in);
+            Peer peer = new Peer(index, socket);
+            peer.out.write(UPGRADE_RESPONSE.getBytes(StandardCharsets.US_ASCII));
+            // the status follows the upgrade response in the same segment, as it often does
+            peer.sendText(STATUS);
+
+            String play;
+            do {
+                play = readTextFrame(in);
+            } while (!play.contains("\"Play\""));
+            synchronized (this) {
+                plays.add(play);
+                notifyAll();
+            }
+            streamer.stream(peer, getSn(play), getOffsetMs(play));
+        } catch (IOException e) {
+            // dropped by either side
+        }
+    }
+
+    private static void readRequest(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("closed before the upgrade request");
+            }
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+    }
+
+    /**
+     * Reads masked client frames up to the next text message, skipping pings and pongs.
+     */
+    private static String readTextFrame(DataInputStream in) throws IOException {
+        while (true) {
+            int first = in.readUnsignedByte();
+            int second = in.readUnsignedByte();
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) {
+                in.readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            if ((first & 0xF) == 0x1) {
+                return new String(payload, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        try {
+            acceptor.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+}
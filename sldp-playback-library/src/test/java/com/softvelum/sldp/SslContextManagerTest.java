@@ -0,0 +1,291 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SslContextManagerTest {
+
+    private static SSLSession session(final byte[] id, final long creationTime) {
+        return (SSLSession) Proxy.newProxyInstance(SSLSession.class.getClassLoader(),
+                new Class<?>[]{SSLSession.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getId")) {
+                            return id;
+                        } else if (method.getName().equals("getCreationTime")) {
+                            return creationTime;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void sharesOneContextPerTrustMode() throws Exception {
+        SslContextManager manager = new SslContextManager();
+        SSLContext strict = manager.getContext(false);
+        assertSame(strict, manager.getContext(false));
+        assertNotSame(strict, manager.getContext(true));
+
+        manager.reset();
+        assertNotSame(strict, manager.getContext(false));
+    }
+
+    @Test
+    public void createsClientEnginesForThePeer() throws Exception {
+        SSLEngine engine = new SslContextManager().createEngine(false, "example.com", 443);
+        assertTrue(engine.getUseClientMode());
+        assertEquals("example.com", engine.getPeerHost());
+        assertEquals(443, engine.getPeerPort());
+    }
+
+    @Test
+    public void tellsResumedHandshakesFromFullOnes() {
+        SslContextManager manager = new SslContextManager();
+        byte[] id = {1, 2, 3};
+
+        assertFalse(manager.onHandshakeFinished("a", 443, session(id, 1000), 1000, 50_000));
+        // same session id for the same peer
+        assertTrue(manager.onHandshakeFinished("a", 443, session(id, 1000), 2000, 10_000));
+        // TLS 1.3 style: new id, but the session predates the handshake
+        assertTrue(manager.onHandshakeFinished("a", 443, session(new byte[0], 1500), 3000, 20_000));
+        // the id is tracked per host:port
+        assertFalse(manager.onHandshakeFinished("a", 444, session(id, 4000), 4000, 30_000));
+
+        assertEquals(2, manager.getFullHandshakeCount());
+        assertEquals(2, manager.getResumedHandshakeCount());
+        assertEquals(40_000, manager.getAverageFullHandshakeTimeUs());
+        assertEquals(15_000, manager.getAverageResumedHandshakeTimeUs());
+    }
+
+    @Test
+    public void runsDelegatedTasksOffTheCallingThread() throws Exception {
+        SslContextManager manager = new SslContextManager();
+        Executor executor = manager.getTaskExecutor();
+        assertSame(executor, manager.getTaskExecutor());
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), ranOn.get());
+        assertTrue(ranOn.get().isDaemon());
+        assertTrue(ranOn.get().getName().startsWith("SldpTlsTask-"));
+    }
+
+    @Test
+    public void rejectsTasksWhenSaturatedAndCallsBackOnceAWorkerIsFree() throws Exception {
+        // one worker, one queued task
+        SslContextManager manager = new SslContextManager(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final AtomicReference<Thread> calledBackOn = new AtomicReference<>();
+        final CountDownLatch calledBack = new CountDownLatch(1);
+        Runnable onCapacity = new Runnable() {
+            @Override
+            public void run() {
+                calledBackOn.set(Thread.currentThread());
+                calledBack.countDown();
+            }
+        };
+        final AtomicBoolean rejectedRan = new AtomicBoolean();
+        Runnable rejected = new Runnable() {
+            @Override
+            public void run() {
+                rejectedRan.set(true);
+            }
+        };
+
+        assertTrue(manager.execute(blocking, onCapacity));
+        assertTrue(manager.execute(blocking, onCapacity));
+        assertFalse(manager.execute(rejected, onCapacity));
+        assertEquals(1, calledBack.getCount());
+
+        release.countDown();
+        assertTrue(calledBack.await(10, TimeUnit.SECONDS));
+        assertTrue(calledBackOn.get().getName().startsWith("SldpTlsTask-"));
+        // handed back to the caller to submit again, never run behind its back
+        assertFalse(rejectedRan.get());
+    }
+
+    /**
+     * Many handshakes at once through a task executor far too small for them, so that most
+     * delegated tasks are turned away and have to wait for a free worker.
+     */
+    @Test
+    public void handshakesConcurrentlyWithoutRunningTasksOnTheLoop() throws Exception {
+        final int connections = 16;
+        final List<String> taskThreads = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger rejections = new AtomicInteger();
+        SslContextManager manager = new SslContextManager(1, 1) {
+            @Override
+            public boolean execute(@NonNull final Runnable task, @NonNull Runnable onCapacity) {
+                boolean accepted = super.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        taskThreads.add(Thread.currentThread().getName());
+                        task.run();
+                    }
+                }, onCapacity);
+                if (!accepted) {
+                    rejections.incrementAndGet();
+                }
+                return accepted;
+            }
+        };
+        SldpTestServer server = new SldpTestServer(SldpTestServer.tlsContext(), new SldpTestServer.Streamer() {
+            @Override
+            public void stream(SldpTestServer.Peer peer, int sn, int offsetMs) throws IOException {
+                peer.sendFrame(sn, SldpTestServer.VP8_KEY_FRAME, 0, SldpTestServer.payload(100));
+            }
+        });
+        SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+        try {
+            List<SldpConnection> established = new ArrayList<>();
+            List<SldpEventLoopGroupTest.Player> players = new ArrayList<>();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                TcpConnection.Config config = SldpEventLoopGroupTest.config(server.getPort());
+                config.ssl = true;
+                config.trustAllCerts = true;
+                config.sslContextManager = manager;
+                SldpEventLoopGroupTest.Player player = new SldpEventLoopGroupTest.Player(0);
+                established.add(SldpEventLoopGroupTest.connect(group, config, player));
+                players.add(player);
+            }
+
+            // how long the loop takes to get to a task while the handshakes are in flight
+            SldpEventLoop loop = established.get(0).getEventLoop();
+            long maxLoopDelayUs = 0;
+            for (SldpEventLoopGroupTest.Player player : players) {
+                while (player.stream == null || player.stream.getWriteIndex() < 1) {
+                    maxLoopDelayUs = Math.max(maxLoopDelayUs, measureLoopDelayUs(loop));
+                    Thread.sleep(2);
+                    assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(30));
+                }
+            }
+            long elapsedUs = (System.nanoTime() - startNanos) / 1000;
+
+            long[] handshakeUs = new long[connections];
+            for (int i = 0; i < connections; i++) {
+                handshakeUs[i] = established.get(i).getHandshakeTimeUs();
+                assertNotEquals(C.NO_VALUE, handshakeUs[i]);
+            }
+            Arrays.sort(handshakeUs);
+            assertFalse(taskThreads.isEmpty());
+            for (String thread : new ArrayList<>(taskThreads)) {
+                assertTrue(thread, thread.startsWith("SldpTlsTask-"));
+            }
+            System.out.println(String.format(Locale.US,
+                    "%d TLS handshakes in %d ms, handshake median %d ms, max %d ms, "
+                            + "%d tasks turned away, loop delay max %d ms",
+                    connections, elapsedUs / 1000, handshakeUs[connections / 2] / 1000,
+                    handshakeUs[connections - 1] / 1000, rejections.get(), maxLoopDelayUs / 1000));
+        } finally {
+            group.shutdown();
+            server.close();
+        }
+    }
+
+    private static SldpConnection handshake(SldpEventLoopGroup group, int port, SslContextManager manager)
+            throws Exception {
+        TcpConnection.Config config = SldpEventLoopGroupTest.config(port);
+        config.ssl = true;
+        config.trustAllCerts = true;
+        config.sslContextManager = manager;
+        SldpEventLoopGroupTest.Player player = new SldpEventLoopGroupTest.Player(0);
+        SldpConnection connection = SldpEventLoopGroupTest.connect(group, config, player);
+        // the session ticket follows the handshake, so wait for data behind it
+        player.awaitFrames(1);
+        connection.release();
+        return connection;
+    }
+
+    @Test
+    public void resumesTheSessionOnTheNextConnectionToThePeer() throws Exception {
+        SldpTestServer server = new SldpTestServer(SldpTestServer.tlsContext(), new SldpTestServer.Streamer() {
+            @Override
+            public void stream(SldpTestServer.Peer peer, int sn, int offsetMs) throws IOException {
+                peer.sendFrame(sn, SldpTestServer.VP8_KEY_FRAME, 0, SldpTestServer.payload(100));
+            }
+        });
+        SldpEventLoopGroup group = new SldpEventLoopGroup(1);
+        try {
+            // a full handshake first so that class loading and compilation do not count below
+            handshake(group, server.getPort(), new SslContextManager());
+
+            SslContextManager manager = new SslContextManager();
+            SldpConnection first = handshake(group, server.getPort(), manager);
+            assertFalse(first.isSessionResumed());
+            assertEquals(1, manager.getFullHandshakeCount());
+            assertEquals(0, manager.getResumedHandshakeCount());
+
+            SldpConnection second = handshake(group, server.getPort(), manager);
+            assertTrue(second.isSessionResumed());
+            assertEquals(1, manager.getFullHandshakeCount());
+            assertEquals(1, manager.getResumedHandshakeCount());
+            System.out.println(String.format(Locale.US, "TLS handshake full %d us, resumed %d us",
+                    first.getHandshakeTimeUs(), second.getHandshakeTimeUs()));
+            assertTrue(manager.getAverageResumedHandshakeTimeUs() < manager.getAverageFullHandshakeTimeUs());
+        } finally {
+            group.shutdown();
+            server.close();
+        }
+    }
+
+    private static long measureLoopDelayUs(SldpEventLoop loop) throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        long postedNanos = System.nanoTime();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        return (System.nanoTime() - postedNanos) / 1000;
+    }
+}
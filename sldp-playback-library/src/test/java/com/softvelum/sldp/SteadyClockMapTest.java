@@ -0,0 +1,89 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SteadyClockMapTest {
+    private static final long BASE = 1_700_000_000_000_000L;
+
+    @Test
+    public void extrapolatesFromTheLatestSampleNotAfter() {
+        SteadyClockMap map = new SteadyClockMap();
+        assertEquals(C.NO_VALUE, map.steadyAt(0));
+        map.add(1_000_000, BASE);
+        map.add(2_000_000, BASE + 1_000_000);
+        assertEquals(C.NO_VALUE, map.steadyAt(999_999));
+        assertEquals(BASE + 500_000, map.steadyAt(1_500_000));
+        assertEquals(BASE + 3_000_000, map.steadyAt(4_000_000));
+        assertEquals(0, map.getDriftPpm(), 0);
+    }
+
+    @Test
+    public void fitsTheDriftOnceSamplesSpanSeconds() {
+        SteadyClockMap map = new SteadyClockMap();
+        // the server clock runs 50 ppm fast against media time
+        for (long s = 0; s <= 60; s++) {
+            map.add(s * 1_000_000, BASE + s * 1_000_050);
+        }
+        assertEquals(50, map.getDriftPpm(), 0.5);
+        assertEquals(BASE + 60 * 1_000_050 + 10 * 1_000_050, map.steadyAt(70_000_000), 10);
+    }
+
+    @Test
+    public void boundsTheDrift() {
+        SteadyClockMap map = new SteadyClockMap();
+        for (long s = 0; s <= 10; s++) {
+            map.add(s * 1_000_000, BASE + s * 1_005_000);
+        }
+        assertEquals(1000, map.getDriftPpm(), 1e-6);
+    }
+
+    @Test
+    public void ignoresRepeatedAndSlightlyEarlierSamples() {
+        SteadyClockMap map = new SteadyClockMap();
+        for (long s = 0; s <= 10; s++) {
+            map.add(s * 1_000_000, BASE + s * 1_000_050);
+        }
+        double drift = map.getDriftPpm();
+        map.add(10_000_000, BASE);
+        map.add(9_800_000, BASE);
+        assertEquals(10_000_000, map.lastPts());
+        assertEquals(drift, map.getDriftPpm(), 0);
+        assertEquals(BASE + 5 * 1_000_050, map.steadyAt(5_000_000), 1);
+    }
+
+    @Test
+    public void startsOverWhenTheTimelineIsReset() {
+        SteadyClockMap map = new SteadyClockMap();
+        for (long s = 0; s <= 10; s++) {
+            map.add(s * 1_000_000, BASE + s * 1_000_050);
+        }
+        // media time jumps back by more than the tolerance
+        map.add(2_000_000, BASE + 20_000_000);
+        assertEquals(0, map.getDriftPpm(), 0);
+        assertEquals(C.NO_VALUE, map.steadyAt(1_000_000));
+        assertEquals(BASE + 20_000_000, map.steadyAt(2_000_000));
+
+        // the server clock jumps while media time goes on
+        map.add(3_000_000, BASE + 50_000_000);
+        assertFalse(map.isEmpty());
+        assertEquals(C.NO_VALUE, map.steadyAt(2_500_000));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void keepsTheNewestSamples() {
+        SteadyClockMap map = new SteadyClockMap();
+        for (long s = 0; s < 200; s++) {
+            map.add(s * 1_000_000, BASE + s * 1_000_000);
+        }
+        assertEquals(199_000_000, map.lastPts());
+        // only the last 64 samples are held
+        assertEquals(C.NO_VALUE, map.steadyAt(135_000_000));
+        assertEquals(BASE + 136_000_000, map.steadyAt(136_000_000));
+    }
+}
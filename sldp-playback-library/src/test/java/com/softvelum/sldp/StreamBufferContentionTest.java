@@ -0,0 +1,207 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One writer filling a 60 fps video and a 50 fps audio buffer as fast as it can, against one
+ * to four readers. The rings are small, so readers are lapped all the time; every frame they
+ * get must still carry its own payload.
+ */
+public class StreamBufferContentionTest {
+    private static final int VIDEO_FRAMES = 20_000;
+    private static final int VIDEO_TIMESCALE = 90_000;
+    private static final int AUDIO_TIMESCALE = 48_000;
+    private static final long TIMEOUT_MS = 60_000;
+
+    private static int sizeOf(long index) {
+        return 32 + (int) (index * 31 % 480);
+    }
+
+    private static byte[] payload(long index) {
+        byte[] data = new byte[sizeOf(index)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (index * 7 + i);
+        }
+        return data;
+    }
+
+    private static boolean matches(ByteBuffer frame, long index) {
+        if (frame.remaining() != sizeOf(index)) {
+            return false;
+        }
+        for (int i = 0; i < frame.remaining(); i++) {
+            if (frame.get(frame.position() + i) != (byte) (index * 7 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static StreamBuffer.Config config(boolean offHeap) {
+        StreamBuffer.Config config = new StreamBuffer.Config();
+        config.maxItems = 64;
+        config.offHeap = offHeap;
+        config.slabSize = 16 * 1024;
+        return config;
+    }
+
+    private static final class Result {
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong corrupt = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // set before the readers start, cleared once the writer is done
+        volatile boolean writing = true;
+    }
+
+    private static void write(StreamBuffer video, StreamBuffer audio, boolean offHeap) {
+        long audioIndex = 0;
+        for (long i = 0; i < VIDEO_FRAMES; i++) {
+            // 60 fps video at 90 kHz, interleaved with 50 fps audio at 48 kHz by time
+            long dts = i * 1500;
+            while (audioIndex * 960 * VIDEO_TIMESCALE / AUDIO_TIMESCALE <= dts) {
+                byte[] data = payload(audioIndex);
+                if (offHeap) {
+                    audio.writeAudioFrame(audioIndex * 960, ByteBuffer.wrap(data));
+                } else {
+                    audio.writeAudioFrame(audioIndex * 960, data);
+                }
+                audioIndex++;
+            }
+            byte[] data = payload(i);
+            if (offHeap) {
+                video.writeVpxFrame(dts, ByteBuffer.wrap(data), i % 60 == 0);
+            } else {
+                video.writeVpxFrame(dts, data, i % 60 == 0);
+            }
+        }
+    }
+
+    private static void readVideo(StreamBuffer video, Result result) {
+        StreamBuffer.Reader reader = video.createReader();
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        long last = -1;
+        while (true) {
+            boolean writing = result.writing;
+            long index = reader.nextIndex();
+            if (index == C.NO_VALUE) {
+                if (!writing) {
+                    return;
+                }
+                Thread.yield();
+                continue;
+            }
+            if (index <= last) {
+                throw new AssertionError("read " + index + " after " + last);
+            }
+            last = index;
+            dst.clear();
+            if (video.readFrame(index, dst, NalUnits.Format.AVCC) == C.NO_VALUE) {
+                continue;
+            }
+            dst.flip();
+            if (!matches(dst, index)) {
+                result.corrupt.incrementAndGet();
+            }
+            result.frames.incrementAndGet();
+        }
+    }
+
+    // polls getItem() the way callers of the fixed ring did
+    private static void readAudio(StreamBuffer audio, Result result) {
+        long index = 0;
+        while (true) {
+            boolean writing = result.writing;
+            BufferItem item = audio.getItem(index);
+            if (item == null) {
+                if (!writing) {
+                    return;
+                }
+                Thread.yield();
+                continue;
+            }
+            long messageIndex = item.getMessageIndex();
+            if (messageIndex < index) {
+                throw new AssertionError("asked for " + index + ", got " + messageIndex);
+            }
+            ByteBuffer copy = ByteBuffer.allocate(item.getSize());
+            copy.put(item.getBuffer());
+            copy.flip();
+            // an off-heap view may be overwritten while it is read, which isHeld() tells
+            if (audio.isHeld(item)) {
+                if (!matches(copy, messageIndex)) {
+                    result.corrupt.incrementAndGet();
+                }
+                result.frames.incrementAndGet();
+            }
+            index = messageIndex + 1;
+        }
+    }
+
+    private static void run(final boolean offHeap, int readers) throws InterruptedException {
+        final StreamBuffer video = new StreamBuffer(StreamBuffer.Type.VIDEO, config(offHeap));
+        video.setTimescale(VIDEO_TIMESCALE);
+        final StreamBuffer audio = new StreamBuffer(StreamBuffer.Type.AUDIO, config(offHeap));
+        audio.setTimescale(AUDIO_TIMESCALE);
+        final Result result = new Result();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            final boolean readsVideo = i % 2 == 0;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (readsVideo) {
+                            readVideo(video, result);
+                        } else {
+                            readAudio(audio, result);
+                        }
+                    } catch (Throwable e) {
+                        result.failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            write(video, audio, offHeap);
+        } finally {
+            result.writing = false;
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+            assertTrue("reader did not finish", !thread.isAlive());
+        }
+
+        assertNull(String.valueOf(result.failure.get()), result.failure.get());
+        assertEquals(0, result.corrupt.get());
+        assertTrue(result.frames.get() > 0);
+        assertEquals(VIDEO_FRAMES, video.getWriteIndex());
+    }
+
+    @Test
+    public void heapReadersSeeConsistentFrames() throws InterruptedException {
+        for (int readers = 1; readers <= 4; readers++) {
+            run(false, readers);
+        }
+    }
+
+    @Test
+    public void offHeapReadersSeeConsistentFrames() throws InterruptedException {
+        for (int readers = 1; readers <= 4; readers++) {
+            run(true, readers);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.softvelum.sldp;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StreamBufferTest {
+
+    private static byte[] payload(long index, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (index * 13 + i);
+        }
+        return data;
+    }
+
+    private static void assertPayload(long index, int size, ByteBuffer frame) {
+        assertEquals(size, frame.remaining());
+        for (int i = 0; i < size; i++) {
+            assertEquals((byte) (index * 13 + i), frame.get(frame.position() + i));
+        }
+    }
+
+    private static StreamBuffer videoBuffer(int maxItems, long maxBytes, long maxDurationMs, int slabSize) {
+        StreamBuffer.Config config = new StreamBuffer.Config();
+        config.maxItems = maxItems;
+        config.maxBytes = maxBytes;
+        config.maxDurationMs = maxDurationMs;
+        config.offHeap = slabSize > 0;
+        config.slabSize = slabSize;
+        StreamBuffer buffer = new StreamBuffer(StreamBuffer.Type.VIDEO, config);
+        buffer.setTimescale(1000);
+        return buffer;
+    }
+
+    @Test
+    public void storesPayloadsInTheSlabAcrossItsEnd() {
+        StreamBuffer buffer = videoBuffer(64, 0, 0, 1000);
+        int[] sizes = new int[40];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 50 + i * 37 % 200;
+            buffer.writeVpxFrame(i * 10, ByteBuffer.wrap(payload(i, sizes[i])), i % 4 == 0);
+        }
+
+        long bytes = 0;
+        for (long i = buffer.getFirstIndex(); i < buffer.getWriteIndex(); i++) {
+            BufferItem item = buffer.getItem(i);
+            assertNotNull(item);
+            assertTrue(item.isOffHeap());
+            assertEquals(i, item.getMessageIndex());
+            assertPayload(i, sizes[(int) i], item.getBuffer());
+            bytes += sizes[(int) i];
+        }
+        assertTrue(bytes <= 1000);
+        assertEquals(bytes, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void keepsPayloadsLargerThanTheSlabOnTheHeap() {
+        StreamBuffer buffer = videoBuffer(64, 0, 0, 1000);
+        buffer.writeVpxFrame(0, ByteBuffer.wrap(payload(0, 100)), true);
+        buffer.writeVpxFrame(10, ByteBuffer.wrap(payload(1, 1500)), false);
+        buffer.writeVpxFrame(20, ByteBuffer.wrap(payload(2, 100)), false);
+
+        assertEquals(0, buffer.getFirstIndex());
+        BufferItem large = buffer.getItem(1);
+        assertNotNull(large);
+        assertFalse(large.isOffHeap());
+        assertPayload(1, 1500, large.getBuffer());
+        assertTrue(buffer.getItem(2).isOffHeap());
+        assertPayload(2, 100, buffer.getItem(2).getBuffer());
+    }
+
+    @Test
+    public void readFrameCopiesFromHeapAndSlab() {
+        for (int slabSize : new int[]{0, 4096}) {
+            StreamBuffer buffer = videoBuffer(16, 0, 0, slabSize);
+            for (int i = 0; i < 40; i++) {
+                buffer.writeVpxFrame(i * 10, ByteBuffer.wrap(payload(i, 100 + i)), i % 5 == 0);
+            }
+            ByteBuffer dst = ByteBuffer.allocate(256);
+            for (long i = buffer.getFirstIndex(); i < buffer.getWriteIndex(); i++) {
+                dst.clear();
+                assertEquals(100 + i, buffer.readFrame(i, dst, NalUnits.Format.ANNEX_B));
+                dst.flip();
+                assertPayload(i, (int) (100 + i), dst);
+            }
+            dst.clear();
+            assertEquals(C.NO_VALUE, buffer.readFrame(buffer.getFirstIndex() - 1, dst, NalUnits.Format.AVCC));
+            assertEquals(C.NO_VALUE, buffer.readFrame(buffer.getWriteIndex(), dst, NalUnits.Format.AVCC));
+            assertEquals(0, dst.position());
+        }
+    }
+
+    @Test
+    public void offHeapViewsAreHeldUntilTheNextWrite() {
+        StreamBuffer buffer = videoBuffer(64, 0, 0, 1000);
+        buffer.writeVpxFrame(0, ByteBuffer.wrap(payload(0, 100)), true);
+        BufferItem item = buffer.getItem(0);
+        assertTrue(buffer.isHeld(item));
+
+        // the slab may have been overwritten under the view, which the buffer cannot rule out
+        buffer.writeVpxFrame(10, ByteBuffer.wrap(payload(1, 100)), false);
+        assertFalse(buffer.isHeld(item));
+        assertTrue(buffer.isHeld(0));
+        assertTrue(buffer.isHeld(buffer.getItem(0)));
+
+        StreamBuffer heap = videoBuffer(64, 0, 0, 0);
+        heap.writeVpxFrame(0, payload(0, 100), true);
+        BufferItem heapItem = heap.getItem(0);
+        heap.writeVpxFrame(10, payload(1, 100), false);
+        assertTrue(heap.isHeld(heapItem));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void readFrameRejectsTooSmallDestinations() {
+        StreamBuffer buffer = videoBuffer(16, 0, 0, 4096);
+        buffer.writeVpxFrame(0, ByteBuffer.wrap(payload(0, 100)), true);
+        buffer.readFrame(0, ByteBuffer.allocate(99), NalUnits.Format.AVCC);
+    }
+
+    @Test
+    public void callsTheLegacyProducedHook() {
+        final List<Long> produced = new ArrayList<>();
+        StreamBuffer buffer = new StreamBuffer(StreamBuffer.Type.VIDEO, new StreamBuffer.Config()) {
+            @SuppressWarnings("deprecation")
+            @Override
+            protected void onProduced(BufferItem item) {
+                produced.add(item.getMessageIndex());
+                assertPayload(item.getMessageIndex(), 10, item.getBuffer());
+            }
+        };
+        buffer.setTimescale(1000);
+        for (int i = 0; i < 3; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i == 0);
+        }
+        assertEquals(Arrays.asList(0L, 1L, 2L), produced);
+    }
+
+    @Test
+    public void convertsEachFrameOnceForAllItems() {
+        // two NAL units of 3 and 2 bytes, each behind a 4 byte length
+        byte[] avcc = {0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x41, 3};
+        byte[] annexB = {0, 0, 0, 1, 0x65, 1, 2, 0, 0, 0, 1, 0x41, 3};
+        for (int slabSize : new int[]{0, 4096}) {
+            StreamBuffer buffer = videoBuffer(4, 0, 0, slabSize);
+            for (int i = 0; i < 3; i++) {
+                buffer.writeH26xFrame(i * 10, 0, ByteBuffer.wrap(avcc), i == 0);
+            }
+            byte[] data = buffer.getItem(1).getData();
+            assertArrayEquals(annexB, data);
+            assertSame(data, buffer.getItem(1).getData());
+            assertNotSame(data, buffer.getItem(2).getData());
+
+            // a new frame in the slot gets its own copy
+            for (int i = 3; i < 6; i++) {
+                buffer.writeH26xFrame(i * 10, 0, ByteBuffer.wrap(avcc), false);
+            }
+            assertEquals(5, buffer.getItem(5).getMessageIndex());
+            byte[] reused = buffer.getItem(5).getData();
+            assertNotSame(data, reused);
+            assertArrayEquals(annexB, reused);
+        }
+    }
+
+    @Test
+    public void ignoresRepeatedSequenceHeaders() {
+        StreamBuffer buffer = videoBuffer(16, 0, 0, 0);
+        buffer.setMimeType("video/avc");
+        // too short for an avcC, so it cannot be parsed
+        byte[] header = {1, 0x64, 0};
+        assertTrue(buffer.setSequenceHeader(ByteBuffer.wrap(header)));
+        assertNull(buffer.getCodecConfig());
+        assertFalse(buffer.setSequenceHeader(ByteBuffer.wrap(header.clone())));
+
+        byte[] extradata = buffer.getExtradata();
+        assertArrayEquals(header, extradata);
+        extradata[0] = 9;
+        assertFalse(buffer.setSequenceHeader(ByteBuffer.wrap(header)));
+        assertTrue(buffer.setSequenceHeader(ByteBuffer.wrap(new byte[]{1, 0x64, 1})));
+    }
+
+    @Test
+    public void readsMetadataWithoutItems() {
+        StreamBuffer buffer = videoBuffer(8, 0, 0, 0);
+        buffer.setTimescale(90_000);
+        buffer.writeH26xFrame(90_000, 3000, payload(0, 10), true);
+        // the conversion is kept per frame, a new timescale only applies to later frames
+        buffer.setTimescale(1000);
+        buffer.writeH26xFrame(2000, 40, payload(1, 20), false);
+
+        assertEquals(1_000_000, buffer.getDtsUs(0));
+        assertEquals(1_033_333, buffer.getPtsUs(0));
+        assertTrue(buffer.isKeyFrame(0));
+        assertEquals(10, buffer.getFrameSize(0));
+        assertEquals(2_000_000, buffer.getDtsUs(1));
+        assertEquals(2_040_000, buffer.getPtsUs(1));
+        assertFalse(buffer.isKeyFrame(1));
+        assertEquals(20, buffer.getFrameSize(1));
+
+        assertEquals(C.NO_VALUE, buffer.getDtsUs(2));
+        assertEquals(C.NO_VALUE, buffer.getPtsUs(-1));
+        assertEquals(C.NO_VALUE, buffer.getFrameSize(2));
+        assertFalse(buffer.isKeyFrame(2));
+        assertEquals(2_000_000, buffer.getEndTimestamp().getDtsUs());
+    }
+
+    @Test
+    public void releaseDropsEverything() {
+        StreamBuffer buffer = videoBuffer(8, 0, 0, 4096);
+        for (int i = 0; i < 5; i++) {
+            buffer.writeVpxFrame(i * 10, ByteBuffer.wrap(payload(i, 10)), i == 0);
+        }
+        buffer.release();
+        assertEquals(0, buffer.getWriteIndex());
+        assertEquals(0, buffer.getFirstIndex());
+        assertEquals(0, buffer.getBufferedBytes());
+        assertEquals(C.NO_VALUE, buffer.getDtsUs(0));
+        assertNull(buffer.getItem(0));
+        assertNull(buffer.getEndTimestamp());
+        assertEquals(C.NO_VALUE, buffer.latestKeyFrameIndex());
+    }
+
+    @Test
+    public void outOfSlotsEvictsOneFrame() {
+        StreamBuffer buffer = videoBuffer(8, 0, 0, 0);
+        // a single GOP longer than the ring
+        for (int i = 0; i < 20; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i == 0);
+            assertEquals(Math.max(0, i + 1 - 8), buffer.getFirstIndex());
+        }
+        assertEquals(8, buffer.getItemCount());
+        assertEquals(80, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void outOfSlabSpaceEvictsOldestFrames() {
+        StreamBuffer buffer = videoBuffer(64, 0, 0, 1000);
+        for (int i = 0; i < 30; i++) {
+            buffer.writeVpxFrame(i * 10, ByteBuffer.wrap(payload(i, 100)), i == 0);
+        }
+        // ten frames fit, the oldest ones went one at a time despite the missing keyframes
+        assertEquals(20, buffer.getFirstIndex());
+        assertEquals(1000, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void byteBudgetEvictsWholeGops() {
+        StreamBuffer buffer = videoBuffer(64, 500, 0, 0);
+        for (int i = 0; i < 30; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 50), i % 5 == 0);
+            assertTrue(buffer.isKeyFrame(buffer.getFirstIndex()));
+            // over budget only by the part of the newest GOP that cannot be dropped
+            assertTrue(buffer.getBufferedBytes() <= 500 + 4 * 50);
+        }
+        assertEquals(20, buffer.getFirstIndex());
+    }
+
+    @Test
+    public void durationBudgetEvictsWholeGops() {
+        StreamBuffer buffer = videoBuffer(64, 0, 100, 0);
+        for (int i = 0; i < 30; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 50), i % 5 == 0);
+            assertTrue(buffer.isKeyFrame(buffer.getFirstIndex()));
+        }
+        long heldMs = (buffer.getDtsUs(buffer.getWriteIndex() - 1) - buffer.getDtsUs(buffer.getFirstIndex())) / 1000;
+        assertTrue(heldMs <= 100);
+        assertEquals(20, buffer.getFirstIndex());
+    }
+
+    @Test
+    public void keepsTheNewestGopOverBudget() {
+        StreamBuffer buffer = videoBuffer(64, 100, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 50), i == 0);
+        }
+        assertEquals(0, buffer.getFirstIndex());
+        assertEquals(500, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void findsKeyFrames() {
+        StreamBuffer buffer = videoBuffer(16, 0, 0, 0);
+        for (int i = 0; i < 30; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 5 == 0);
+        }
+        // frames 14 to 29 are held, keyframes at 15, 20 and 25
+        assertEquals(14, buffer.getFirstIndex());
+        assertEquals(25, buffer.latestKeyFrameIndex());
+        assertEquals(20, buffer.keyFrameAtOrBefore(249_000));
+        assertEquals(25, buffer.keyFrameAtOrBefore(250_000));
+        assertEquals(15, buffer.keyFrameAtOrBefore(0));
+        assertEquals(15, buffer.nextKeyFrameIndex(14));
+        assertEquals(25, buffer.nextKeyFrameIndex(20));
+        assertEquals(C.NO_VALUE, buffer.nextKeyFrameIndex(25));
+    }
+
+    @Test
+    public void iteratesOneGop() {
+        StreamBuffer buffer = videoBuffer(16, 0, 0, 0);
+        for (int i = 0; i < 12; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 5 == 0);
+        }
+        Iterator<BufferItem> gop = buffer.gop(5);
+        for (long i = 5; i < 10; i++) {
+            assertTrue(gop.hasNext());
+            assertEquals(i, gop.next().getMessageIndex());
+        }
+        assertFalse(gop.hasNext());
+        // the last GOP runs up to the newest frame, and only keyframes start one
+        Iterator<BufferItem> last = buffer.gop(10);
+        assertEquals(10, last.next().getMessageIndex());
+        assertEquals(11, last.next().getMessageIndex());
+        assertFalse(last.hasNext());
+        assertFalse(buffer.gop(6).hasNext());
+    }
+
+    @Test
+    public void liveReaderStartsAtTheNewestKeyFrame() {
+        StreamBuffer buffer = videoBuffer(16, 0, 0, 0);
+        StreamBuffer.Reader empty = buffer.createLiveReader();
+        for (int i = 0; i < 12; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 5 == 0);
+        }
+        StreamBuffer.Reader live = buffer.createLiveReader();
+        assertEquals(10, live.nextIndex());
+        assertEquals(11, live.nextIndex());
+        assertEquals(C.NO_VALUE, live.nextIndex());
+        assertEquals(0, empty.nextIndex());
+    }
+
+    @Test
+    public void readerSkipsToAKeyFrameWhenLapped() {
+        StreamBuffer buffer = videoBuffer(8, 0, 0, 0);
+        StreamBuffer.Reader reader = buffer.createReader();
+        for (int i = 0; i < 3; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 4 == 0);
+        }
+        assertEquals(0, reader.nextIndex());
+        for (int i = 3; i < 20; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 4 == 0);
+        }
+        // frames 12 to 19 are held, the reader resumes at the keyframe 12
+        assertEquals(12, reader.nextIndex());
+        assertEquals(1, reader.getOverrunCount());
+        assertEquals(11, reader.getSkippedFrames());
+        assertEquals(7, reader.getLagFrames());
+        assertEquals(70_000, reader.getLagUs());
+
+        BufferItem item = reader.next();
+        assertNotNull(item);
+        assertEquals(13, item.getMessageIndex());
+    }
+
+    @Test
+    public void readerStartsOverAfterRelease() {
+        StreamBuffer buffer = videoBuffer(64, 0, 0, 0);
+        StreamBuffer.Reader reader = buffer.createReader();
+        for (int i = 0; i < 5; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i == 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, reader.nextIndex());
+        }
+
+        // the new timeline is already past the old read index when the reader looks again
+        buffer.release();
+        buffer.setTimescale(1000);
+        for (int i = 0; i < 6; i++) {
+            buffer.writeVpxFrame(1000 + i * 10, payload(100 + i, 10), i == 0);
+        }
+        assertEquals(0, reader.nextIndex());
+        assertEquals(1_000_000, buffer.getDtsUs(0));
+        assertEquals(1, reader.nextIndex());
+    }
+
+    @Test
+    public void getItemHandsLappedCallersTheOldestFrame() {
+        StreamBuffer buffer = videoBuffer(8, 0, 0, 0);
+        assertNull(buffer.getItem(0));
+        for (int i = 0; i < 20; i++) {
+            buffer.writeVpxFrame(i * 10, payload(i, 10), i % 4 == 0);
+        }
+        BufferItem item = buffer.getItem(3);
+        assertNotNull(item);
+        assertEquals(12, item.getMessageIndex());
+        assertPayload(12, 10, item.getBuffer());
+        assertEquals(15, buffer.getItem(15).getMessageIndex());
+        assertNull(buffer.getItem(20));
+    }
+
+    /**
+     * Heap allocated per frame written, per frame read through the metadata accessors and per
+     * frame read through a {@link BufferItem} view, with the frames on and off the heap.
+     */
+    @Test
+    public void measuresAllocationPerFrame() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        int frames = 20_000;
+        ByteBuffer frame = ByteBuffer.wrap(payload(0, 1000));
+
+        for (int slabSize : new int[] {0, 1 << 20}) {
+            StreamBuffer buffer = videoBuffer(256, 0, 0, slabSize);
+            long[] bytesPerFrame = new long[3];
+            long sink = 0;
+            // the first round only warms up
+            for (int round = 0; round < 2; round++) {
+                long before = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < frames; i++) {
+                    frame.rewind();
+                    buffer.writeVpxFrame(buffer.getWriteIndex() * 10, frame, i % 30 == 0);
+                }
+                long written = threads.getThreadAllocatedBytes(thread);
+                long first = buffer.getFirstIndex();
+                int held = (int) (buffer.getWriteIndex() - first);
+                for (int i = 0; i < frames; i++) {
+                    long index = first + i % held;
+                    sink += buffer.getDtsUs(index) + buffer.getPtsUs(index) + buffer.getFrameSize(index)
+                            + (buffer.isKeyFrame(index) ? 1 : 0);
+                }
+                long read = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < frames; i++) {
+                    BufferItem item = buffer.getItem(first + i % held);
+                    sink += item.getTimestamp().getDts() + item.getSize() + (item.isKeyFrame() ? 1 : 0);
+                }
+                long viewed = threads.getThreadAllocatedBytes(thread);
+                bytesPerFrame[0] = (written - before) / frames;
+                bytesPerFrame[1] = (read - written) / frames;
+                bytesPerFrame[2] = (viewed - read) / frames;
+            }
+            assertTrue(sink != 0);
+            assertEquals(0, bytesPerFrame[1]);
+            System.out.println(String.format(Locale.US, "%s, bytes allocated per %d byte frame: %d writing, "
+                    + "%d reading metadata, %d through BufferItem", slabSize > 0 ? "off heap" : "on heap",
+                    frame.capacity(), bytesPerFrame[0], bytesPerFrame[1], bytesPerFrame[2]));
+        }
+    }
+
+    /**
+     * A 4K keyframe as an encoder with slice threading sends it: parameter sets and eight
+     * slices of 96 KB, each with a length prefix.
+     */
+    private static ByteBuffer multiSliceFrame() {
+        int[] units = {24, 8, 96 * 1024, 96 * 1024, 96 * 1024, 96 * 1024, 96 * 1024, 96 * 1024, 96 * 1024, 96 * 1024};
+        int size = 0;
+        for (int unit : units) {
+            size += 4 + unit;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (int unit : units) {
+            frame.putInt(unit);
+            frame.put(payload(unit, unit));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Time and heap allocated per large multi-slice frame copied out with readFrame(), in the
+     * layout it was received in and converted to Annex B, into a direct buffer as a decoder
+     * input buffer is.
+     */
+    @Test
+    public void reportsTheCostOfReadingMultiSliceFrames() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        ByteBuffer frame = multiSliceFrame();
+        ByteBuffer dst = ByteBuffer.allocateDirect(frame.remaining());
+        int frames = 8;
+        int reads = 400;
+
+        for (int slabSize : new int[] {0, 16 << 20}) {
+            StreamBuffer buffer = videoBuffer(frames, 0, 0, slabSize);
+            for (int i = 0; i < frames; i++) {
+                frame.rewind();
+                buffer.writeH26xFrame(i * 40, 0, frame, true);
+            }
+            StringBuilder report = new StringBuilder(slabSize > 0 ? "off heap" : "on heap");
+            for (NalUnits.Format format : NalUnits.Format.values()) {
+                long nanos = 0;
+                long bytes = 0;
+                // the first rounds only warm up
+                for (int round = 0; round < 3; round++) {
+                    long before = threads.getThreadAllocatedBytes(thread);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < reads; i++) {
+                        dst.clear();
+                        assertEquals(frame.limit(), buffer.readFrame(i % frames, dst, format));
+                    }
+                    nanos = System.nanoTime() - start;
+                    bytes = threads.getThreadAllocatedBytes(thread) - before;
+                }
+                assertEquals(format == NalUnits.Format.ANNEX_B ? 1 : frame.get(3), dst.get(3));
+                // nothing in proportion to the frame, whatever the JIT leaves behind
+                assertTrue(bytes + " bytes", bytes / reads < 64);
+                report.append(String.format(Locale.US, ", %s %d us (%.0f MB/s, %d bytes allocated)", format,
+                        nanos / reads / 1000, (double) frame.limit() * reads * 1e3 / nanos, bytes / reads));
+            }
+            System.out.println(report.append(" per ").append(frame.limit()).append(" byte frame of 10 NAL units"));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    private static final long START = 1_000;
+
+    private static Runnable task(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static List<Runnable> advance(TimerWheel wheel, long nowMs) {
+        List<Runnable> expired = new ArrayList<>();
+        wheel.advance(nowMs, expired);
+        return expired;
+    }
+
+    @Test
+    public void sleepsUntilTheEarliestTimeout() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        assertEquals(-1, wheel.getDelayToNextTimeout(START));
+
+        List<String> log = new ArrayList<>();
+        wheel.schedule(task(log, "late"), 5_000, START);
+        // not woken every tick while the only timeout is seconds away
+        assertEquals(5_000, wheel.getDelayToNextTimeout(START));
+        assertEquals(4_990, wheel.getDelayToNextTimeout(START + 10));
+
+        wheel.schedule(task(log, "early"), 120, START);
+        assertEquals(150, wheel.getDelayToNextTimeout(START));
+    }
+
+    @Test
+    public void firesTimeoutsInOrderAcrossRounds() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        List<String> log = new ArrayList<>();
+        // 8 slots of 50 ms, so these share a slot and differ only in rounds
+        wheel.schedule(task(log, "second"), 500, START);
+        wheel.schedule(task(log, "first"), 100, START);
+
+        List<Runnable> expired = new ArrayList<>();
+        long delay = wheel.getDelayToNextTimeout(START);
+        assertEquals(100, delay);
+        wheel.advance(START + delay - 1, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + delay, expired);
+        assertEquals(1, expired.size());
+        expired.get(0).run();
+        assertEquals("first", log.get(0));
+
+        expired.clear();
+        delay = wheel.getDelayToNextTimeout(START + 100);
+        assertEquals(400, delay);
+        wheel.advance(START + 100 + delay, expired);
+        assertEquals(1, expired.size());
+        expired.get(0).run();
+        assertEquals("second", log.get(1));
+        assertEquals(-1, wheel.getDelayToNextTimeout(START + 500));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void skipsCancelledTimeouts() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        List<String> log = new ArrayList<>();
+        TimerWheel.Timeout early = wheel.schedule(task(log, "early"), 50, START);
+        Runnable late = task(log, "late");
+        wheel.schedule(late, 300, START);
+        early.cancel();
+
+        List<Runnable> expired = new ArrayList<>();
+        wheel.advance(START + 299, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 300, expired);
+        assertEquals(1, expired.size());
+        assertSame(late, expired.get(0));
+    }
+
+    @Test
+    public void cancellingTheEarliestTimeoutMovesTheWakeUp() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        List<String> log = new ArrayList<>();
+        TimerWheel.Timeout first = wheel.schedule(task(log, "first"), 100, START);
+        TimerWheel.Timeout second = wheel.schedule(task(log, "second"), 100, START);
+        wheel.schedule(task(log, "third"), 700, START);
+        assertEquals(100, wheel.getDelayToNextTimeout(START));
+
+        // another timeout is due at the same tick
+        first.cancel();
+        assertEquals(100, wheel.getDelayToNextTimeout(START));
+        second.cancel();
+        // no spurious wake-up at the cancelled deadline
+        assertEquals(700, wheel.getDelayToNextTimeout(START));
+        assertTrue(advance(wheel, START + 100).isEmpty());
+        assertEquals(600, wheel.getDelayToNextTimeout(START + 100));
+    }
+
+    @Test
+    public void keepsTheDueTimeWhileEarlierTicksPass() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        List<String> log = new ArrayList<>();
+        wheel.schedule(task(log, "timeout"), 1_000, START);
+        for (long now = START; now < START + 1_000; now += 10) {
+            assertTrue(advance(wheel, now).isEmpty());
+            assertEquals(START + 1_000 - now, wheel.getDelayToNextTimeout(now));
+        }
+        assertEquals(1, advance(wheel, START + 1_000).size());
+        assertEquals(-1, wheel.getDelayToNextTimeout(START + 1_000));
+    }
+
+    @Test
+    public void neverSchedulesBehindTheCurrentTick() {
+        TimerWheel wheel = new TimerWheel(50, 8, START);
+        List<String> log = new ArrayList<>();
+        assertTrue(advance(wheel, START + 120).isEmpty());
+        wheel.schedule(task(log, "now"), 0, START + 120);
+        assertEquals(30, wheel.getDelayToNextTimeout(START + 120));
+    }
+}
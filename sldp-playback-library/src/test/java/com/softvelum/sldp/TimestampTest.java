@@ -0,0 +1,138 @@
+package com.softvelum.sldp;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampTest {
+    private static final int[] TIMESCALES = {
+            1, 7, 1000, 8000, 22050, 30000, 44100, 48000, 90000, 1_000_000, Integer.MAX_VALUE};
+
+    private static long exact(long value, int timescale, int targetTimescale) {
+        return BigInteger.valueOf(value)
+                .multiply(BigInteger.valueOf(targetTimescale))
+                .divide(BigInteger.valueOf(timescale))
+                .longValue();
+    }
+
+    private static boolean fits(long value, int timescale, int targetTimescale) {
+        return BigInteger.valueOf(value)
+                .multiply(BigInteger.valueOf(targetTimescale))
+                .divide(BigInteger.valueOf(timescale))
+                .bitLength() < 64;
+    }
+
+    @Test
+    public void rescaleMatchesBigIntegerDivision() {
+        Random random = new Random(1);
+        for (int from : TIMESCALES) {
+            for (int to : TIMESCALES) {
+                Timestamp.Rescaler rescaler = new Timestamp.Rescaler(from, to);
+                for (int i = 0; i < 20_000; i++) {
+                    // mostly stream-sized values, some anywhere in the long range
+                    long value = i % 10 == 0
+                            ? random.nextLong()
+                            : (long) (random.nextDouble() * from * 86400L * 30) * (random.nextBoolean() ? 1 : -1);
+                    if (!fits(value, from, to)) {
+                        continue;
+                    }
+                    long expected = exact(value, from, to);
+                    String message = value + " from " + from + " to " + to;
+                    assertEquals(message, expected, rescaler.rescale(value));
+                    assertEquals(message, expected, Timestamp.rescale(value, from, to));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rescaleIsExactAtTheEdges() {
+        long[] values = {0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1};
+        for (int from : TIMESCALES) {
+            for (int to : TIMESCALES) {
+                for (long value : values) {
+                    if (fits(value, from, to)) {
+                        assertEquals(exact(value, from, to), new Timestamp.Rescaler(from, to).rescale(value));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ninetyKilohertzDoesNotDrift() {
+        // a week of 90 kHz ticks lands on the exact microsecond
+        long ticks = 90_000L * 86400 * 7 + 1;
+        assertEquals(86400L * 7 * 1_000_000 + 11, Timestamp.toUs(ticks, 90_000));
+        assertEquals(86400L * 7 * 1000, Timestamp.toMs(ticks, 90_000));
+    }
+
+    @Test
+    public void timestampConvertsDtsAndPts() {
+        Timestamp timestamp = new Timestamp(90_000, 3000, 90_000);
+        assertEquals(1_000_000, timestamp.getDtsUs());
+        assertEquals(1000, timestamp.getDtsMs());
+        assertEquals(1_033_333, timestamp.getPtsUs());
+        assertEquals(1033, timestamp.getPtsMs());
+    }
+
+    @Test
+    public void missingTimescaleSaturates() {
+        Timestamp.Rescaler rescaler = new Timestamp.Rescaler(0, 1_000_000);
+        assertEquals(Long.MAX_VALUE, rescaler.rescale(1));
+        assertEquals(Long.MIN_VALUE, rescaler.rescale(-1));
+        assertEquals(0, rescaler.rescale(0));
+    }
+
+    /**
+     * Time per conversion of 90 kHz ticks to microseconds with a per-stream Rescaler, the
+     * static helper and the double arithmetic it replaced, and how often the latter is off.
+     */
+    @Test
+    public void reportsTheCostOfRescaling() {
+        int count = 1 << 20;
+        long[] ticks = new long[count];
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            // up to 30 days into a stream
+            ticks[i] = (long) (random.nextDouble() * 90_000L * 86400 * 30);
+        }
+        Timestamp.Rescaler rescaler = new Timestamp.Rescaler(90_000, 1_000_000);
+        long[] nanos = new long[3];
+        long sink = 0;
+        int inexact = 0;
+        // the first rounds only warm up
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (long value : ticks) {
+                sink += rescaler.rescale(value);
+            }
+            long rescaled = System.nanoTime();
+            for (long value : ticks) {
+                sink += Timestamp.rescale(value, 90_000, 1_000_000);
+            }
+            long helper = System.nanoTime();
+            for (long value : ticks) {
+                sink += (long) (value / (double) 90_000 * 1_000_000);
+            }
+            long floating = System.nanoTime();
+            nanos[0] = rescaled - start;
+            nanos[1] = helper - rescaled;
+            nanos[2] = floating - helper;
+        }
+        for (long value : ticks) {
+            if ((long) (value / (double) 90_000 * 1_000_000) != exact(value, 90_000, 1_000_000)) {
+                inexact++;
+            }
+        }
+        assertTrue(sink != 0);
+        System.out.println(String.format(Locale.US, "90 kHz to us: Rescaler %.1f ns, static %.1f ns, "
+                + "double %.1f ns per call; double inexact for %d of %d values",
+                (double) nanos[0] / count, (double) nanos[1] / count, (double) nanos[2] / count, inexact, count));
+    }
+}